@@ -0,0 +1,405 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.ardverk.btree.BeeTree;
+import org.ardverk.btree.Binding;
+import org.ardverk.btree.DefaultTupleBinding;
+import org.ardverk.btree.FileNodeProvider;
+import org.ardverk.btree.LruNodeCache;
+import org.ardverk.btree.MemoryNodeProvider;
+import org.ardverk.btree.NodeProvider;
+import org.ardverk.btree.TupleBinding;
+
+/**
+ * Measures the throughput and the latency of the {@link BeeTree}'s
+ * operations for every combination of the given parameters. The
+ * parameters are passed as {@code name=value[,value...]}:
+ *
+ * <pre>
+ * providers     memory, file
+ * ts            the minimum degrees of the Nodes
+ * distributions sequential, uniform, zipfian
+ * threads       the number of concurrent threads
+ * keySizes      the sizes of the keys in bytes (at least 8)
+ * valueSizes    the sizes of the values in bytes
+ * count         the number of Key-Values and operations
+ * scan          the number of Key-Values per iterator
+ * cache         the number of Nodes the file provider caches
+ * warmup        the number of runs that are not reported
+ * </pre>
+ *
+ * The file provider is not thread-safe and is only measured with
+ * a single thread. The memory provider uses concurrent root nodes
+ * if there are multiple threads.
+ */
+public class BeeTreeBenchmark {
+    
+    private static final String MEMORY = "memory";
+    
+    private static final String FILE = "file";
+    
+    private static final String[] OPERATIONS = {
+        "put", "get", "ceiling", "floor", "iterator", "remove"
+    };
+    
+    private static final TupleBinding<byte[], byte[]> BINDING
+        = DefaultTupleBinding.create(new Binding<byte[]>() {
+            @Override
+            public byte[] objectToData(byte[] obj) {
+                return obj;
+            }
+            
+            @Override
+            public byte[] dataToObject(byte[] data) {
+                return data;
+            }
+        });
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index == -1) {
+                throw new IllegalArgumentException(arg);
+            }
+            options.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+        
+        String[] providers = strings(options, "providers", MEMORY + "," + FILE);
+        int[] ts = ints(options, "ts", "4,16,64,128");
+        String[] distributions = strings(options, "distributions",
+                KeyDistribution.SEQUENTIAL + "," + KeyDistribution.UNIFORM
+                    + "," + KeyDistribution.ZIPFIAN);
+        int[] threads = ints(options, "threads", "1,4");
+        int[] keySizes = ints(options, "keySizes", "16");
+        int[] valueSizes = ints(options, "valueSizes", "32,256");
+        
+        int count = ints(options, "count", "100000")[0];
+        int scan = ints(options, "scan", "100")[0];
+        int cache = ints(options, "cache", "4096")[0];
+        int warmup = ints(options, "warmup", "1")[0];
+        
+        System.out.println("provider,t,distribution,threads,keySize,valueSize,"
+                + "operation,ops/s,p50(us),p99(us),p999(us)");
+        
+        for (String provider : providers) {
+            for (int t : ts) {
+                for (String distribution : distributions) {
+                    KeyDistribution keys
+                        = KeyDistribution.create(distribution, count);
+                    
+                    for (int threadCount : threads) {
+                        if (threadCount > 1 && !provider.equals(MEMORY)) {
+                            continue;
+                        }
+                        
+                        for (int keySize : keySizes) {
+                            for (int valueSize : valueSizes) {
+                                Workload workload = new Workload(provider, t,
+                                        keys, threadCount, keySize, valueSize,
+                                        count, scan, cache);
+                                
+                                for (int i = 0; i < warmup; i++) {
+                                    workload.run(false);
+                                }
+                                workload.run(true);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    private static String[] strings(Map<String, String> options,
+            String name, String defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            value = defaultValue;
+        }
+        return value.split(",");
+    }
+    
+    private static int[] ints(Map<String, String> options,
+            String name, String defaultValue) {
+        String[] values = strings(options, name, defaultValue);
+        int[] dst = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            dst[i] = Integer.parseInt(values[i].trim());
+        }
+        return dst;
+    }
+    
+    /**
+     * Creates a key of the given size. The index is stored big-endian
+     * in the last 8 bytes and the keys sort in the order of the indices.
+     */
+    private static byte[] key(long index, int size) {
+        byte[] key = new byte[size];
+        for (int i = 0; i < 8; i++) {
+            key[size - 1 - i] = (byte)(index >>> (i * 8));
+        }
+        return key;
+    }
+    
+    /**
+     * A single combination of parameters.
+     */
+    private static class Workload {
+        
+        private final String provider;
+        
+        private final int t;
+        
+        private final KeyDistribution keys;
+        
+        private final int threads;
+        
+        private final int keySize;
+        
+        private final int valueSize;
+        
+        private final int count;
+        
+        private final int scan;
+        
+        private final int cache;
+        
+        public Workload(String provider, int t, KeyDistribution keys,
+                int threads, int keySize, int valueSize,
+                int count, int scan, int cache) {
+            
+            if (keySize < 8) {
+                throw new IllegalArgumentException("keySize=" + keySize);
+            }
+            
+            this.provider = provider;
+            this.t = t;
+            this.keys = keys;
+            this.threads = threads;
+            this.keySize = keySize;
+            this.valueSize = valueSize;
+            this.count = count;
+            this.scan = scan;
+            this.cache = cache;
+        }
+        
+        /**
+         * Runs all operations against a new tree.
+         */
+        public void run(boolean print) throws IOException, InterruptedException {
+            File directory = null;
+            NodeProvider nodes = null;
+            
+            if (provider.equals(MEMORY)) {
+                nodes = new MemoryNodeProvider(t, threads > 1);
+            } else if (provider.equals(FILE)) {
+                directory = File.createTempFile("bee-tree-", ".benchmark");
+                delete(directory);
+                nodes = new FileNodeProvider(directory, t,
+                        new LruNodeCache(cache));
+            } else {
+                throw new IllegalArgumentException("provider=" + provider);
+            }
+            
+            BeeTree<byte[], byte[]> tree
+                = new BeeTree<byte[], byte[]>(nodes, BINDING);
+            
+            try {
+                for (String operation : OPERATIONS) {
+                    Result result = measure(tree, operation);
+                    if (print) {
+                        System.out.println(this + "," + operation
+                                + "," + result);
+                    }
+                }
+            } finally {
+                if (nodes instanceof FileNodeProvider) {
+                    ((FileNodeProvider)nodes).close();
+                }
+                
+                if (directory != null) {
+                    delete(directory);
+                }
+            }
+        }
+        
+        /**
+         * Runs the operation {@link #count} times and splits the
+         * operations evenly among the threads.
+         */
+        private Result measure(final BeeTree<byte[], byte[]> tree,
+                final String operation) throws InterruptedException {
+            
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threads);
+            final long[][] latencies = new long[threads][];
+            final Throwable[] errors = new Throwable[threads];
+            
+            for (int i = 0; i < threads; i++) {
+                final int thread = i;
+                Thread worker = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                            latencies[thread] = execute(tree,
+                                    operation, thread);
+                        } catch (Throwable err) {
+                            errors[thread] = err;
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }, "Benchmark-" + thread);
+                worker.start();
+            }
+            
+            long time = System.nanoTime();
+            start.countDown();
+            done.await();
+            time = System.nanoTime() - time;
+            
+            for (Throwable error : errors) {
+                if (error != null) {
+                    throw new IllegalStateException(operation, error);
+                }
+            }
+            
+            return new Result(count, time, latencies);
+        }
+        
+        private long[] execute(BeeTree<byte[], byte[]> tree,
+                String operation, int thread) {
+            
+            Random random = new Random(thread);
+            
+            byte[] value = new byte[valueSize];
+            random.nextBytes(value);
+            
+            int operations = count / threads
+                + (thread < count % threads ? 1 : 0);
+            long[] latencies = new long[operations];
+            
+            for (int i = 0; i < operations; i++) {
+                long index = keys.next((long)i * threads + thread, random);
+                byte[] key = key(index, keySize);
+                
+                long time = System.nanoTime();
+                
+                if (operation.equals("put")) {
+                    tree.put(key, value);
+                } else if (operation.equals("get")) {
+                    tree.get(key);
+                } else if (operation.equals("ceiling")) {
+                    tree.ceilingEntry(key);
+                } else if (operation.equals("floor")) {
+                    tree.floorEntry(key);
+                } else if (operation.equals("iterator")) {
+                    Iterator<Entry<byte[], byte[]>> it
+                        = tree.iterator(key, true);
+                    for (int j = 0; j < scan && it.hasNext(); j++) {
+                        it.next();
+                    }
+                } else if (operation.equals("remove")) {
+                    tree.remove(key);
+                } else {
+                    throw new IllegalArgumentException(operation);
+                }
+                
+                latencies[i] = System.nanoTime() - time;
+            }
+            
+            return latencies;
+        }
+        
+        private static void delete(File file) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    delete(f);
+                }
+            }
+            file.delete();
+        }
+        
+        @Override
+        public String toString() {
+            return provider + "," + t + "," + keys + "," + threads
+                + "," + keySize + "," + valueSize;
+        }
+    }
+    
+    /**
+     * The throughput and the latency percentiles of an operation.
+     */
+    private static class Result {
+        
+        private final double throughput;
+        
+        private final long[] latencies;
+        
+        public Result(int count, long time, long[][] latencies) {
+            this.throughput = count / (time / 1000000000.0);
+            
+            int length = 0;
+            for (long[] l : latencies) {
+                length += l.length;
+            }
+            
+            this.latencies = new long[length];
+            
+            int offset = 0;
+            for (long[] l : latencies) {
+                System.arraycopy(l, 0, this.latencies, offset, l.length);
+                offset += l.length;
+            }
+            
+            Arrays.sort(this.latencies);
+        }
+        
+        /**
+         * Returns the given percentile in microseconds.
+         */
+        public double percentile(double p) {
+            if (latencies.length == 0) {
+                return 0.0;
+            }
+            
+            int index = (int)Math.ceil(p * latencies.length) - 1;
+            index = Math.max(0, Math.min(latencies.length - 1, index));
+            return latencies[index] / 1000.0;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%.0f,%.2f,%.2f,%.2f", throughput,
+                    percentile(0.5), percentile(0.99), percentile(0.999));
+        }
+    }
+}
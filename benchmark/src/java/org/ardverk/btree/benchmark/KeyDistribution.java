@@ -0,0 +1,177 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree.benchmark;
+
+import java.util.Random;
+
+/**
+ * Picks the keys of a benchmark from a key space of a fixed size.
+ */
+abstract class KeyDistribution {
+    
+    /**
+     * Creates the {@link KeyDistribution} with the given name.
+     *
+     * @see #SEQUENTIAL
+     * @see #UNIFORM
+     * @see #ZIPFIAN
+     */
+    public static KeyDistribution create(String name, long count) {
+        if (SEQUENTIAL.equals(name)) {
+            return new Sequential(count);
+        } else if (UNIFORM.equals(name)) {
+            return new Uniform(count);
+        } else if (ZIPFIAN.equals(name)) {
+            return new Zipfian(count, Zipfian.DEFAULT_THETA);
+        }
+        
+        throw new IllegalArgumentException("name=" + name);
+    }
+    
+    public static final String SEQUENTIAL = "sequential";
+    
+    public static final String UNIFORM = "uniform";
+    
+    public static final String ZIPFIAN = "zipfian";
+    
+    protected final long count;
+    
+    private KeyDistribution(long count) {
+        if (count <= 0L) {
+            throw new IllegalArgumentException("count=" + count);
+        }
+        this.count = count;
+    }
+    
+    /**
+     * Returns the key of the given operation.
+     */
+    public abstract long next(long operation, Random random);
+    
+    /**
+     * Every operation uses the next key.
+     */
+    private static class Sequential extends KeyDistribution {
+        
+        private Sequential(long count) {
+            super(count);
+        }
+        
+        @Override
+        public long next(long operation, Random random) {
+            return operation % count;
+        }
+        
+        @Override
+        public String toString() {
+            return SEQUENTIAL;
+        }
+    }
+    
+    /**
+     * Every key is equally likely.
+     */
+    private static class Uniform extends KeyDistribution {
+        
+        private Uniform(long count) {
+            super(count);
+        }
+        
+        @Override
+        public long next(long operation, Random random) {
+            return (random.nextLong() & Long.MAX_VALUE) % count;
+        }
+        
+        @Override
+        public String toString() {
+            return UNIFORM;
+        }
+    }
+    
+    /**
+     * A few keys are very popular and most keys are rarely used. It's
+     * the algorithm of Gray et al., "Quickly Generating Billion-Record
+     * Synthetic Databases". The popular keys are scattered over the key
+     * space or they'd all end up next to each other in the same leaves.
+     */
+    private static class Zipfian extends KeyDistribution {
+        
+        private static final double DEFAULT_THETA = 0.99;
+        
+        private final double theta;
+        
+        private final double alpha;
+        
+        private final double zetan;
+        
+        private final double eta;
+        
+        private Zipfian(long count, double theta) {
+            super(count);
+            
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.zetan = zeta(count, theta);
+            
+            double zeta2 = zeta(2, theta);
+            this.eta = (1.0 - Math.pow(2.0 / count, 1.0 - theta))
+                / (1.0 - zeta2 / zetan);
+        }
+        
+        private static double zeta(long count, double theta) {
+            double sum = 0.0;
+            for (long i = 1; i <= count; i++) {
+                sum += 1.0 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+        
+        @Override
+        public long next(long operation, Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            
+            long rank;
+            if (uz < 1.0) {
+                rank = 0L;
+            } else if (uz < 1.0 + Math.pow(0.5, theta)) {
+                rank = 1L;
+            } else {
+                rank = (long)(count * Math.pow(eta * u - eta + 1.0, alpha));
+            }
+            
+            return scramble(Math.min(rank, count - 1L));
+        }
+        
+        /**
+         * FNV-1a of the rank.
+         */
+        private long scramble(long rank) {
+            long hash = 0xCBF29CE484222325L;
+            for (int i = 0; i < 8; i++) {
+                hash ^= (rank >>> (i * 8)) & 0xFFL;
+                hash *= 0x100000001B3L;
+            }
+            return (hash & Long.MAX_VALUE) % count;
+        }
+        
+        @Override
+        public String toString() {
+            return ZIPFIAN;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the operations of a {@link BeeTree} on an {@link Executor} and 
+ * returns a {@link Future} right away. The caller is never blocked by 
+ * a {@link NodeProvider} that has to read a {@link Node} from disk and 
+ * it's told about the result by an optional {@link Callback}.
+ * 
+ * The {@link Executor} must run the operations one at a time unless the
+ * {@link NodeProvider} is safe to use from multiple threads. Lookups of
+ * the same key that are waiting to be run are merged into one task but
+ * every caller gets a {@link Future} of its own. A put or remove of the
+ * key ends the merging and the lookups after it see its result.
+ */
+public class AsyncBeeTree<K, V> {
+    
+    /**
+     * A {@link Callback} is called by the thread that completed the 
+     * operation or by the thread that added it to a {@link Future} 
+     * that was already done.
+     */
+    public static interface Callback<T> {
+        
+        /**
+         * Called with the result of the operation.
+         */
+        public void completed(T result);
+        
+        /**
+         * Called if the operation failed or was cancelled.
+         */
+        public void failed(Throwable cause);
+    }
+    
+    private final BeeTree<K, V> tree;
+    
+    private final Executor executor;
+    
+    /**
+     * The lookups that are waiting to be run.
+     */
+    private final ConcurrentMap<K, Task<V>> lookups
+        = new ConcurrentHashMap<K, Task<V>>();
+    
+    public AsyncBeeTree(BeeTree<K, V> tree, Executor executor) {
+        this.tree = tree;
+        this.executor = executor;
+    }
+    
+    public BeeTree<K, V> getBeeTree() {
+        return tree;
+    }
+    
+    public Future<V> getAsync(K key) {
+        return getAsync(key, null);
+    }
+    
+    /**
+     * Looks up the value of the given key. The lookup shares a task with
+     * all lookups of the key that are waiting to be run. Cancelling the
+     * returned {@link Future} cancels only this lookup and not the task.
+     * An exception of the {@link Executor} is thrown to the caller and 
+     * the lookups that share the task fail with it.
+     */
+    public Future<V> getAsync(final K key, Callback<? super V> callback) {
+        Task<V> task = lookups.get(key);
+        
+        if (task == null) {
+            Task<V> created = new Task<V>(new Callable<V>() {
+                @Override
+                public V call() {
+                    // The task is removed before the value is read. A
+                    // lookup of the key that comes in between starts a
+                    // task of its own instead of joining this one. It
+                    // may also end the merging into a later task but
+                    // that one runs anyways.
+                    lookups.remove(key);
+                    return tree.get(key);
+                }
+            });
+            
+            task = lookups.putIfAbsent(key, created);
+            if (task == null) {
+                task = created;
+                
+                // The lookups that joined the task in the meantime
+                // fail with the same exception as this one
+                try {
+                    executor.execute(task);
+                } catch (RuntimeException err) {
+                    lookups.remove(key, created);
+                    created.setException(err);
+                    throw err;
+                }
+            }
+        }
+        
+        Lookup<V> lookup = new Lookup<V>(callback);
+        task.addCallback(lookup);
+        return lookup;
+    }
+    
+    public Future<V> putAsync(K key, V value) {
+        return putAsync(key, value, null);
+    }
+    
+    /**
+     * Puts the Key-Value and returns the previous value.
+     */
+    public Future<V> putAsync(final K key, final V value,
+            Callback<? super V> callback) {
+        
+        lookups.remove(key);
+        
+        return execute(new Callable<V>() {
+            @Override
+            public V call() {
+                return tree.put(key, value);
+            }
+        }, callback);
+    }
+    
+    public Future<V> removeAsync(K key) {
+        return removeAsync(key, null);
+    }
+    
+    /**
+     * Removes the key and returns its value.
+     */
+    public Future<V> removeAsync(final K key, Callback<? super V> callback) {
+        lookups.remove(key);
+        
+        return execute(new Callable<V>() {
+            @Override
+            public V call() {
+                return tree.remove(key);
+            }
+        }, callback);
+    }
+    
+    public Future<List<Entry<K, V>>> scanAsync(K from, boolean fromInclusive,
+            K to, boolean toInclusive, int limit) {
+        return scanAsync(from, fromInclusive, to, toInclusive, limit, null);
+    }
+    
+    /**
+     * Returns up to limit entries from one key to another. A {@code null}
+     * bound is the first or the last key. The entries are copied and 
+     * they stay valid after the tree has changed.
+     */
+    public Future<List<Entry<K, V>>> scanAsync(final K from,
+            final boolean fromInclusive, final K to, final boolean toInclusive,
+            final int limit, Callback<? super List<Entry<K, V>>> callback) {
+        
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit=" + limit);
+        }
+        
+        return execute(new Callable<List<Entry<K, V>>>() {
+            @Override
+            public List<Entry<K, V>> call() {
+                List<Entry<K, V>> entries = new ArrayList<Entry<K, V>>();
+                
+                Iterator<Entry<K, V>> it = tree.range(
+                        from, fromInclusive, to, toInclusive);
+                while (entries.size() < limit && it.hasNext()) {
+                    Entry<K, V> entry = it.next();
+                    entries.add(new AbstractMap.SimpleImmutableEntry<K, V>(
+                            entry.getKey(), entry.getValue()));
+                }
+                
+                return entries;
+            }
+        }, callback);
+    }
+    
+    private <T> Future<T> execute(Callable<T> callable,
+            Callback<? super T> callback) {
+        Task<T> task = new Task<T>(callable);
+        task.addCallback(callback);
+        executor.execute(task);
+        return task;
+    }
+    
+    /**
+     * A {@link FutureTask} that calls its {@link Callback}s when it's done.
+     * The {@link Callback}s are guarded by a {@link ReentrantLock} and not
+     * by the {@link Task}'s monitor.
+     */
+    private static class Task<T> extends FutureTask<T> {
+        
+        private final ReentrantLock lock = new ReentrantLock();
+        
+        private List<Callback<? super T>> callbacks = null;
+        
+        private boolean done = false;
+        
+        public Task(Callable<T> callable) {
+            super(callable);
+        }
+        
+        /**
+         * Completes the {@link Task} with the given cause unless it's 
+         * done already.
+         */
+        @Override
+        public void setException(Throwable cause) {
+            super.setException(cause);
+        }
+        
+        public void addCallback(Callback<? super T> callback) {
+            if (callback == null) {
+                return;
+            }
+            
+            lock.lock();
+            try {
+                if (!done) {
+                    if (callbacks == null) {
+                        callbacks = new ArrayList<Callback<? super T>>();
+                    }
+                    callbacks.add(callback);
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            
+            complete(callback);
+        }
+        
+        @Override
+        protected void done() {
+            List<Callback<? super T>> callbacks = null;
+            lock.lock();
+            try {
+                done = true;
+                callbacks = this.callbacks;
+                this.callbacks = null;
+            } finally {
+                lock.unlock();
+            }
+            
+            if (callbacks != null) {
+                for (Callback<? super T> callback : callbacks) {
+                    complete(callback);
+                }
+            }
+        }
+        
+        private void complete(Callback<? super T> callback) {
+            T result = null;
+            try {
+                result = get();
+            } catch (ExecutionException err) {
+                callback.failed(err.getCause());
+                return;
+            } catch (CancellationException err) {
+                callback.failed(err);
+                return;
+            } catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                callback.failed(err);
+                return;
+            }
+            
+            callback.completed(result);
+        }
+    }
+    
+    /**
+     * The {@link Future} of one of the lookups that share a {@link Task}.
+     * It's completed by the shared {@link Task} and cancelling it has no
+     * effect on the shared {@link Task}.
+     */
+    private static class Lookup<T> implements Future<T>, Callback<T> {
+        
+        private final ReentrantLock lock = new ReentrantLock();
+        
+        private final Condition completion = lock.newCondition();
+        
+        private final Callback<? super T> callback;
+        
+        private boolean done = false;
+        
+        private boolean cancelled = false;
+        
+        private T result = null;
+        
+        private Throwable cause = null;
+        
+        public Lookup(Callback<? super T> callback) {
+            this.callback = callback;
+        }
+        
+        @Override
+        public void completed(T result) {
+            if (complete(result, null, false) && callback != null) {
+                callback.completed(result);
+            }
+        }
+        
+        @Override
+        public void failed(Throwable cause) {
+            if (complete(null, cause, false) && callback != null) {
+                callback.failed(cause);
+            }
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!complete(null, null, true)) {
+                return false;
+            }
+            
+            if (callback != null) {
+                callback.failed(new CancellationException());
+            }
+            return true;
+        }
+        
+        /**
+         * Returns {@code false} if the {@link Lookup} is done already.
+         */
+        private boolean complete(T result, Throwable cause, boolean cancelled) {
+            lock.lock();
+            try {
+                if (done) {
+                    return false;
+                }
+                
+                this.done = true;
+                this.cancelled = cancelled;
+                this.result = result;
+                this.cause = cause;
+                
+                completion.signalAll();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public boolean isCancelled() {
+            lock.lock();
+            try {
+                return cancelled;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public boolean isDone() {
+            lock.lock();
+            try {
+                return done;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            lock.lock();
+            try {
+                while (!done) {
+                    completion.await();
+                }
+                return report();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            long nanos = unit.toNanos(timeout);
+            
+            lock.lock();
+            try {
+                while (!done) {
+                    if (nanos <= 0L) {
+                        throw new TimeoutException();
+                    }
+                    nanos = completion.awaitNanos(nanos);
+                }
+                return report();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        private T report() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            
+            if (cause != null) {
+                throw new ExecutionException(cause);
+            }
+            
+            return result;
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package org.ardverk.btree;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 
@@ -29,16 +31,43 @@ public interface BST<K, V> extends Iterable<Map.Entry<K, V>> {
      */
     public V put(K key, V value);
 
+    /**
+     * 
+     */
+    public void putAll(Map<? extends K, ? extends V> map);
+    
     /**
      * 
      */
     public V remove(K key);
 
+    /**
+     * 
+     */
+    public int removeAll(Collection<? extends K> keys);
+    
     /**
      * 
      */
     public V get(K key);
     
+    /**
+     * Returns a read-only view of the value of the given key without
+     * decoding it or {@code null} if there is no such key.
+     */
+    public ByteBuffer getRaw(K key);
+    
+    /**
+     * Calls the {@link ValueVisitor} with the value of the given key 
+     * and returns its result or {@code null} if there is no such key.
+     */
+    public <R> R get(K key, ValueVisitor<R> visitor);
+    
+    /**
+     * 
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys);
+    
     /**
      * 
      */
@@ -49,6 +78,21 @@ public interface BST<K, V> extends Iterable<Map.Entry<K, V>> {
      */
     public Map.Entry<K, V> ceilingEntry(K key);
 
+    /**
+     * 
+     */
+    public Map.Entry<K, V> higherEntry(K key);
+    
+    /**
+     * 
+     */
+    public Map.Entry<K, V> floorEntry(K key);
+    
+    /**
+     * 
+     */
+    public Map.Entry<K, V> lowerEntry(K key);
+    
     /**
      * 
      */
@@ -59,6 +103,22 @@ public interface BST<K, V> extends Iterable<Map.Entry<K, V>> {
      */
     public Map.Entry<K, V> lastEntry();
 
+    /**
+     * Returns the number of entries whose keys are less than the key.
+     */
+    public int rank(K key);
+    
+    /**
+     * Returns the entry at the given position in the order of the keys.
+     */
+    public Map.Entry<K, V> select(int index);
+    
+    /**
+     * Returns the number of entries from one key (inclusive) to 
+     * another (exclusive).
+     */
+    public int count(K from, K to);
+    
     /**
      * 
      */
@@ -84,4 +144,20 @@ public interface BST<K, V> extends Iterable<Map.Entry<K, V>> {
      */
     public Iterator<Map.Entry<K, V>> iterator(K key, boolean inclusive);
 
+    /**
+     * 
+     */
+    public Iterator<Map.Entry<K, V>> descendingIterator();
+    
+    /**
+     * 
+     */
+    public Iterator<Map.Entry<K, V>> descendingIterator(K key, boolean inclusive);
+    
+    /**
+     * 
+     */
+    public Iterator<Map.Entry<K, V>> range(K from, boolean fromInclusive,
+            K to, boolean toInclusive);
+
 }
\ No newline at end of file
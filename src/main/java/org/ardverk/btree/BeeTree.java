@@ -16,7 +16,10 @@
 
 package org.ardverk.btree;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -63,6 +66,43 @@ public class BeeTree<K, V> extends AbstractBeeTree<K, V> {
         return v2o(tuple);
     }
 
+    /**
+     * Puts all Key-Values. The keys are encoded once and sorted and
+     * keys that fall into the same leaf share a walk down the tree.
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map) {
+        byte[][] keys = new byte[map.size()][];
+        byte[][] values = new byte[map.size()][];
+        
+        int index = 0;
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            keys[index] = o2k(entry.getKey());
+            values[index] = o2v(entry.getValue());
+            ++index;
+        }
+        
+        r().putAll(keys, values);
+    }
+    
+    /**
+     * Removes all keys and returns the number of removed Key-Values.
+     * 
+     * @see #putAll(Map)
+     */
+    @Override
+    public int removeAll(Collection<? extends K> keys) {
+        Tuple[] tuples = r().removeAll(encode(keys));
+        
+        int count = 0;
+        for (Tuple tuple : tuples) {
+            if (tuple != null) {
+                ++count;
+            }
+        }
+        return count;
+    }
+    
     @Override
     public void clear() {
         r().clear();
@@ -73,6 +113,51 @@ public class BeeTree<K, V> extends AbstractBeeTree<K, V> {
         Tuple tuple = r().get(o2k(key));
         return v2o(tuple);
     }
+    
+    /**
+     * The view shares the storage of the {@link Node} and it's only 
+     * valid until the next change to the tree.
+     */
+    @Override
+    public ByteBuffer getRaw(K key) {
+        return r().getRaw(o2k(key));
+    }
+    
+    @Override
+    public <R> R get(K key, ValueVisitor<R> visitor) {
+        return r().get(o2k(key), visitor);
+    }
+    
+    /**
+     * Returns the Key-Values of all keys that are in the tree.
+     * 
+     * @see #putAll(Map)
+     */
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Tuple[] tuples = r().getAll(encode(keys));
+        
+        Map<K, V> values = new LinkedHashMap<K, V>();
+        
+        int index = 0;
+        for (K key : keys) {
+            Tuple tuple = tuples[index++];
+            if (tuple != null) {
+                values.put(key, v2o(tuple));
+            }
+        }
+        return values;
+    }
+    
+    private byte[][] encode(Collection<? extends K> keys) {
+        byte[][] encoded = new byte[keys.size()][];
+        
+        int index = 0;
+        for (K key : keys) {
+            encoded[index++] = o2k(key);
+        }
+        return encoded;
+    }
 
     @Override
     public boolean contains(K key) {
@@ -85,6 +170,24 @@ public class BeeTree<K, V> extends AbstractBeeTree<K, V> {
         Tuple tuple = r().ceilingTuple(o2k(key));
         return tuple != null ? new TupleEntry(tuple) : null;
     }
+    
+    @Override
+    public Entry<K, V> higherEntry(K key) {
+        Tuple tuple = r().higherTuple(o2k(key));
+        return tuple != null ? new TupleEntry(tuple) : null;
+    }
+    
+    @Override
+    public Entry<K, V> floorEntry(K key) {
+        Tuple tuple = r().floorTuple(o2k(key));
+        return tuple != null ? new TupleEntry(tuple) : null;
+    }
+    
+    @Override
+    public Entry<K, V> lowerEntry(K key) {
+        Tuple tuple = r().lowerTuple(o2k(key));
+        return tuple != null ? new TupleEntry(tuple) : null;
+    }
 
     @Override
     public Entry<K, V> firstEntry() {
@@ -97,6 +200,32 @@ public class BeeTree<K, V> extends AbstractBeeTree<K, V> {
         Tuple tuple = r().lastTuple();
         return tuple != null ? new TupleEntry(tuple) : null;
     }
+    
+    @Override
+    public int rank(K key) {
+        return r().rank(o2k(key), false);
+    }
+    
+    @Override
+    public Entry<K, V> select(int index) {
+        return new TupleEntry(r().select(index));
+    }
+    
+    @Override
+    public int count(K from, K to) {
+        return count(from, true, to, false);
+    }
+    
+    /**
+     * Returns the number of entries from one key to another. Either
+     * key may be {@code null} for no bound.
+     */
+    public int count(K from, boolean fromInclusive,
+            K to, boolean toInclusive) {
+        byte[] fromKey = (from != null ? o2k(from) : null);
+        byte[] toKey = (to != null ? o2k(to) : null);
+        return r().count(fromKey, fromInclusive, toKey, toInclusive);
+    }
 
     @Override
     public int size() {
@@ -107,6 +236,32 @@ public class BeeTree<K, V> extends AbstractBeeTree<K, V> {
     public boolean isEmpty() {
         return r().isEmpty();
     }
+    
+    /**
+     * Loads the given entries into the empty tree. The entries must be
+     * sorted in the order of their binary keys.
+     * 
+     * @see BulkLoader
+     */
+    public void load(Iterator<? extends Entry<K, V>> entries) {
+        load(entries, BulkLoader.DEFAULT_FILL_FACTOR);
+    }
+    
+    /**
+     * Loads the given entries into the empty tree and fills the 
+     * {@link Node}s up to the given fraction of their capacity.
+     * 
+     * @see BulkLoader
+     */
+    public void load(Iterator<? extends Entry<K, V>> entries,
+            float fillFactor) {
+        BulkLoader loader = new BulkLoader(provider, fillFactor);
+        while (entries.hasNext()) {
+            Entry<K, V> entry = entries.next();
+            loader.add(o2k(entry.getKey()), o2v(entry.getValue()));
+        }
+        loader.finish();
+    }
 
     @Override
     public Iterator<Entry<K, V>> iterator() {
@@ -120,6 +275,91 @@ public class BeeTree<K, V> extends AbstractBeeTree<K, V> {
         return new EntryIterator(it);
     }
     
+    @Override
+    public Iterator<Entry<K, V>> descendingIterator() {
+        Iterator<Tuple> it = r().descendingIterator();
+        return new EntryIterator(it);
+    }
+    
+    @Override
+    public Iterator<Entry<K, V>> descendingIterator(K key, boolean inclusive) {
+        Iterator<Tuple> it = r().descendingIterator(o2k(key), inclusive);
+        return new EntryIterator(it);
+    }
+    
+    @Override
+    public Iterator<Entry<K, V>> range(K from, boolean fromInclusive,
+            K to, boolean toInclusive) {
+        return range(from, fromInclusive, to, toInclusive, false);
+    }
+    
+    /**
+     * Returns an {@link Iterator} over the entries from one key to 
+     * another. The bounds are compared in their binary form and the
+     * entries past the upper bound are never decoded.
+     */
+    Iterator<Entry<K, V>> range(K from, boolean fromInclusive,
+            K to, boolean toInclusive, boolean descending) {
+        
+        byte[] fromKey = (from != null ? o2k(from) : null);
+        byte[] toKey = (to != null ? o2k(to) : null);
+        
+        Iterator<Tuple> it = null;
+        if (descending) {
+            it = r().descendingIterator(fromKey, fromInclusive,
+                    toKey, toInclusive);
+        } else {
+            it = r().iterator(fromKey, fromInclusive, toKey, toInclusive);
+        }
+        
+        return new EntryIterator(it);
+    }
+    
+    /**
+     * Compares the two keys in the order of the tree.
+     */
+    int compare(K key1, K key2) {
+        return provider.getComparator().compare(o2k(key1), o2k(key2));
+    }
+    
+    /**
+     * Returns a view of the entries from one key to another.
+     */
+    public BeeTreeView<K, V> subMap(K from, boolean fromInclusive,
+            K to, boolean toInclusive) {
+        return view().subMap(from, fromInclusive, to, toInclusive);
+    }
+    
+    /**
+     * Returns a view of the entries that are less than 
+     * (or equal to) the given key.
+     */
+    public BeeTreeView<K, V> headMap(K to, boolean inclusive) {
+        return view().headMap(to, inclusive);
+    }
+    
+    /**
+     * Returns a view of the entries that are greater than 
+     * (or equal to) the given key.
+     */
+    public BeeTreeView<K, V> tailMap(K from, boolean inclusive) {
+        return view().tailMap(from, inclusive);
+    }
+    
+    /**
+     * Returns a view of all entries in descending order.
+     */
+    public BeeTreeView<K, V> descendingMap() {
+        return view().descendingMap();
+    }
+    
+    /**
+     * Returns a view of all entries.
+     */
+    private BeeTreeView<K, V> view() {
+        return new BeeTreeView<K, V>(this, null, true, null, true, false);
+    }
+    
     private class EntryIterator implements Iterator<Entry<K, V>> {
 
         private final Iterator<Tuple> it;
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * A view of a range of the entries of a {@link BeeTree} in ascending
+ * or descending order. It's backed by the tree and reflects all of its
+ * changes. The view's {@link Iterator}s stop at the end of the range
+ * without decoding any entries that are past it.
+ * 
+ * @see BeeTree#subMap(Object, boolean, Object, boolean)
+ * @see BeeTree#headMap(Object, boolean)
+ * @see BeeTree#tailMap(Object, boolean)
+ * @see BeeTree#descendingMap()
+ */
+public class BeeTreeView<K, V> implements Iterable<Entry<K, V>> {
+    
+    private final BeeTree<K, V> tree;
+    
+    /**
+     * The lower bound of the range or {@code null} if it has none.
+     */
+    private final K lo;
+    
+    private final boolean loInclusive;
+    
+    /**
+     * The upper bound of the range or {@code null} if it has none.
+     */
+    private final K hi;
+    
+    private final boolean hiInclusive;
+    
+    private final boolean descending;
+    
+    BeeTreeView(BeeTree<K, V> tree, K lo, boolean loInclusive,
+            K hi, boolean hiInclusive, boolean descending) {
+        
+        if (lo != null && hi != null && 0 < tree.compare(lo, hi)) {
+            throw new IllegalArgumentException("lo > hi");
+        }
+        
+        this.tree = tree;
+        this.lo = lo;
+        this.loInclusive = loInclusive;
+        this.hi = hi;
+        this.hiInclusive = hiInclusive;
+        this.descending = descending;
+    }
+    
+    /**
+     * Returns {@code true} if the key is less than the lower bound. 
+     * An inclusive key is also too low if it's equal to an exclusive 
+     * lower bound.
+     */
+    private boolean isTooLow(K key, boolean inclusive) {
+        if (lo != null) {
+            int diff = tree.compare(key, lo);
+            return diff < 0 || (diff == 0 && !loInclusive && inclusive);
+        }
+        return false;
+    }
+    
+    /**
+     * @see #isTooLow(Object, boolean)
+     */
+    private boolean isTooHigh(K key, boolean inclusive) {
+        if (hi != null) {
+            int diff = tree.compare(key, hi);
+            return 0 < diff || (diff == 0 && !hiInclusive && inclusive);
+        }
+        return false;
+    }
+    
+    private boolean isInRange(K key) {
+        return !isTooLow(key, true) && !isTooHigh(key, true);
+    }
+    
+    private void checkInRange(K key, boolean inclusive) {
+        if (isTooLow(key, inclusive) || isTooHigh(key, inclusive)) {
+            throw new IllegalArgumentException("Key out of range: " + key);
+        }
+    }
+    
+    /**
+     * Returns the value of the given key or {@code null} if the key
+     * is not in the range or not in the tree.
+     */
+    public V get(K key) {
+        return isInRange(key) ? tree.get(key) : null;
+    }
+    
+    /**
+     * Returns {@code true} if the key is in the range and in the tree.
+     */
+    public boolean contains(K key) {
+        return isInRange(key) && tree.contains(key);
+    }
+    
+    /**
+     * Returns the first entry in the order of the view.
+     */
+    public Entry<K, V> firstEntry() {
+        Iterator<Entry<K, V>> it = iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+    
+    /**
+     * Returns the last entry in the order of the view.
+     */
+    public Entry<K, V> lastEntry() {
+        Iterator<Entry<K, V>> it = descendingIterator();
+        return it.hasNext() ? it.next() : null;
+    }
+    
+    public boolean isEmpty() {
+        return !iterator().hasNext();
+    }
+    
+    /**
+     * Returns the number of entries in the range.
+     * 
+     * @see BeeTree#count(Object, boolean, Object, boolean)
+     */
+    public int size() {
+        return tree.count(lo, loInclusive, hi, hiInclusive);
+    }
+    
+    @Override
+    public Iterator<Entry<K, V>> iterator() {
+        return iterator(descending);
+    }
+    
+    /**
+     * Returns an {@link Iterator} in the reverse order of the view.
+     */
+    public Iterator<Entry<K, V>> descendingIterator() {
+        return iterator(!descending);
+    }
+    
+    private Iterator<Entry<K, V>> iterator(boolean descending) {
+        if (descending) {
+            return tree.range(hi, hiInclusive, lo, loInclusive, true);
+        }
+        return tree.range(lo, loInclusive, hi, hiInclusive, false);
+    }
+    
+    /**
+     * Returns a view of the entries from one key to another in the
+     * order of this view.
+     */
+    public BeeTreeView<K, V> subMap(K from, boolean fromInclusive,
+            K to, boolean toInclusive) {
+        checkInRange(from, fromInclusive);
+        checkInRange(to, toInclusive);
+        
+        if (descending) {
+            return new BeeTreeView<K, V>(tree, to, toInclusive,
+                    from, fromInclusive, descending);
+        }
+        return new BeeTreeView<K, V>(tree, from, fromInclusive,
+                to, toInclusive, descending);
+    }
+    
+    /**
+     * Returns a view of the entries that come before (or are equal to)
+     * the given key in the order of this view.
+     */
+    public BeeTreeView<K, V> headMap(K to, boolean inclusive) {
+        checkInRange(to, inclusive);
+        
+        if (descending) {
+            return new BeeTreeView<K, V>(tree, to, inclusive,
+                    hi, hiInclusive, descending);
+        }
+        return new BeeTreeView<K, V>(tree, lo, loInclusive,
+                to, inclusive, descending);
+    }
+    
+    /**
+     * Returns a view of the entries that come after (or are equal to)
+     * the given key in the order of this view.
+     */
+    public BeeTreeView<K, V> tailMap(K from, boolean inclusive) {
+        checkInRange(from, inclusive);
+        
+        if (descending) {
+            return new BeeTreeView<K, V>(tree, lo, loInclusive,
+                    from, inclusive, descending);
+        }
+        return new BeeTreeView<K, V>(tree, from, inclusive,
+                hi, hiInclusive, descending);
+    }
+    
+    /**
+     * Returns a view of the same range in the reverse order.
+     */
+    public BeeTreeView<K, V> descendingMap() {
+        return new BeeTreeView<K, V>(tree, lo, loInclusive,
+                hi, hiInclusive, !descending);
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("[");
+        
+        Iterator<Entry<K, V>> it = iterator();
+        while (it.hasNext()) {
+            sb.append(it.next());
+            if (it.hasNext()) {
+                sb.append(", ");
+            }
+        }
+        
+        sb.append("]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+/**
+ * A {@link BlobStore} holds the values that are too large to be stored
+ * in a {@link Node}. The {@link Node} keeps a reference to the value 
+ * and the value is only read when it's needed.
+ * 
+ * @see BlobTuple
+ */
+public interface BlobStore {
+    
+    /**
+     * Reads and returns the value of the given reference.
+     */
+    public byte[] read(byte[] reference);
+}
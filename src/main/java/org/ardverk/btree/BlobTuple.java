@@ -0,0 +1,66 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A {@link Tuple} whose value is in a {@link BlobStore}. It holds the 
+ * reference of the value and the value is read every time it's 
+ * requested with {@link #getValue()}.
+ */
+public class BlobTuple extends Tuple {
+    
+    private final byte[] reference;
+    
+    private final BlobStore store;
+    
+    public BlobTuple(byte[] key, byte[] reference, BlobStore store) {
+        super(key, null);
+        
+        this.reference = reference;
+        this.store = store;
+    }
+    
+    /**
+     * Returns the reference of the value.
+     */
+    public byte[] getReference() {
+        return reference;
+    }
+    
+    /**
+     * Reads the value from the {@link BlobStore}.
+     */
+    @Override
+    public byte[] getValue() {
+        return store.read(reference);
+    }
+    
+    @Override
+    public String toString() {
+        // The references of FileNodeProvider are the ids of the blobs
+        String id = null;
+        if (reference.length == 8) {
+            id = String.valueOf(ByteBuffer.wrap(reference).getLong());
+        } else {
+            id = Arrays.toString(reference);
+        }
+        return new String(getKey()) + "=@" + id;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.ardverk.btree.NodeProvider.Intent;
+
+/**
+ * Builds a tree bottom-up from {@link Tuple}s that are sorted by their
+ * keys. Every {@link Node} is filled up to the fill factor before the
+ * next {@link Tuple} moves up to the parent and a new {@link Node} is
+ * started. The right-most {@link Node}s are balanced with their left
+ * siblings when the {@link BulkLoader} is finished.
+ *
+ * The {@link RootNode} of the {@link NodeProvider} must be empty. The
+ * loaded {@link Tuple}s are not written to a {@link WriteAheadLog} and
+ * should be flushed to disk once the {@link BulkLoader} is finished.
+ */
+public class BulkLoader {
+    
+    /**
+     * The default fill factor packs all {@link Node}s.
+     */
+    public static final float DEFAULT_FILL_FACTOR = 1.0f;
+    
+    private final NodeProvider provider;
+    
+    /**
+     * The number of {@link Tuple}s per {@link Node}.
+     */
+    private final int fill;
+    
+    /**
+     * The minimum number of {@link Tuple}s of a {@link Node} other
+     * than the root.
+     */
+    private final int minSize;
+    
+    /**
+     * The right-most {@link Node} of every level, starting with the leaf.
+     */
+    private final List<NodeId> spine = new ArrayList<NodeId>();
+    
+    private Node leaf = null;
+    
+    private byte[] last = null;
+    
+    private int size = 0;
+    
+    private boolean open = true;
+    
+    public BulkLoader(NodeProvider provider) {
+        this(provider, DEFAULT_FILL_FACTOR);
+    }
+    
+    /**
+     * Creates a {@link BulkLoader} that fills the {@link Node}s up
+     * to the given fraction of their capacity.
+     */
+    public BulkLoader(NodeProvider provider, float fillFactor) {
+        if (fillFactor <= 0f || 1f < fillFactor) {
+            throw new IllegalArgumentException("fillFactor=" + fillFactor);
+        }
+        
+        RootNode root = provider.getRoot();
+        if (!root.isEmpty()) {
+            throw new IllegalStateException("Not empty");
+        }
+        
+        int maxSize = root.getRoot().getTuples().getMaxSize();
+        
+        this.provider = provider;
+        this.minSize = (maxSize - 1) / 2;
+        this.fill = Math.max(Math.max(1, minSize),
+                Math.min(maxSize, (int)(fillFactor * maxSize)));
+    }
+    
+    /**
+     * Returns the number of {@link Tuple}s that were added so far.
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Adds all {@link Tuple}s.
+     *
+     * @see #add(byte[], byte[])
+     */
+    public void addAll(Iterator<? extends Tuple> tuples) {
+        while (tuples.hasNext()) {
+            Tuple tuple = tuples.next();
+            add(tuple.getKey(), tuple.getValue());
+        }
+    }
+    
+    /**
+     * Adds a Key-Value. The key must be greater than the key of the
+     * previous Key-Value.
+     */
+    public void add(byte[] key, byte[] value) {
+        if (!open) {
+            throw new IllegalStateException();
+        }
+        
+        if (last != null && 0 <= provider.getComparator().compare(last, key)) {
+            throw new IllegalArgumentException(
+                    "Keys must be unique and sorted");
+        }
+        
+        Tuple tuple = new Tuple(key, value);
+        
+        if (leaf == null) {
+            leaf = provider.allocate(0);
+            spine.add(leaf.getId());
+        }
+        
+        if (leaf.getTupleCount() < fill) {
+            leaf.addTuple(tuple);
+        } else {
+            // The Tuple moves up and separates the
+            // full leaf from the next one.
+            Node next = provider.allocate(0);
+            NodeId nodeId = next.getId();
+            
+            // The leaves of a B+-Tree keep all Tuples
+            // and a separator moves up instead.
+            if (next.isBPlusTree()) {
+                next.addTuple(tuple);
+                tuple = next.separator(last, key);
+                
+                leaf.setNext(nodeId);
+                next.setPrevious(leaf.getId());
+            }
+            
+            push(1, tuple, leaf, nodeId);
+            
+            spine.set(0, nodeId);
+            leaf = provider.get(nodeId, Intent.WRITE);
+        }
+        
+        last = key;
+        ++size;
+    }
+    
+    /**
+     * Adds the {@link Tuple} and the {@link NodeId} to its right to
+     * the right-most {@link Node} of the given level. The {@link Node}
+     * to the left is complete and its count is final.
+     */
+    private void push(int height, Tuple tuple, Node left, NodeId right) {
+        if (spine.size() == height) {
+            Node node = provider.allocate(height);
+            node.addNode(left.getId(), 0);
+            spine.add(node.getId());
+        }
+        
+        Node node = provider.get(spine.get(height), Intent.WRITE);
+        node.setCount(node.getNodeCount() - 1, left.getSubtreeSize());
+        
+        if (node.getTupleCount() < fill) {
+            node.addTuple(tuple);
+            node.addNode(right, 0);
+        } else {
+            Node next = provider.allocate(height);
+            next.addNode(right, 0);
+            
+            push(height + 1, tuple, node, next.getId());
+            spine.set(height, next.getId());
+        }
+    }
+    
+    /**
+     * Sets the counts of the right-most {@link Node}s that 
+     * were still growing while they were added.
+     */
+    private void count() {
+        for (int height = 1; height < spine.size(); height++) {
+            Node node = provider.get(spine.get(height), Intent.WRITE);
+            Node child = provider.get(spine.get(height - 1), Intent.READ);
+            node.setCount(node.getNodeCount() - 1, child.getSubtreeSize());
+        }
+    }
+    
+    /**
+     * Balances the right-most {@link Node}s and makes the tree the
+     * content of the {@link NodeProvider}'s {@link RootNode}.
+     */
+    public RootNode finish() {
+        if (!open) {
+            throw new IllegalStateException();
+        }
+        
+        open = false;
+        
+        RootNode root = provider.getRoot();
+        if (leaf != null) {
+            count();
+            
+            NodeId nodeId = spine.get(spine.size() - 1);
+            Node node = balance(provider.get(nodeId, Intent.WRITE));
+            root.load(node, size);
+        }
+        return root;
+    }
+    
+    /**
+     * Walks down the right-most path and fixes all {@link Node}s that
+     * have fewer than the minimum number of {@link Tuple}s. Merging
+     * two {@link Node}s takes a {@link Tuple} from the parent and so
+     * the walk starts over after every fix until nothing changes.
+     */
+    private Node balance(Node root) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            
+            while (!root.isLeaf() && root.isEmpty()) {
+                Node tmp = root.firstChildNode(provider, Intent.WRITE);
+                provider.free(root);
+                root = tmp;
+            }
+            
+            Node node = root;
+            while (!node.isLeaf()) {
+                int index = node.getNodeCount() - 1;
+                Node child = node.getNode(provider, index, Intent.WRITE);
+                
+                if (child.getTupleCount() < minSize) {
+                    node.fix(provider, child, index);
+                    changed = true;
+                    break;
+                }
+                
+                node = child;
+            }
+        }
+        
+        return root;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link NodeCache} that implements the CLOCK (second chance)
+ * algorithm. The {@link Entry}s form a ring and a hit only sets
+ * the reference bit of an {@link Entry}. The hand clears the bits
+ * as it sweeps over the ring and evicts the first {@link Entry}
+ * whose bit is not set.
+ */
+public class ClockNodeCache extends NodeCache {
+    
+    private final Map<NodeId, Entry> entries
+        = new HashMap<NodeId, Entry>();
+    
+    private Entry hand = null;
+    
+    public ClockNodeCache(long capacity) {
+        this(capacity, NODES);
+    }
+    
+    public ClockNodeCache(long capacity, Weigher weigher) {
+        super(capacity, weigher);
+    }
+    
+    @Override
+    public int size() {
+        return entries.size();
+    }
+    
+    @Override
+    protected Entry lookup(NodeId nodeId) {
+        Entry entry = entries.get(nodeId);
+        if (entry != null) {
+            entry.referenced = true;
+        }
+        return entry;
+    }
+    
+    @Override
+    protected void insert(Entry entry) {
+        entries.put(entry.node.getId(), entry);
+        
+        // Insert the Entry right behind the hand
+        if (hand == null) {
+            entry.prev = entry;
+            entry.next = entry;
+            hand = entry;
+        } else {
+            entry.next = hand;
+            entry.prev = hand.prev;
+            hand.prev.next = entry;
+            hand.prev = entry;
+        }
+    }
+    
+    @Override
+    protected Entry delete(NodeId nodeId) {
+        Entry entry = entries.remove(nodeId);
+        if (entry == null) {
+            return null;
+        }
+        
+        if (entry.next == entry) {
+            hand = null;
+        } else {
+            if (hand == entry) {
+                hand = entry.next;
+            }
+            
+            entry.prev.next = entry.next;
+            entry.next.prev = entry.prev;
+        }
+        
+        entry.prev = null;
+        entry.next = null;
+        return entry;
+    }
+    
+    @Override
+    protected Entry victim() {
+        // Two full sweeps clear every reference bit. Anything
+        // that is still standing after that is pinned.
+        int count = 2 * entries.size();
+        for (int i = 0; i < count && hand != null; i++) {
+            Entry entry = hand;
+            hand = hand.next;
+            
+            if (isPinned(entry)) {
+                continue;
+            }
+            
+            if (entry.referenced) {
+                entry.referenced = false;
+                continue;
+            }
+            
+            return entry;
+        }
+        return null;
+    }
+    
+    @Override
+    protected Iterable<Entry> entries() {
+        return entries.values();
+    }
+}
@@ -0,0 +1,853 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.ardverk.btree.Node.TupleNode;
+import org.ardverk.btree.NodeProvider.Intent;
+
+/**
+ * A thread-safe {@link RootNode} that uses latch coupling (crabbing).
+ *
+ * Readers hold a shared latch on at most two {@link Node}s (the parent
+ * and the child) on their way down. Writers do the same and only latch
+ * the leaf exclusively if the operation can't change the structure of
+ * the tree. Otherwise they start over with exclusive latches and split
+ * full {@link Node}s on their way down so that the parent can be
+ * released as soon as the child is known to be safe.
+ *
+ * Splitting the root and removals that have to merge or borrow from
+ * siblings are rare and they're executed under a tree-wide exclusive
+ * lock using the algorithms of {@link RootNode}.
+ *
+ * The {@link NodeProvider} must be thread-safe and return the same
+ * {@link Node} instance for as long as it's part of the tree.
+ */
+public class ConcurrentRootNode extends RootNode {
+    
+    /**
+     * Returned by the optimistic paths if they can't complete.
+     */
+    private static final Tuple RETRY = new Tuple(new byte[0], new byte[0]);
+    
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    private final NodeProvider provider;
+    
+    public ConcurrentRootNode(NodeProvider provider, Node root, int size) {
+        super(provider, root, size);
+        this.provider = provider;
+    }
+    
+    @Override
+    public Tuple get(byte[] key) {
+        Lock shared = lock.readLock();
+        shared.lock();
+        try {
+            Node node = getRoot();
+            node.readLatch().lock();
+            try {
+                while (true) {
+                    int index = node.binarySearch(key);
+                    if (index >= 0 && (node.isLeaf()
+                            || !node.isBPlusTree())) {
+                        return node.getTuple(index);
+                    }
+                    
+                    if (node.isLeaf()) {
+                        return null;
+                    }
+                    
+                    Node child = node.getNode(
+                            provider, node.childIndex(index), Intent.READ);
+                    child.readLatch().lock();
+                    node.readLatch().unlock();
+                    node = child;
+                }
+            } finally {
+                node.readLatch().unlock();
+            }
+        } finally {
+            shared.unlock();
+        }
+    }
+    
+    /**
+     * A view of the value would outlive the latch of its {@link Node} 
+     * and the value is copied.
+     */
+    @Override
+    public ByteBuffer getRaw(byte[] key) {
+        Tuple tuple = get(key);
+        return tuple != null
+                ? ByteBuffer.wrap(tuple.getValue()).asReadOnlyBuffer() : null;
+    }
+    
+    /**
+     * The {@link ValueVisitor} runs while the leaf is latched and reads
+     * the value in place.
+     */
+    @Override
+    public <R> R get(byte[] key, ValueVisitor<R> visitor) {
+        Lock shared = lock.readLock();
+        shared.lock();
+        try {
+            Node node = getRoot();
+            node.readLatch().lock();
+            try {
+                while (true) {
+                    int index = node.binarySearch(key);
+                    if (index >= 0 && (node.isLeaf()
+                            || !node.isBPlusTree())) {
+                        return visitor.visit(node.getValueBuffer(index));
+                    }
+                    
+                    if (node.isLeaf()) {
+                        return null;
+                    }
+                    
+                    Node child = node.getNode(
+                            provider, node.childIndex(index), Intent.READ);
+                    child.readLatch().lock();
+                    node.readLatch().unlock();
+                    node = child;
+                }
+            } finally {
+                node.readLatch().unlock();
+            }
+        } finally {
+            shared.unlock();
+        }
+    }
+    
+    /**
+     * The keys of the latched descents are bytes.
+     */
+    @Override
+    public byte[] getValue(long key) {
+        Tuple tuple = get(LongBinding.toBytes(key));
+        return tuple != null ? tuple.getValue() : null;
+    }
+    
+    @Override
+    public byte[] put(long key, byte[] value) {
+        Tuple tuple = put(LongBinding.toBytes(key), value);
+        return tuple != null ? tuple.getValue() : null;
+    }
+    
+    @Override
+    public Tuple ceilingTuple(byte[] key) {
+        return closestTuple(key, true, false);
+    }
+    
+    @Override
+    public Tuple higherTuple(byte[] key) {
+        return closestTuple(key, false, false);
+    }
+    
+    @Override
+    public Tuple floorTuple(byte[] key) {
+        return closestTuple(key, true, true);
+    }
+    
+    @Override
+    public Tuple lowerTuple(byte[] key) {
+        return closestTuple(key, false, true);
+    }
+    
+    /**
+     * Returns the {@link Tuple} that is closest to the key in the given 
+     * direction. The leaves of a B+-Tree are not latched as a chain and
+     * the search starts over at the nearest separator if a leaf has no
+     * such {@link Tuple}.
+     */
+    private Tuple closestTuple(byte[] key, boolean inclusive,
+            boolean descending) {
+        
+        Lock shared = lock.readLock();
+        shared.lock();
+        try {
+            while (true) {
+                Tuple closest = null;
+                byte[] separator = null;
+                
+                Node node = getRoot();
+                node.readLatch().lock();
+                try {
+                    while (true) {
+                        int index = node.binarySearch(key);
+                        boolean leaf = node.isLeaf();
+                        boolean bplus = node.isBPlusTree();
+                        
+                        if (index >= 0 && inclusive && (leaf || !bplus)) {
+                            return node.getTuple(index);
+                        }
+                        
+                        int adjacent = 0;
+                        if (index >= 0) {
+                            adjacent = (descending ? index - 1 : index + 1);
+                        } else {
+                            adjacent = (descending ? -index - 2 : -index - 1);
+                        }
+                        
+                        boolean found = (0 <= adjacent
+                                && adjacent < node.getTupleCount());
+                        
+                        if (leaf) {
+                            if (found) {
+                                return node.getTuple(adjacent);
+                            }
+                            break;
+                        }
+                        
+                        int path = 0;
+                        if (bplus) {
+                            if (index >= 0 && descending && !inclusive) {
+                                path = index;
+                            } else {
+                                path = node.childIndex(index);
+                            }
+                            
+                            int bound = (descending ? path - 1 : path);
+                            if (0 <= bound && bound < node.getTupleCount()) {
+                                separator = node.getTuple(bound).getKey();
+                            }
+                        } else {
+                            if (found) {
+                                closest = node.getTuple(adjacent);
+                            }
+                            
+                            if (index >= 0) {
+                                path = (descending ? index : index + 1);
+                            } else {
+                                path = -index - 1;
+                            }
+                        }
+                        
+                        Node child = node.getNode(provider, path, Intent.READ);
+                        child.readLatch().lock();
+                        node.readLatch().unlock();
+                        node = child;
+                    }
+                } finally {
+                    node.readLatch().unlock();
+                }
+                
+                if (!node.isBPlusTree() || separator == null) {
+                    return closest;
+                }
+                
+                // The neighbor leaf is on the other side of the separator
+                key = separator;
+                inclusive = !descending;
+            }
+        } finally {
+            shared.unlock();
+        }
+    }
+    
+    @Override
+    public Tuple firstTuple() {
+        return edgeTuple(true);
+    }
+    
+    @Override
+    public Tuple lastTuple() {
+        return edgeTuple(false);
+    }
+    
+    private Tuple edgeTuple(boolean first) {
+        Lock shared = lock.readLock();
+        shared.lock();
+        try {
+            Node node = getRoot();
+            node.readLatch().lock();
+            try {
+                while (!node.isLeaf()) {
+                    int index = first ? 0 : node.getNodeCount() - 1;
+                    Node child = node.getNode(provider, index, Intent.READ);
+                    child.readLatch().lock();
+                    node.readLatch().unlock();
+                    node = child;
+                }
+                
+                if (node.isEmpty()) {
+                    return null;
+                }
+                
+                return first ? node.firstTuple() : node.lastTuple();
+            } finally {
+                node.readLatch().unlock();
+            }
+        } finally {
+            shared.unlock();
+        }
+    }
+    
+    @Override
+    public Tuple put(byte[] key, byte[] value) {
+        Lock shared = lock.readLock();
+        shared.lock();
+        try {
+            Tuple tuple = optimisticPut(key, value);
+            if (tuple == RETRY) {
+                tuple = pessimisticPut(key, value);
+            }
+            
+            if (tuple != RETRY) {
+                if (tuple == null) {
+                    addSize(1);
+                }
+                return tuple;
+            }
+        } finally {
+            shared.unlock();
+        }
+        
+        // The root is full
+        Lock exclusive = lock.writeLock();
+        exclusive.lock();
+        try {
+            return super.put(key, value);
+        } finally {
+            exclusive.unlock();
+        }
+    }
+    
+    /**
+     * Walks down with shared latches and latches the leaf exclusively.
+     */
+    private Tuple optimisticPut(byte[] key, byte[] value) {
+        Node node = latchRoot(Intent.WRITE);
+        try {
+            while (!node.isLeaf()) {
+                int index = node.binarySearch(key);
+                if (index >= 0 && !node.isBPlusTree()) {
+                    return RETRY;
+                }
+                
+                node = crab(node, node.childIndex(index));
+            }
+            
+            int index = node.binarySearch(key);
+            if (index < 0 && node.isOverflow()) {
+                return RETRY;
+            }
+            
+            return node.put(provider, key, value);
+        } finally {
+            unlatch(node);
+        }
+    }
+    
+    /**
+     * Walks down with exclusive latches and splits full {@link Node}s
+     * on the way. The parent is released as soon as the child is safe.
+     */
+    private Tuple pessimisticPut(byte[] key, byte[] value) {
+        Node node = getRoot();
+        node.writeLatch().lock();
+        try {
+            if (node.isOverflow()) {
+                return RETRY;
+            }
+            
+            while (true) {
+                int index = node.binarySearch(key);
+                if (node.isLeaf() || (index >= 0 && !node.isBPlusTree())) {
+                    return node.put(provider, key, value);
+                }
+                
+                index = node.childIndex(index);
+                Node child = node.getNode(provider, index, Intent.WRITE);
+                child.writeLatch().lock();
+                
+                if (child.isOverflow()) {
+                    TupleNode median = child.split(provider);
+                    node.addTupleNode(index, median);
+                    node.setCount(index, child.getSubtreeSize());
+                    child.writeLatch().unlock();
+                    
+                    // Look again, the key may be the median
+                    continue;
+                }
+                
+                node.writeLatch().unlock();
+                node = child;
+            }
+        } finally {
+            node.writeLatch().unlock();
+        }
+    }
+    
+    @Override
+    public Tuple remove(byte[] key) {
+        Lock shared = lock.readLock();
+        shared.lock();
+        try {
+            Tuple tuple = optimisticRemove(key);
+            if (tuple != RETRY) {
+                if (tuple != null) {
+                    addSize(-1);
+                }
+                return tuple;
+            }
+        } finally {
+            shared.unlock();
+        }
+        
+        // The Key-Value is in an internal Node or the leaf
+        // is about to underflow.
+        Lock exclusive = lock.writeLock();
+        exclusive.lock();
+        try {
+            return super.remove(key);
+        } finally {
+            exclusive.unlock();
+        }
+    }
+    
+    private Tuple optimisticRemove(byte[] key) {
+        Node root = latchRoot(Intent.WRITE);
+        Node node = root;
+        try {
+            while (!node.isLeaf()) {
+                int index = node.binarySearch(key);
+                if (index >= 0 && !node.isBPlusTree()) {
+                    return RETRY;
+                }
+                
+                node = crab(node, node.childIndex(index));
+            }
+            
+            int index = node.binarySearch(key);
+            if (index < 0) {
+                return null;
+            }
+            
+            if (node != root && node.isUnderflow()) {
+                return RETRY;
+            }
+            
+            return node.remove(provider, key);
+        } finally {
+            unlatch(node);
+        }
+    }
+    
+    /**
+     * Latches the root. A leaf is latched exclusively, everything
+     * else is latched shared.
+     */
+    private Node latchRoot(Intent intent) {
+        Node node = getRoot();
+        if (node.isLeaf()) {
+            provider.get(node.getId(), intent);
+            node.writeLatch().lock();
+        } else {
+            node.readLatch().lock();
+        }
+        return node;
+    }
+    
+    /**
+     * Latches the child at the given index and releases the parent.
+     * A leaf is latched exclusively, everything else is latched shared.
+     */
+    private Node crab(Node node, int index) {
+        Node child;
+        if (node.getHeight() == 1) {
+            child = node.getNode(provider, index, Intent.WRITE);
+            child.writeLatch().lock();
+        } else {
+            child = node.getNode(provider, index, Intent.READ);
+            child.readLatch().lock();
+        }
+        
+        node.readLatch().unlock();
+        return child;
+    }
+    
+    private static void unlatch(Node node) {
+        if (node.isLeaf()) {
+            node.writeLatch().unlock();
+        } else {
+            node.readLatch().unlock();
+        }
+    }
+    
+    /**
+     * The Key-Values are put one at a time and other threads may 
+     * see some but not all of them.
+     */
+    @Override
+    public Tuple[] putAll(byte[][] keys, byte[][] values) {
+        Tuple[] tuples = new Tuple[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            tuples[i] = put(keys[i], values[i]);
+        }
+        return tuples;
+    }
+    
+    /**
+     * @see #putAll(byte[][], byte[][])
+     */
+    @Override
+    public Tuple[] removeAll(byte[][] keys) {
+        Tuple[] tuples = new Tuple[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            tuples[i] = remove(keys[i]);
+        }
+        return tuples;
+    }
+    
+    @Override
+    public Tuple[] getAll(byte[][] keys) {
+        Tuple[] tuples = new Tuple[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            tuples[i] = get(keys[i]);
+        }
+        return tuples;
+    }
+    
+    @Override
+    public void clear() {
+        Lock exclusive = lock.writeLock();
+        exclusive.lock();
+        try {
+            super.clear();
+        } finally {
+            exclusive.unlock();
+        }
+    }
+    
+    @Override
+    void load(Node node, int size) {
+        Lock exclusive = lock.writeLock();
+        exclusive.lock();
+        try {
+            super.load(node, size);
+        } finally {
+            exclusive.unlock();
+        }
+    }
+    
+    /**
+     * Returns the tail of the leaf that contains the ceiling (or higher)
+     * {@link Tuple} of the given key followed by the smallest {@link Tuple}
+     * of the ancestors that is greater than the leaf. The ancestors of a
+     * B+-Tree hold only separators and the search continues with the 
+     * next leaf if the tail is empty.
+     * 
+     * A descending chunk is the mirror image. It's the head of the leaf 
+     * that contains the floor (or lower) {@link Tuple} in reverse order
+     * followed by the greatest {@link Tuple} of the ancestors that is 
+     * less than the leaf.
+     */
+    private List<Tuple> chunk(byte[] key, boolean inclusive,
+            boolean descending) {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        
+        Lock shared = lock.readLock();
+        shared.lock();
+        try {
+            while (true) {
+                Tuple ancestor = null;
+            
+                Node node = getRoot();
+                node.readLatch().lock();
+                try {
+                    while (true) {
+                        boolean leaf = node.isLeaf();
+                        
+                        int index = 0;
+                        if (key == null) {
+                            if (descending) {
+                                index = leaf ? node.getTupleCount() - 1
+                                        : node.getNodeCount() - 1;
+                            }
+                        } else {
+                            index = node.binarySearch(key);
+                            if (node.isBPlusTree() && !leaf) {
+                                // The Tuples that are less than a separator
+                                // are all in its left subtree
+                                if (index < 0 || !descending || inclusive) {
+                                    index = node.childIndex(index);
+                                }
+                            } else if (index >= 0) {
+                                if (inclusive && !leaf) {
+                                    tuples.add(node.getTuple(index));
+                                    return tuples;
+                                }
+                                
+                                if (!inclusive) {
+                                    index = descending
+                                        ? (leaf ? index - 1 : index)
+                                        : index + 1;
+                                }
+                            } else {
+                                index = -index - 1;
+                                if (descending && leaf) {
+                                    --index;
+                                }
+                            }
+                        }
+                        
+                        if (leaf) {
+                            if (descending) {
+                                for (int i = index; i >= 0; i--) {
+                                    tuples.add(node.getTuple(i));
+                                }
+                            } else {
+                                int count = node.getTupleCount();
+                                for (int i = index; i < count; i++) {
+                                    tuples.add(node.getTuple(i));
+                                }
+                            }
+                            break;
+                        }
+                        
+                        if (descending) {
+                            if (0 < index) {
+                                ancestor = node.getTuple(index - 1);
+                            }
+                        } else if (index < node.getTupleCount()) {
+                            ancestor = node.getTuple(index);
+                        }
+                        
+                        Node child = node.getNode(provider, index, Intent.READ);
+                        child.readLatch().lock();
+                        node.readLatch().unlock();
+                        node = child;
+                    }
+                } finally {
+                    node.readLatch().unlock();
+                }
+                    
+                if (!node.isBPlusTree()) {
+                    if (ancestor != null) {
+                        tuples.add(ancestor);
+                    }
+                    return tuples;
+                }
+                    
+                if (!tuples.isEmpty() || ancestor == null) {
+                    return tuples;
+                }
+                
+                // The neighbor leaf starts (or ends) at the separator
+                key = ancestor.getKey();
+                inclusive = !descending;
+            }
+        } finally {
+            shared.unlock();
+        }
+    }
+    
+    /**
+     * The counts of the children are not kept up to date while the
+     * ancestors are released early. The rank is counted with an 
+     * {@link Iterator} and takes linear time.
+     */
+    @Override
+    public int rank(byte[] key, boolean inclusive) {
+        return count(null, true, key, inclusive);
+    }
+    
+    /**
+     * @see #rank(byte[], boolean)
+     */
+    @Override
+    public Tuple select(int index) {
+        if (0 <= index) {
+            Iterator<Tuple> it = iterator();
+            for (int i = 0; it.hasNext(); i++) {
+                Tuple tuple = it.next();
+                if (i == index) {
+                    return tuple;
+                }
+            }
+        }
+        
+        throw new IndexOutOfBoundsException("index=" + index);
+    }
+    
+    /**
+     * @see #rank(byte[], boolean)
+     */
+    @Override
+    public int count(byte[] from, boolean fromInclusive,
+            byte[] to, boolean toInclusive) {
+        int count = 0;
+        
+        Iterator<Tuple> it = iterator(from, fromInclusive, to, toInclusive);
+        while (it.hasNext()) {
+            it.next();
+            ++count;
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Returns a weakly consistent {@link Iterator}. It reflects the
+     * state of the tree at some point at or since its creation and
+     * it doesn't support {@link Iterator#remove()}.
+     */
+    @Override
+    public Iterator<Tuple> iterator() {
+        return new ChunkIterator(null, true, null, true, false);
+    }
+    
+    /**
+     * @see #iterator()
+     */
+    @Override
+    public Iterator<Tuple> iterator(byte[] key, boolean inclusive) {
+        return new ChunkIterator(key, inclusive, null, true, false);
+    }
+    
+    /**
+     * @see #iterator()
+     */
+    @Override
+    public Iterator<Tuple> iterator(byte[] from, boolean fromInclusive,
+            byte[] to, boolean toInclusive) {
+        return new ChunkIterator(from, fromInclusive, to, toInclusive, false);
+    }
+    
+    /**
+     * @see #iterator()
+     */
+    @Override
+    public Iterator<Tuple> descendingIterator() {
+        return new ChunkIterator(null, true, null, true, true);
+    }
+    
+    /**
+     * @see #iterator()
+     */
+    @Override
+    public Iterator<Tuple> descendingIterator(byte[] key, boolean inclusive) {
+        return new ChunkIterator(key, inclusive, null, true, true);
+    }
+    
+    /**
+     * @see #iterator()
+     */
+    @Override
+    public Iterator<Tuple> descendingIterator(byte[] from,
+            boolean fromInclusive, byte[] to, boolean toInclusive) {
+        return new ChunkIterator(from, fromInclusive, to, toInclusive, true);
+    }
+    
+    /**
+     * An {@link Iterator} that copies a leaf at a time while it's latched
+     * and continues from the last {@link Tuple} it has seen in either
+     * direction.
+     */
+    private class ChunkIterator implements Iterator<Tuple> {
+        
+        private Iterator<Tuple> chunk = null;
+        
+        private byte[] key;
+        
+        private boolean inclusive;
+        
+        private final byte[] bound;
+        
+        private final boolean boundInclusive;
+        
+        private final boolean descending;
+        
+        private boolean eof = false;
+        
+        public ChunkIterator(byte[] key, boolean inclusive,
+                byte[] bound, boolean boundInclusive, boolean descending) {
+            this.key = key;
+            this.inclusive = inclusive;
+            this.bound = bound;
+            this.boundInclusive = boundInclusive;
+            this.descending = descending;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            if (chunk != null && chunk.hasNext()) {
+                return true;
+            }
+            
+            if (eof) {
+                return false;
+            }
+            
+            List<Tuple> tuples = chunk(key, inclusive, descending);
+            
+            // Drop everything past the bound and stop there
+            for (int i = 0; i < tuples.size(); i++) {
+                if (TupleUtils.isBeyond(provider.getComparator(),
+                        tuples.get(i).getKey(), bound, boundInclusive, descending)) {
+                    tuples = tuples.subList(0, i);
+                    eof = true;
+                    break;
+                }
+            }
+            
+            if (tuples.isEmpty()) {
+                eof = true;
+                return false;
+            }
+            
+            key = tuples.get(tuples.size() - 1).getKey();
+            inclusive = false;
+            chunk = tuples.iterator();
+            return true;
+        }
+        
+        @Override
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunk.next();
+        }
+        
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    @Override
+    public String toString() {
+        Lock shared = lock.readLock();
+        shared.lock();
+        try {
+            return super.toString();
+        } finally {
+            shared.unlock();
+        }
+    }
+}
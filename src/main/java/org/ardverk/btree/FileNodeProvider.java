@@ -18,33 +18,245 @@ package org.ardverk.btree;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.Flushable;
 import java.io.IOException;
-import java.security.SecureRandom;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
 
-public class FileNodeProvider implements NodeProvider, Flushable, Closeable {
+import org.ardverk.btree.WriteAheadLog.SyncPolicy;
 
-    private final Map<NodeId, Node> nodes 
-        = new HashMap<NodeId, Node>();
+/**
+ * A {@link NodeProvider} that stores every {@link Node} in a file of its own.
+ * 
+ * {@link Node}s are never overwritten in place. Every version of a {@link Node}
+ * is written to a file that is named after the {@link NodeId} and the
+ * generation of the next checkpoint. A checkpoint appends the new generations 
+ * to the manifest and then atomically replaces the "0" file that points to 
+ * the root, the manifest and the generation. A crash at any point leaves the
+ * previous checkpoint intact and the files of the unfinished checkpoint are
+ * removed when the directory is opened again.
+ * 
+ * Values that are larger than the threshold are written to blob files
+ * of their own and the {@link Node}s keep only a reference. The blob 
+ * files have generations like the {@link Node}s and a blob is removed 
+ * at the checkpoint after the last {@link Node} that referenced it was
+ * written or freed.
+ * 
+ * The {@link java.util.Iterator}s of the tree {@link #prefetch(NodeId)}
+ * the next few children of the {@link Node}s they walk through if there
+ * is a prefetch window. The files are read by background threads and the
+ * {@link Node}s are decoded from their contents when they're requested.
+ */
+public class FileNodeProvider implements NodeProvider, Flushable, Closeable {
+    
+    private static final String ROOT = "0";
+    
+    private static final String MANIFEST = "manifest";
+    
+    private static final int MAGIC = 0x42545244; // BTRD
+    
+    /**
+     * Version 1 added the counts of the children of the 
+     * internal {@link Node}s. Version 2 changed the default
+     * order of the keys to {@link KeyComparator#LEXICOGRAPHIC}.
+     * Version 3 added the values that are stored in blob files.
+     * Version 4 added a checksum to the end of every {@link Node}.
+     * Version 5 replaced the random {@link NodeId}s with numbers.
+     * Version 6 added the name of the {@link KeyComparator}.
+     * Version 7 moved the version to the start of the "0" file.
+     */
+    private static final int VERSION = 7;
+    
+    /**
+     * The CRC32 of the {@link Node}s.
+     */
+    private static final int CHECKSUM_SIZE = 4;
+    
+    private static final byte UPDATE = 1;
+    
+    private static final byte FREE = 2;
+    
+    /**
+     * The default number of levels (counting from the root) that are 
+     * never evicted from the {@link NodeCache}.
+     */
+    public static final int DEFAULT_PINNED_LEVELS = 2;
+    
+    /**
+     * The default threshold. All values are stored in the {@link Node}s.
+     */
+    public static final int DEFAULT_THRESHOLD = Integer.MAX_VALUE;
+    
+    private final NodeCache nodes;
+    
+    /**
+     * The {@link NodeId}s of all {@link Node}s that were allocated or
+     * requested with {@link Intent#WRITE}.
+     */
+    private final Set<NodeId> dirty = new HashSet<NodeId>();
+    
+    /**
+     * The {@link NodeId}s of all {@link Node}s that were freed since the 
+     * last flush. Their files are referenced by the tree that is on disk 
+     * and can't be deleted before the next flush.
+     */
+    private final Set<NodeId> freed = new HashSet<NodeId>();
+    
+    /**
+     * The generation of every {@link Node} as of the last checkpoint.
+     * {@link Node}s without an entry were written before files had
+     * generations.
+     */
+    private final Map<NodeId, Long> versions = new HashMap<NodeId, Long>();
+    
+    /**
+     * The {@link NodeId}s of all {@link Node}s that were written to 
+     * the next generation since the last checkpoint.
+     */
+    private final Set<NodeId> shadowed = new HashSet<NodeId>();
+    
+    /**
+     * The {@link NodeId}s of all {@link Node}s that were written to the 
+     * next generation by an eviction but haven't been forced to disk yet.
+     */
+    private final Set<NodeId> unsynced = new HashSet<NodeId>();
+    
+    /**
+     * The most recently requested {@link Node}s. {@link Node}s hold on
+     * to their parents and siblings while they're being modified and
+     * none of them must be evicted before the operation is done.
+     */
+    private final Deque<Node> recent = new ArrayDeque<Node>();
+    
+    private final Map<Node, Integer> inflight 
+        = new IdentityHashMap<Node, Integer>();
+    
+    /**
+     * The blobs that are referenced by the last checkpoint of every
+     * {@link Node} that is in memory or was written since.
+     */
+    private final Map<NodeId, Set<NodeId>> committed
+        = new HashMap<NodeId, Set<NodeId>>();
+    
+    /**
+     * The blobs that are referenced by the most recent version of 
+     * every {@link Node} that was written since the last checkpoint.
+     */
+    private final Map<NodeId, Set<NodeId>> written
+        = new HashMap<NodeId, Set<NodeId>>();
+    
+    /**
+     * The blobs that were written since the last checkpoint.
+     */
+    private final Set<NodeId> created = new HashSet<NodeId>();
+    
+    /**
+     * The files of the {@link Node}s that are being prefetched or were
+     * prefetched and haven't been requested yet. The eldest are dropped
+     * if the {@link java.util.Iterator}s move on without them.
+     */
+    private final Map<NodeId, Prefetch> prefetched
+            = new LinkedHashMap<NodeId, Prefetch>() {
+        
+        private static final long serialVersionUID = -2166435402883262531L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<NodeId, Prefetch> eldest) {
+            if (size() > 4 * window) {
+                eldest.getValue().cancel(false);
+                return true;
+            }
+            return false;
+        }
+    };
+    
+    private final BlobStore blobs = new BlobStore() {
+        @Override
+        public byte[] read(byte[] reference) {
+            return readBlob(reference);
+        }
+    };
     
     private final File directory;
     
     private final int t;
     
+    private final boolean bplus;
+    
+    private final KeyComparator comparator;
+    
+    private final int pinnedLevels;
+    
+    private final int threshold;
+    
+    private final WriteAheadLog log;
+    
     private final RootNode root;
     
+    /**
+     * The root {@link NodeId}, size and {@link WriteAheadLog} sequence
+     * number that were written to disk by the most recent {@link #flush()}.
+     */
+    private NodeId storedRootId = null;
+    
+    private int storedSize = -1;
+    
+    private long storedSequenceNumber = 0L;
+    
+    /**
+     * The generation of the last checkpoint.
+     */
+    private long generation = 0L;
+    
+    /**
+     * The name and committed length of the manifest file and the 
+     * number of records in it.
+     */
+    private String manifest = null;
+    
+    private long manifestLength = 0L;
+    
+    private int manifestRecords = 0;
+    
+    /**
+     * The next {@link NodeId}. It's written to the "0" file with every
+     * checkpoint and the {@link NodeId}s of a checkpoint that never 
+     * finished are issued again.
+     */
+    private long nextId = 1L;
+    
+    private int window = 0;
+    
+    private ExecutorService prefetcher = null;
+    
     private boolean open = true;
     
     public FileNodeProvider(String path, int t) {
@@ -52,35 +264,207 @@ public class FileNodeProvider implements NodeProvider, Flushable, Closeable {
     }
     
     public FileNodeProvider(File directory, int t) {
+        this(directory, t, new LruNodeCache(Long.MAX_VALUE));
+    }
+    
+    public FileNodeProvider(File directory, int t, NodeCache nodes) {
+        this(directory, t, nodes, DEFAULT_PINNED_LEVELS);
+    }
+    
+    public FileNodeProvider(File directory, int t, 
+            NodeCache nodes, int pinnedLevels) {
+        this(directory, t, nodes, pinnedLevels, null);
+    }
+    
+    /**
+     * Creates a {@link FileNodeProvider} that records all changes in a 
+     * {@link WriteAheadLog}. The log is replayed on open and every 
+     * {@link #flush()} becomes a checkpoint that truncates the log. 
+     * Passing {@code null} turns the {@link WriteAheadLog} off.
+     */
+    public FileNodeProvider(File directory, int t, 
+            NodeCache nodes, int pinnedLevels, SyncPolicy sync) {
+        this(directory, t, nodes, pinnedLevels, sync, false);
+    }
+    
+    /**
+     * Creates a {@link FileNodeProvider} for a B+-Tree if bplus is 
+     * {@code true}. The keys of every {@link Node} of a B+-Tree are 
+     * written with their common prefix. An existing tree must have 
+     * been created with the same value.
+     * 
+     * @see Node#isBPlusTree()
+     */
+    public FileNodeProvider(File directory, int t, NodeCache nodes,
+            int pinnedLevels, SyncPolicy sync, boolean bplus) {
+        this(directory, t, nodes, pinnedLevels, sync, bplus,
+                KeyComparator.LEXICOGRAPHIC);
+    }
+    
+    /**
+     * Creates a {@link FileNodeProvider} whose keys are in the order 
+     * of the given {@link KeyComparator}. An existing tree must be 
+     * opened with an order of the same name.
+     * 
+     * @see KeyComparator#getName()
+     */
+    public FileNodeProvider(File directory, int t, NodeCache nodes,
+            int pinnedLevels, SyncPolicy sync, boolean bplus,
+            KeyComparator comparator) {
+        this(directory, t, nodes, pinnedLevels, sync, bplus,
+                comparator, DEFAULT_THRESHOLD);
+    }
+    
+    /**
+     * Creates a {@link FileNodeProvider} that writes values that are 
+     * larger than the threshold (in bytes) to blob files. The values 
+     * are read from the blob files when they're requested.
+     * 
+     * @see BlobTuple
+     */
+    public FileNodeProvider(File directory, int t, NodeCache nodes,
+            int pinnedLevels, SyncPolicy sync, boolean bplus,
+            KeyComparator comparator, int threshold) {
+        
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold=" + threshold);
+        }
+        
         this.directory = directory;
         this.t = t;
+        this.bplus = bplus;
+        this.comparator = comparator;
+        this.nodes = nodes;
+        this.pinnedLevels = pinnedLevels;
+        this.threshold = threshold;
         
         if (!directory.exists()) {
             directory.mkdirs();
         }
         
-        root = load(new File(directory, "0"));
+        nodes.bind(new NodeCache.Callback() {
+            @Override
+            public boolean isPinned(Node node) {
+                return FileNodeProvider.this.isPinned(node);
+            }
+            
+            @Override
+            public void evicted(Node node) {
+                FileNodeProvider.this.evicted(node);
+            }
+        });
+        
+        RootNode root = load(new File(directory, ROOT));
+        scavenge();
+        
+        if (sync != null) {
+            log = new WriteAheadLog(new File(directory, "log"), sync);
+            log.replay(root, storedSequenceNumber);
+            
+            root = new RootNode(this, root.getRoot(), root.size(), log);
+            
+            log.setCheckpointer(new WriteAheadLog.Checkpointer() {
+                @Override
+                public void checkpoint() {
+                    flush(false);
+                }
+            });
+        } else {
+            log = null;
+        }
+        
+        this.root = root;
     }
     
     public File getDirectory() {
         return directory;
     }
+    
+    public NodeCache getNodeCache() {
+        return nodes;
+    }
+    
+    /**
+     * Returns the size (in bytes) above which values are 
+     * written to blob files.
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+    
+    /**
+     * Returns the {@link WriteAheadLog} or {@code null} if there is none.
+     */
+    public WriteAheadLog getWriteAheadLog() {
+        return log;
+    }
+    
+    @Override
+    public int getPrefetchWindow() {
+        return window;
+    }
+    
+    /**
+     * Sets the number of {@link Node}s that are read ahead of an 
+     * {@link java.util.Iterator} and as many threads read them. 
+     * Zero turns the prefetching off.
+     */
+    public void setPrefetchWindow(int window) {
+        if (window < 0) {
+            throw new IllegalArgumentException("window=" + window);
+        }
+        
+        checkOpen();
+        
+        if (prefetcher != null) {
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+        
+        for (Prefetch prefetch : prefetched.values()) {
+            prefetch.cancel(false);
+        }
+        prefetched.clear();
+        
+        if (0 < window) {
+            prefetcher = Executors.newFixedThreadPool(window, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PrefetchThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        
+        this.window = window;
+    }
 
     @Override
     public RootNode getRoot() {
         return root;
     }
     
+    @Override
+    public KeyComparator getComparator() {
+        return comparator;
+    }
+    
     @Override
     public Node allocate(int height) {
         checkOpen();
         
-        StringId nodeId = StringId.create();
-        Node node = new Node(nodeId, height, t);
-        Node existing = nodes.put(nodeId, node);
-        if (existing != null) {
+        LongId nodeId = LongId.valueOf(nextId++);
+        Node node = new Node(nodeId, height, t, bplus, comparator);
+        if (nodes.get(nodeId) != null) {
             throw new IllegalStateException();
         }
+        
+        bind(node.getTuples());
+        
+        dirty.add(nodeId);
+        touch(node);
+        nodes.put(node);
         return node;
     }
     
@@ -88,21 +472,117 @@ public class FileNodeProvider implements NodeProvider, Flushable, Closeable {
     public Node get(NodeId nodeId, Intent intent) {
         checkOpen();
         
+        if (intent == Intent.WRITE) {
+            dirty.add(nodeId);
+        }
+        
         Node node = nodes.get(nodeId);
         if (node == null) {
             node = load(nodeId);
-            nodes.put(nodeId, node);
+            touch(node);
+            nodes.put(node);
+        } else {
+            touch(node);
         }
         return node;
     }
 
+    /**
+     * Reads the file of the {@link Node} in the background unless the
+     * {@link Node} is in memory. The {@link Node} counts as used.
+     */
+    @Override
+    public void prefetch(NodeId nodeId) {
+        checkOpen();
+        
+        if (prefetcher == null || prefetched.containsKey(nodeId)
+                || nodes.get(nodeId) != null) {
+            return;
+        }
+        
+        long version = version(nodeId);
+        Prefetch prefetch = new Prefetch(file(nodeId, version), version);
+        prefetched.put(nodeId, prefetch);
+        prefetcher.execute(prefetch);
+    }
+    
     @Override
     public void free(Node node) {
         checkOpen();
         
         NodeId nodeId = node.getId();
         nodes.remove(nodeId);
-        delete(nodeId);
+        dirty.remove(nodeId);
+        written.remove(nodeId);
+        discard(nodeId);
+        
+        // Nobody but us has seen the next generation
+        if (shadowed.remove(nodeId)) {
+            unsynced.remove(nodeId);
+            delete(nodeId, generation + 1L);
+        }
+        
+        freed.add(nodeId);
+    }
+    
+    /**
+     * Records the given {@link Node} as the most recently used one.
+     */
+    private void touch(Node node) {
+        recent.addLast(node);
+        
+        Integer count = inflight.get(node);
+        inflight.put(node, count != null ? count + 1 : 1);
+        
+        // The window is large enough for an operation that walks 
+        // down to the leaves twice and looks at both siblings on 
+        // every level on the way.
+        int height = (root != null ? root.getRoot().getHeight() : 0);
+        int window = 4 * (height + 2);
+        
+        while (recent.size() > window) {
+            Node eldest = recent.pollFirst();
+            
+            count = inflight.get(eldest);
+            if (count == 1) {
+                inflight.remove(eldest);
+            } else {
+                inflight.put(eldest, count - 1);
+            }
+        }
+    }
+    
+    private boolean isPinned(Node node) {
+        if (inflight.containsKey(node)) {
+            return true;
+        }
+        
+        if (root == null) {
+            return false;
+        }
+        
+        Node rootNode = root.getRoot();
+        if (node == rootNode) {
+            return true;
+        } else if (node.isLeaf()) {
+            return false;
+        }
+        
+        int height = rootNode.getHeight();
+        return node.getHeight() > height - pinnedLevels;
+    }
+    
+    private void evicted(Node node) {
+        NodeId nodeId = node.getId();
+        if (dirty.remove(nodeId)) {
+            store(node, false);
+        }
+        
+        // The blobs of the last checkpoint are needed until the next
+        // one if the Node was written since.
+        if (!shadowed.contains(nodeId)) {
+            committed.remove(nodeId);
+        }
     }
 
     @Override
@@ -110,46 +590,366 @@ public class FileNodeProvider implements NodeProvider, Flushable, Closeable {
         flush(true);
     }
     
+    /**
+     * Writes all {@link Node}s that were allocated or requested with 
+     * {@link Intent#WRITE} since the last flush and optionally removes
+     * all {@link Node}s but the root from memory. 
+     * 
+     * The flush is a checkpoint that becomes visible all at once when 
+     * the "0" file is replaced. The {@link WriteAheadLog} is truncated 
+     * once everything is on disk.
+     */
     public void flush(boolean freeMemory) {
         checkOpen();
         
-        File file = new File(directory, "0");
+        Node rootNode = root.getRoot();
+        
+        for (Node node : nodes.nodes()) {
+            if (dirty.contains(node.getId())) {
+                store(node, true);
+            }
+            
+            if (freeMemory && node != rootNode) {
+                nodes.remove(node.getId());
+            }
+        }
+        
+        dirty.clear();
+        
+        collect();
+        
+        for (NodeId nodeId : unsynced) {
+            sync(file(nodeId, generation + 1L));
+        }
+        unsynced.clear();
+        
+        NodeId rootId = root.getId();
+        int size = root.size();
+        long sequenceNumber = (log != null ? log.getSequenceNumber() : 0L);
+        
+        if (!shadowed.isEmpty() || !freed.isEmpty() 
+                || !rootId.equals(storedRootId) || size != storedSize
+                || sequenceNumber != storedSequenceNumber) {
+            
+            long next = generation + 1L;
+            
+            try {
+                writeManifest(next);
+                writeRoot(rootId, size, sequenceNumber, next);
+            } catch (IOException err) {
+                throw new IllegalStateException(err);
+            }
+            
+            // The checkpoint is committed. Remove everything that 
+            // is no longer referenced by it.
+            for (NodeId nodeId : shadowed) {
+                Long existing = versions.put(nodeId, next);
+                if (existing != null) {
+                    delete(nodeId, existing);
+                }
+                
+                Set<NodeId> references = written.remove(nodeId);
+                if (references != null) {
+                    committed.put(nodeId, references);
+                } else {
+                    committed.remove(nodeId);
+                }
+            }
+            
+            for (NodeId nodeId : freed) {
+                Long existing = versions.remove(nodeId);
+                if (existing != null) {
+                    delete(nodeId, existing);
+                }
+                committed.remove(nodeId);
+            }
+            
+            shadowed.clear();
+            freed.clear();
+            
+            generation = next;
+            storedRootId = rootId;
+            storedSize = size;
+            storedSequenceNumber = sequenceNumber;
+        }
+        
+        if (freeMemory) {
+            committed.keySet().retainAll(
+                    Collections.singleton(rootNode.getId()));
+        }
+        
+        if (log != null) {
+            log.truncate();
+        }
+    }
+    
+    /**
+     * Frees the blobs that were referenced by the last checkpoint or 
+     * written since and that aren't referenced by any {@link Node} 
+     * anymore. A blob can only move from one {@link Node} to another 
+     * if both are written and all {@link Node}s that are written or 
+     * freed since the last checkpoint must be looked at.
+     */
+    private void collect() {
+        Set<NodeId> garbage = new HashSet<NodeId>(created);
+        
+        for (NodeId nodeId : shadowed) {
+            Set<NodeId> references = committed.get(nodeId);
+            if (references != null) {
+                garbage.addAll(references);
+            }
+        }
+        
+        for (NodeId nodeId : freed) {
+            Set<NodeId> references = committed.get(nodeId);
+            if (references != null) {
+                garbage.addAll(references);
+            }
+        }
+        
+        for (Set<NodeId> references : written.values()) {
+            garbage.removeAll(references);
+        }
+        
+        for (NodeId blobId : garbage) {
+            // Nobody but us has seen the blob
+            if (shadowed.remove(blobId)) {
+                unsynced.remove(blobId);
+                delete(blobId, generation + 1L);
+            } else {
+                freed.add(blobId);
+            }
+        }
+        
+        created.clear();
+    }
+    
+    /**
+     * Appends the generations of all {@link Node}s that were written or
+     * freed since the last checkpoint to the manifest. The manifest is
+     * re-written from scratch if most of its records are obsolete.
+     */
+    private void writeManifest(long next) throws IOException {
+        boolean compact = (manifest == null 
+                || 2 * (versions.size() + 1024) < manifestRecords);
         
-        DataOutputStream out = null;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        
+        int records = 0;
+        
+        if (compact) {
+            for (Map.Entry<NodeId, Long> entry : versions.entrySet()) {
+                NodeId nodeId = entry.getKey();
+                if (!shadowed.contains(nodeId) && !freed.contains(nodeId)) {
+                    out.writeByte(UPDATE);
+                    ((LongId)nodeId).writeTo(out);
+                    out.writeLong(entry.getValue());
+                    ++records;
+                }
+            }
+        } else {
+            for (NodeId nodeId : freed) {
+                out.writeByte(FREE);
+                ((LongId)nodeId).writeTo(out);
+                out.writeLong(0L);
+                ++records;
+            }
+        }
+        
+        for (NodeId nodeId : shadowed) {
+            out.writeByte(UPDATE);
+            ((LongId)nodeId).writeTo(out);
+            out.writeLong(next);
+            ++records;
+        }
+        
+        out.flush();
+        
+        String name = compact ? MANIFEST + "." + next : manifest;
+        long offset = compact ? 0L : manifestLength;
+        
+        RandomAccessFile raf = new RandomAccessFile(
+                new File(directory, name), "rw");
         try {
-            out = new DataOutputStream(
-                    new BufferedOutputStream(
-                        new FileOutputStream(file)));
+            // Whatever follows the committed length belongs to 
+            // a checkpoint that never finished.
+            raf.setLength(offset);
+            raf.seek(offset);
+            raf.write(baos.toByteArray());
+            raf.getFD().sync();
+        } finally {
+            IoUtils.close(raf);
+        }
+        
+        if (compact && manifest != null) {
+            new File(directory, manifest).delete();
+        }
+        
+        manifest = name;
+        manifestLength = offset + baos.size();
+        manifestRecords = (compact ? 0 : manifestRecords) + records;
+    }
+    
+    /**
+     * Atomically replaces the "0" file. The new file is written under 
+     * a temporary name, forced to disk and then renamed.
+     * 
+     * The directory isn't forced to disk after the rename. Java 6
+     * can't open a directory to sync it. The rename and the names of the
+     * files of the new generation are durable once the file system 
+     * writes its metadata back. A power loss before that may roll the 
+     * tree back to the previous checkpoint or, on file systems that 
+     * don't order their metadata, lose the names of the new files.
+     */
+    private void writeRoot(NodeId rootId, int size, 
+            long sequenceNumber, long next) throws IOException {
+        
+        File tmp = new File(directory, ROOT + ".tmp");
+        
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(fos));
             
-            out.writeInt(root.size());
-            ((StringId)root.getId()).writeTo(out);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            ((LongId)rootId).writeTo(out);
+            out.writeLong(sequenceNumber);
+            out.writeLong(next);
+            out.writeUTF(manifest);
+            out.writeLong(manifestLength);
+            out.writeBoolean(bplus);
+            out.writeLong(nextId);
+            out.writeUTF(comparator.getName());
+            out.flush();
             
-        } catch (IOException err) {
-            throw new IllegalStateException(err);
+            fos.getFD().sync();
         } finally {
-            IoUtils.close(out);
+            IoUtils.close(fos);
         }
         
-        Node rootNode = root.getRoot();
-        store(rootNode);
+        if (!tmp.renameTo(new File(directory, ROOT))) {
+            throw new IOException("Failed to rename: " + tmp);
+        }
+    }
+    
+    /**
+     * Reads the committed part of the manifest.
+     */
+    private void readManifest() throws IOException {
+        byte[] data = readFile(new File(directory, manifest), manifestLength);
         
-        Iterator<Node> it = nodes.values().iterator();
-        while (it.hasNext()) {
-            Node node = it.next();
-            if (node != rootNode) {
-                store(node);
-                
-                if (freeMemory) {
-                    it.remove();
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(data));
+        
+        while (0 < in.available()) {
+            byte op = in.readByte();
+            LongId nodeId = LongId.valueOf(in);
+            long version = in.readLong();
+            
+            if (op == UPDATE) {
+                versions.put(nodeId, version);
+            } else {
+                versions.remove(nodeId);
+            }
+            
+            ++manifestRecords;
+        }
+    }
+    
+    /**
+     * Removes the leftovers of a checkpoint that never finished and 
+     * the files that a crash kept us from deleting.
+     */
+    private void scavenge() {
+        new File(directory, ROOT + ".tmp").delete();
+        
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        
+        for (File file : files) {
+            String name = file.getName();
+            
+            int index = name.lastIndexOf('.');
+            if (index == -1) {
+                continue;
+            }
+            
+            String prefix = name.substring(0, index);
+            if (prefix.equals(MANIFEST)) {
+                if (!name.equals(manifest)) {
+                    file.delete();
                 }
+                continue;
+            }
+            
+            NodeId nodeId = null;
+            long version = -1L;
+            try {
+                nodeId = LongId.valueOf(prefix);
+                version = Long.parseLong(name.substring(index + 1));
+            } catch (IllegalArgumentException err) {
+                // Not the file of a Node
+                continue;
             }
+            
+            Long expected = versions.get(nodeId);
+            if (expected == null || expected != version) {
+                file.delete();
+            }
+        }
+    }
+    
+    /**
+     * Reads all {@link Node}s of the last checkpoint from disk and checks 
+     * their checksums, the order of their keys, their heights and the 
+     * number and counts of their children. The {@link NodeCache} isn't 
+     * used and the tree can be used before and after the scrub but not 
+     * while it's running. Returns the number of {@link Node}s that were 
+     * checked and throws an {@link IllegalStateException} at the first 
+     * corruption.
+     */
+    public int verify() {
+        checkOpen();
+        
+        if (storedRootId == null) {
+            return 0;
+        }
+        
+        Scrub scrub = new Scrub();
+        
+        int size = scrub.verify(storedRootId, -1, null, null);
+        if (size != storedSize) {
+            throw corrupt(storedRootId, "size=" + size + ", expected=" + storedSize);
         }
+        
+        if (scrub.leaf != null && scrub.leaf.getNext() != null) {
+            throw corrupt(scrub.leaf.getId(), "next=" + scrub.leaf.getNext());
+        }
+        
+        return scrub.count;
     }
     
     @Override
     public void close() {
-        flush();
-        open = false;
+        try {
+            flush();
+        } finally {
+            open = false;
+            
+            if (prefetcher != null) {
+                prefetcher.shutdownNow();
+            }
+            prefetched.clear();
+            
+            if (log != null) {
+                log.close();
+            }
+        }
     }
     
     private void checkOpen() {
@@ -168,15 +968,43 @@ public class FileNodeProvider implements NodeProvider, Flushable, Closeable {
             node = allocate(0);
             
         } else {
-            StringId nodeId = null;
+            LongId nodeId = null;
             DataInputStream in = null;
             try {
                 in = new DataInputStream(
                         new BufferedInputStream(
                             new FileInputStream(file)));
                 
+                int magic = in.readInt();
+                int version = in.readInt();
+                if (magic != MAGIC) {
+                    throw new IOException("Not a tree: " + directory);
+                }
+                
+                if (version != VERSION) {
+                    throw new IOException("Unsupported version: " + version);
+                }
+                
                 size = in.readInt();
-                nodeId = StringId.valueOf(in);
+                nodeId = LongId.valueOf(in);
+                storedSequenceNumber = in.readLong();
+                generation = in.readLong();
+                manifest = in.readUTF();
+                manifestLength = in.readLong();
+                
+                if (in.readBoolean() != bplus) {
+                    throw new IllegalArgumentException("bplus=" + bplus);
+                }
+                
+                nextId = in.readLong();
+                
+                String order = in.readUTF();
+                if (!order.equals(comparator.getName())) {
+                    throw new IllegalArgumentException("comparator="
+                            + comparator.getName() + ", stored=" + order);
+                }
+                
+                readManifest();
                 
             } catch (IOException err) {
                 throw new IllegalStateException(err);
@@ -185,7 +1013,10 @@ public class FileNodeProvider implements NodeProvider, Flushable, Closeable {
             }
             
             node = load(nodeId);
-            nodes.put(nodeId, node);
+            nodes.put(node);
+            
+            storedRootId = nodeId;
+            storedSize = size;
         }
         
         return new RootNode(this, node, size);
@@ -195,68 +1026,183 @@ public class FileNodeProvider implements NodeProvider, Flushable, Closeable {
         
         checkOpen();
         
-        File file = new File(directory, nodeId.toString());
+        Node node = read(nodeId, version(nodeId));
         
-        DataInputStream in = null;
+        // The blobs of a Node that was written since the last
+        // checkpoint were recorded when it was loaded the first time
+        if (!shadowed.contains(nodeId)) {
+            Set<NodeId> references = references(node);
+            if (references != null) {
+                committed.put(nodeId, references);
+            }
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Reads the given generation of a {@link Node}. The file is read 
+     * at once and its checksum is checked before anything is decoded.
+     * A file that was prefetched isn't read again.
+     */
+    private Node read(NodeId nodeId, long version) {
         try {
-            in = new DataInputStream(
-                    new BufferedInputStream(
-                        new FileInputStream(file)));
+            byte[] data = prefetched(nodeId, version);
+            if (data == null) {
+                data = readNode(file(nodeId, version));
+            }
+            
+            int end = data.length - CHECKSUM_SIZE;
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(data, 0, end));
             
             int height = in.readInt();
             
-            int tupleCount = in.readInt();
-            Bucket<Tuple> tuples = new Bucket<Tuple>(2*t-1);
+            Bucket<Tuple> tuples = comparator.createBucket(2*t-1);
+            bind(tuples);
             
-            for (int i = 0; i < tupleCount; i++) {
-                byte[] key = DataUtils.readBytes(in);
-                byte[] value = DataUtils.readBytes(in);
+            if (bplus && tuples instanceof TupleBucket) {
+                ((TupleBucket)tuples).readFrom(in);
+            } else {
+                int tupleCount = in.readInt();
+                for (int i = 0; i < tupleCount; i++) {
+                    byte[] key = DataUtils.readBytes(in);
                 
-                tuples.add(new Tuple(key, value));
+                    // The length of a reference is its complement
+                    int length = in.readInt();
+                    byte[] value = new byte[length < 0 ? ~length : length];
+                    in.readFully(value);
+                    
+                    if (length < 0) {
+                        tuples.add(new BlobTuple(key, value, blobs));
+                    } else {
+                        tuples.add(new Tuple(key, value));
+                    }
+                }
             }
             
             Bucket<NodeId> nodes = null;
+            int[] counts = null;
             
             if (0 < height) {
                 nodes = new Bucket<NodeId>(2*t);
 
                 int nodeCount = in.readInt();
+                counts = new int[nodeCount];
                 for (int i = 0; i < nodeCount; i++) {
-                    nodes.add(StringId.valueOf(in));
+                    nodes.add(LongId.valueOf(in));
+                    counts[i] = in.readInt();
                 }
             }
             
-            return new Node(nodeId, height, t, tuples, nodes);
+            Node node = new Node(nodeId, height, t,
+                    tuples, nodes, bplus, comparator);
+            
+            for (int i = 0; counts != null && i < counts.length; i++) {
+                node.setCount(i, counts[i]);
+            }
+            
+            // The leaves of a B+-Tree are linked to their neighbors
+            if (bplus && height == 0) {
+                node.setPrevious(LongId.valueOfNullable(in));
+                node.setNext(LongId.valueOfNullable(in));
+            }
+            
+            return node;
             
         } catch (IOException err) {
             throw new IllegalStateException(err);
-        } finally {
-            IoUtils.close(in);
         }
     }
     
-    private void store(Node node) {
+    /**
+     * Returns the contents of the prefetched file of the given generation 
+     * of a {@link Node} or {@code null} if it wasn't prefetched or the 
+     * background thread failed to read it.
+     */
+    private byte[] prefetched(NodeId nodeId, long version) {
+        Prefetch prefetch = prefetched.remove(nodeId);
+        if (prefetch == null) {
+            return null;
+        }
+        
+        if (prefetch.version != version) {
+            prefetch.cancel(false);
+            return null;
+        }
+        
+        try {
+            return prefetch.get();
+        } catch (ExecutionException err) {
+            // The file is read once more and the error is thrown then
+            return null;
+        } catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(err);
+        }
+    }
+    
+    /**
+     * Drops the prefetched file of the given {@link Node}.
+     */
+    private void discard(NodeId nodeId) {
+        Prefetch prefetch = prefetched.remove(nodeId);
+        if (prefetch != null) {
+            prefetch.cancel(false);
+        }
+    }
+    
+    /**
+     * Writes the {@link Node} to the file of the next generation and 
+     * optionally forces it to disk.
+     */
+    private void store(Node node, boolean sync) {
         
         checkOpen();
         
         NodeId nodeId = node.getId();
-        File file = new File(directory, nodeId.toString());
+        discard(nodeId);
+        
+        File file = file(nodeId, generation + 1L);
         
-        DataOutputStream out = null;
+        Set<NodeId> references = externalize(node);
+        if (references != null) {
+            written.put(nodeId, references);
+        } else {
+            written.remove(nodeId);
+        }
+        
+        FileOutputStream fos = null;
         try {
-            out = new DataOutputStream(
-                    new BufferedOutputStream(
-                        new FileOutputStream(file)));
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
             
             int height = node.getHeight();
             out.writeInt(height);
             
             int tupleCount = node.getTupleCount();
-            out.writeInt(tupleCount);
-            for (int i = 0; i < tupleCount; i++) {
-                Tuple tuple = node.getTuple(i);
-                DataUtils.writeBytes(out, tuple.getKey());
-                DataUtils.writeBytes(out, tuple.getValue());
+            Bucket<Tuple> tuples = node.getTuples();
+            
+            if (bplus && tuples instanceof TupleBucket) {
+                ((TupleBucket)tuples).writeTo(out);
+            } else {
+                out.writeInt(tupleCount);
+                for (int i = 0; i < tupleCount; i++) {
+                    if (tuples instanceof TupleBucket) {
+                        ((TupleBucket)tuples).write(out, i);
+                    } else {
+                        Tuple tuple = tuples.get(i);
+                        DataUtils.writeBytes(out, tuple.getKey());
+                        
+                        if (tuple instanceof BlobTuple) {
+                            byte[] reference = ((BlobTuple)tuple).getReference();
+                            out.writeInt(~reference.length);
+                            out.write(reference);
+                        } else {
+                            DataUtils.writeBytes(out, tuple.getValue());
+                        }
+                    }
+                }
             }
             
             if (0 < height) {
@@ -268,20 +1214,265 @@ public class FileNodeProvider implements NodeProvider, Flushable, Closeable {
                 out.writeInt(nodeCount);
                 for (int i = 0; i < nodeCount; i++) {
                     NodeId childId = node.getNode(i);
-                    ((StringId)childId).writeTo(out);
+                    ((LongId)childId).writeTo(out);
+                    out.writeInt(node.getCount(i));
+                }
+            }
+            
+            if (bplus && height == 0) {
+                LongId.writeNullable(out, node.getPrevious());
+                LongId.writeNullable(out, node.getNext());
+            }
+            
+            out.flush();
+            
+            byte[] data = baos.toByteArray();
+            out.writeInt(checksum(data, data.length));
+            out.flush();
+            
+            fos = new FileOutputStream(file);
+            baos.writeTo(fos);
+            
+            if (sync) {
+                fos.getFD().sync();
+                unsynced.remove(nodeId);
+            } else {
+                unsynced.add(nodeId);
+            }
+            
+        } catch (IOException err) {
+            throw new IllegalStateException(err);
+        } finally {
+            IoUtils.close(fos);
+        }
+        
+        shadowed.add(nodeId);
+    }
+    
+    /**
+     * Writes the values of the {@link Node} that are larger than the
+     * threshold to blob files and replaces them with their references.
+     * Returns the blobs that the {@link Node} references or 
+     * {@code null} if there are none.
+     */
+    private Set<NodeId> externalize(Node node) {
+        Bucket<Tuple> tuples = node.getTuples();
+        Set<NodeId> references = null;
+        
+        int tupleCount = node.getTupleCount();
+        for (int i = 0; i < tupleCount; i++) {
+            byte[] reference = node.getReference(i);
+            
+            if (reference == null) {
+                if (node.getValueBuffer(i).remaining() <= threshold) {
+                    continue;
+                }
+                
+                Tuple tuple = tuples.get(i);
+                reference = writeBlob(tuple.getValue());
+                tuples.set(i, new BlobTuple(tuple.getKey(), reference, blobs));
+            }
+            
+            if (references == null) {
+                references = new HashSet<NodeId>();
+            }
+            references.add(blobId(reference));
+        }
+        
+        return references;
+    }
+    
+    /**
+     * Returns the blobs that the {@link Node} references or 
+     * {@code null} if there are none.
+     */
+    private static Set<NodeId> references(Node node) {
+        Set<NodeId> references = null;
+        
+        int tupleCount = node.getTupleCount();
+        for (int i = 0; i < tupleCount; i++) {
+            byte[] reference = node.getReference(i);
+            if (reference != null) {
+                if (references == null) {
+                    references = new HashSet<NodeId>();
+                }
+                references.add(blobId(reference));
+            }
+        }
+        
+        return references;
+    }
+    
+    /**
+     * Writes the value to a new blob file of the next generation 
+     * and returns its reference. The file is forced to disk with
+     * the next checkpoint.
+     */
+    private byte[] writeBlob(byte[] value) {
+        LongId blobId = LongId.valueOf(nextId++);
+        
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file(blobId, generation + 1L));
+            fos.write(value);
+        } catch (IOException err) {
+            throw new IllegalStateException(err);
+        } finally {
+            IoUtils.close(fos);
+        }
+        
+        shadowed.add(blobId);
+        unsynced.add(blobId);
+        created.add(blobId);
+        
+        return ByteBuffer.allocate(8).putLong(blobId.longValue()).array();
+    }
+    
+    /**
+     * Reads the value of the given reference. The value of a blob that
+     * is no longer referenced can be read until the next checkpoint.
+     */
+    private byte[] readBlob(byte[] reference) {
+        checkOpen();
+        
+        NodeId blobId = blobId(reference);
+        
+        try {
+            return readFile(file(blobId, version(blobId)));
+        } catch (IOException err) {
+            throw new IllegalStateException(err);
+        }
+    }
+    
+    private static NodeId blobId(byte[] reference) {
+        return LongId.valueOf(ByteBuffer.wrap(reference).getLong());
+    }
+    
+    /**
+     * Lets the {@link BlobTuple}s of the {@link Bucket} read their 
+     * values from the blob files.
+     */
+    private void bind(Bucket<Tuple> tuples) {
+        if (tuples instanceof TupleBucket) {
+            ((TupleBucket)tuples).setBlobStore(blobs);
+        } else if (tuples instanceof LongBucket) {
+            ((LongBucket)tuples).setBlobStore(blobs);
+        }
+    }
+    
+    /**
+     * Reads the file of a {@link Node} and checks its checksum.
+     */
+    private static byte[] readNode(File file) throws IOException {
+        byte[] data = readFile(file);
+        
+        int end = data.length - CHECKSUM_SIZE;
+        if (end < 0 || checksum(data, end) != getInt(data, end)) {
+            throw new IOException("Corrupt file: " + file);
+        }
+        
+        return data;
+    }
+    
+    private static byte[] readFile(File file) throws IOException {
+        return readFile(file, -1L);
+    }
+    
+    /**
+     * Reads the given number of bytes from the start of the file or the
+     * whole file if the length is negative. The file is read with 
+     * positional reads of a {@link FileChannel} and the reading thread
+     * holds no locks or monitors.
+     */
+    private static byte[] readFile(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            
+            if (length < 0L) {
+                length = channel.size();
+            }
+            
+            if (Integer.MAX_VALUE < length) {
+                throw new IOException("Too large: " + file);
+            }
+            
+            ByteBuffer buffer = ByteBuffer.allocate((int)length);
+            
+            long position = 0L;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new EOFException(file.toString());
                 }
+                position += read;
             }
             
+            return buffer.array();
+        } finally {
+            IoUtils.close(raf);
+        }
+    }
+    
+    private static int checksum(byte[] data, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int)crc.getValue();
+    }
+    
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24)
+            | ((data[offset+1] & 0xFF) << 16)
+            | ((data[offset+2] & 0xFF) << 8)
+            | (data[offset+3] & 0xFF);
+    }
+    
+    private static void sync(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.getFD().sync();
         } catch (IOException err) {
             throw new IllegalStateException(err);
         } finally {
-            IoUtils.close(out);
+            IoUtils.close(raf);
         }
     }
     
-    private void delete(NodeId nodeId) {
-        File file = new File(directory, nodeId.toString());
-        file.delete();
+    /**
+     * Returns the generation of the most recent version of the given {@link Node}.
+     */
+    private long version(NodeId nodeId) {
+        if (shadowed.contains(nodeId)) {
+            return generation + 1L;
+        }
+        
+        Long version = versions.get(nodeId);
+        return version != null ? version : 0L;
+    }
+    
+    /**
+     * Returns the file of the given generation of a {@link Node}.
+     */
+    private File file(NodeId nodeId, long version) {
+        return new File(directory, nodeId + "." + version);
+    }
+    
+    /**
+     * Returns the generation of the given {@link Node} as of the last
+     * checkpoint.
+     */
+    private long committedVersion(NodeId nodeId) {
+        Long version = versions.get(nodeId);
+        return version != null ? version : 0L;
+    }
+    
+    private static IllegalStateException corrupt(NodeId nodeId, String message) {
+        return new IllegalStateException("Corrupt node: " + nodeId + ", " + message);
+    }
+    
+    private void delete(NodeId nodeId, long version) {
+        file(nodeId, version).delete();
     }
     
     @Override
@@ -289,84 +1480,186 @@ public class FileNodeProvider implements NodeProvider, Flushable, Closeable {
         return nodes.toString();
     }
     
-    private static class StringId implements NodeId {
-
-        private static final Random GENERATOR = new SecureRandom();
+    /**
+     * Walks the tree of the last checkpoint in the order of the keys.
+     */
+    private class Scrub {
         
-        private static final char[] ALPHABET = alphabet();
+        private int count = 0;
         
-        private static final int SIZE = 48;
+        /**
+         * The most recent leaf of a B+-Tree.
+         */
+        private Node leaf = null;
         
-        public static StringId create() {
-            char[] nodeId = new char[SIZE];
+        /**
+         * Checks the subtree of the given {@link Node} whose keys must be 
+         * within the given bounds and returns its number of Key-Values.
+         * The lower bound is inclusive in a B+-Tree.
+         */
+        public int verify(NodeId nodeId, int height, byte[] lower, byte[] upper) {
+            Node node = read(nodeId, committedVersion(nodeId));
+            ++count;
+            
+            if (height != -1 && node.getHeight() != height) {
+                throw corrupt(nodeId, "height=" + node.getHeight()
+                        + ", expected=" + height);
+            }
+            
+            int tupleCount = node.getTupleCount();
+            byte[][] keys = new byte[tupleCount][];
+            
+            for (int i = 0; i < tupleCount; i++) {
+                keys[i] = node.getTuple(i).getKey();
+                
+                byte[] previous = (0 < i ? keys[i-1] : lower);
+                if (previous != null) {
+                    int cmp = comparator.compare(previous, keys[i]);
+                    if (0 < cmp || (cmp == 0 && (0 < i || !bplus))) {
+                        throw corrupt(nodeId, "index=" + i + ", order");
+                    }
+                }
+                
+                if (upper != null && comparator.compare(keys[i], upper) >= 0) {
+                    throw corrupt(nodeId, "index=" + i + ", order");
+                }
+                
+                byte[] reference = node.getReference(i);
+                if (reference != null) {
+                    NodeId blobId = blobId(reference);
+                    if (!file(blobId, committedVersion(blobId)).exists()) {
+                        throw corrupt(nodeId, "index=" + i + ", blob=" + blobId);
+                    }
+                }
+            }
+            
+            if (node.isLeaf()) {
+                if (bplus) {
+                    NodeId previous = (leaf != null ? leaf.getId() : null);
+                    if (!equals(node.getPrevious(), previous)
+                            || (leaf != null && !nodeId.equals(leaf.getNext()))) {
+                        throw corrupt(nodeId, "previous=" + node.getPrevious());
+                    }
+                    leaf = node;
+                }
+                return tupleCount;
+            }
             
-            for (int i = 0; i < nodeId.length; i++) {
-                int rnd = GENERATOR.nextInt(ALPHABET.length);
-                nodeId[i] = ALPHABET[rnd];
+            int nodeCount = node.getNodeCount();
+            if (tupleCount != nodeCount-1) {
+                throw corrupt(nodeId, "tupleCount=" + tupleCount
+                        + ", nodeCount=" + nodeCount);
             }
             
-            return create(new String(nodeId));
+            int size = (bplus ? 0 : tupleCount);
+            for (int i = 0; i < nodeCount; i++) {
+                int count = verify(node.getNode(i), node.getHeight() - 1,
+                        (0 < i ? keys[i-1] : lower),
+                        (i < tupleCount ? keys[i] : upper));
+                
+                if (count != node.getCount(i)) {
+                    throw corrupt(nodeId, "index=" + i + ", count="
+                            + node.getCount(i) + ", expected=" + count);
+                }
+                
+                size += count;
+            }
+            
+            return size;
         }
         
-        public static StringId create(String nodeId) {
-            return new StringId(nodeId);
+        private boolean equals(NodeId nodeId, NodeId other) {
+            return nodeId != null ? nodeId.equals(other) : other == null;
         }
+    }
+    
+    /**
+     * The read of the file of a {@link Node} by a background thread.
+     */
+    private static class Prefetch extends FutureTask<byte[]> {
         
-        private final String nodeId;
+        private final long version;
         
-        private StringId(String nodeId) {
+        public Prefetch(final File file, long version) {
+            super(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return readNode(file);
+                }
+            });
+            
+            this.version = version;
+        }
+    }
+    
+    /**
+     * The {@link NodeId}s are numbers that the {@link FileNodeProvider} 
+     * issues in ascending order. They start at 1 and 0 is no {@link Node}.
+     */
+    private static class LongId implements NodeId {
+
+        private static final long NONE = 0L;
+        
+        public static LongId valueOf(long nodeId) {
+            if (nodeId <= NONE) {
+                throw new IllegalArgumentException("nodeId=" + nodeId);
+            }
+            return new LongId(nodeId);
+        }
+        
+        public static LongId valueOf(String nodeId) {
+            return valueOf(Long.parseLong(nodeId));
+        }
+        
+        private final long nodeId;
+        
+        private LongId(long nodeId) {
             this.nodeId = nodeId;
         }
+        
+        public long longValue() {
+            return nodeId;
+        }
 
         @Override
         public int hashCode() {
-            return nodeId.hashCode();
+            return (int)(nodeId ^ (nodeId >>> 32));
         }
         
         @Override
         public boolean equals(Object o) {
             if (o == this) {
                 return true;
-            } else if (!(o instanceof StringId)) {
+            } else if (!(o instanceof LongId)) {
                 return false;
             }
             
-            StringId other = (StringId)o;
-            return nodeId.equals(other.nodeId);
+            LongId other = (LongId)o;
+            return nodeId == other.nodeId;
         }
         
         @Override
         public String toString() {
-            return nodeId;
+            return Long.toString(nodeId);
         }
         
         public void writeTo(DataOutput out) throws IOException {
-            out.writeUTF(nodeId);
+            out.writeLong(nodeId);
         }
         
-        public static StringId valueOf(DataInput in) throws IOException {
-            String nodeId = in.readUTF();
-            return create(nodeId);
+        public static LongId valueOf(DataInput in) throws IOException {
+            return valueOf(in.readLong());
         }
         
-        private static char[] alphabet() {
-            char[] ch = new char[('Z'-'A' + 1) + ('z'-'a' + 1) + ('9'-'0' + 1)];
-            
-            int index = 0;
-            
-            for (int i = 'a'; i <= 'z'; i++) {
-                ch[index++] = (char)i;
-            }
-            
-            for (int i = 'A'; i <= 'Z'; i++) {
-                ch[index++] = (char)i;
-            }
-            
-            for (int i = '0'; i <= '9'; i++) {
-                ch[index++] = (char)i;
-            }
-            
-            return ch;
+        public static void writeNullable(DataOutput out,
+                NodeId nodeId) throws IOException {
+            out.writeLong(nodeId != null ? ((LongId)nodeId).nodeId : NONE);
+        }
+        
+        public static LongId valueOfNullable(
+                DataInput in) throws IOException {
+            long nodeId = in.readLong();
+            return nodeId != NONE ? valueOf(nodeId) : null;
         }
     }
     
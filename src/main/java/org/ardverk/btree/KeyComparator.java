@@ -0,0 +1,272 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The order of the keys in a tree. A {@link NodeProvider} must use
+ * the same {@link KeyComparator} every time it opens the same tree.
+ *
+ * Custom orders override {@link #compare(byte[], int, int, byte[], int, int)}.
+ * The other methods work for any order but an order may know faster
+ * ways to do the same.
+ */
+public abstract class KeyComparator implements Comparator<byte[]> {
+    
+    /**
+     * Orders the keys by their unsigned bytes. A key that is the prefix
+     * of another key is less than the other key.
+     */
+    public static final KeyComparator LEXICOGRAPHIC = new Lexicographic();
+    
+    /**
+     * Orders the keys by their length first and then by their unsigned
+     * bytes. It's the order of the older versions of the tree.
+     */
+    public static final KeyComparator LENGTH_FIRST = new LengthFirst();
+    
+    /**
+     * Orders keys of 8 bytes that are longs. The keys are in the same
+     * order as {@link #LEXICOGRAPHIC} but the {@link Node}s store them 
+     * in a long[].
+     * 
+     * @see LongBinding
+     * @see LongBucket
+     */
+    public static final KeyComparator LONG = new LongKeys();
+    
+    @Override
+    public int compare(byte[] o1, byte[] o2) {
+        if (o1 == null) {
+            return o2 == null ? 0 : -1;
+        } else if (o2 == null) {
+            return 1;
+        }
+        
+        return compare(o1, 0, o1.length, o2, 0, o2.length);
+    }
+    
+    /**
+     * Compares the given ranges of two byte arrays.
+     */
+    public abstract int compare(byte[] b1, int offset1, int length1,
+            byte[] b2, int offset2, int length2);
+    
+    /**
+     * Compares the key with the key that is the concatenation of the
+     * prefix and the given range of the byte array.
+     */
+    public int compare(byte[] key, byte[] prefix,
+            byte[] b, int offset, int length) {
+        if (prefix.length == 0) {
+            return compare(key, 0, key.length, b, offset, length);
+        }
+        
+        byte[] other = Arrays.copyOf(prefix, prefix.length + length);
+        System.arraycopy(b, offset, other, prefix.length, length);
+        return compare(key, 0, key.length, other, 0, other.length);
+    }
+    
+    /**
+     * Returns a key that is greater than the left key and less than
+     * or equal to the right key. The separators of a B+-Tree are
+     * shorter the shorter the returned key is.
+     */
+    public byte[] separator(byte[] left, byte[] right) {
+        return right;
+    }
+    
+    /**
+     * Returns the name of the order. The {@link FileNodeProvider} writes
+     * it to disk and refuses to open a tree in a different order. 
+     * Custom orders are named after their class.
+     */
+    public String getName() {
+        return getClass().getName();
+    }
+    
+    /**
+     * Creates the {@link Bucket} for the {@link Tuple}s of a {@link Node}.
+     */
+    Bucket<Tuple> createBucket(int maxSize) {
+        return new TupleBucket(maxSize);
+    }
+    
+    /**
+     * Reads 8 bytes as a big-endian long. Comparing the longs as
+     * unsigned values is the same as comparing the 8 bytes one
+     * after the other.
+     */
+    private static long getLong(byte[] b, int offset) {
+        return ((long)b[offset] << 56)
+            | ((b[offset + 1] & 0xFFL) << 48)
+            | ((b[offset + 2] & 0xFFL) << 40)
+            | ((b[offset + 3] & 0xFFL) << 32)
+            | ((b[offset + 4] & 0xFFL) << 24)
+            | ((b[offset + 5] & 0xFFL) << 16)
+            | ((b[offset + 6] & 0xFFL) << 8)
+            | (b[offset + 7] & 0xFFL);
+    }
+    
+    /**
+     * Compares the first length bytes of the two ranges. The bytes are
+     * compared 8 at a time and the remainder one at a time.
+     */
+    private static int compareBytes(byte[] b1, int offset1,
+            byte[] b2, int offset2, int length) {
+        
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long l1 = getLong(b1, offset1 + i);
+            long l2 = getLong(b2, offset2 + i);
+            if (l1 != l2) {
+                // Flipping the sign bit makes the signed compare unsigned
+                return (l1 ^ Long.MIN_VALUE) < (l2 ^ Long.MIN_VALUE) ? -1 : 1;
+            }
+        }
+        
+        for (; i < length; i++) {
+            int diff = (b1[offset1 + i] & 0xFF) - (b2[offset2 + i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        
+        return 0;
+    }
+    
+    private static class Lexicographic extends KeyComparator {
+        
+        @Override
+        public String getName() {
+            return "lexicographic";
+        }
+        
+        @Override
+        public int compare(byte[] b1, int offset1, int length1,
+                byte[] b2, int offset2, int length2) {
+            int diff = compareBytes(b1, offset1, b2, offset2,
+                    Math.min(length1, length2));
+            if (diff != 0) {
+                return diff;
+            }
+            return length1 - length2;
+        }
+        
+        /**
+         * The prefix is compared in place and without a copy.
+         */
+        @Override
+        public int compare(byte[] key, byte[] prefix,
+                byte[] b, int offset, int length) {
+            int common = Math.min(key.length, prefix.length);
+            int diff = compareBytes(key, 0, prefix, 0, common);
+            if (diff != 0) {
+                return diff;
+            } else if (common < prefix.length) {
+                return -1;
+            }
+            
+            return compare(key, prefix.length, key.length - prefix.length,
+                    b, offset, length);
+        }
+        
+        /**
+         * The shortest prefix of the right key that is greater than the
+         * left key. It's one byte longer than the prefix the two keys
+         * have in common.
+         */
+        @Override
+        public byte[] separator(byte[] left, byte[] right) {
+            int length = TupleUtils.prefixLength(left, right) + 1;
+            if (length < right.length) {
+                return Arrays.copyOf(right, length);
+            }
+            return right;
+        }
+    }
+    
+    private static class LongKeys extends Lexicographic {
+        
+        @Override
+        public String getName() {
+            return "long";
+        }
+        
+        /**
+         * The separators must be longs as well.
+         */
+        @Override
+        public byte[] separator(byte[] left, byte[] right) {
+            return right;
+        }
+        
+        @Override
+        Bucket<Tuple> createBucket(int maxSize) {
+            return new LongBucket(maxSize);
+        }
+    }
+    
+    private static class LengthFirst extends KeyComparator {
+        
+        @Override
+        public String getName() {
+            return "length-first";
+        }
+        
+        @Override
+        public int compare(byte[] b1, int offset1, int length1,
+                byte[] b2, int offset2, int length2) {
+            int diff = length1 - length2;
+            if (diff != 0) {
+                return diff;
+            }
+            return compareBytes(b1, offset1, b2, offset2, length1);
+        }
+        
+        @Override
+        public int compare(byte[] key, byte[] prefix,
+                byte[] b, int offset, int length) {
+            int diff = key.length - (prefix.length + length);
+            if (diff != 0) {
+                return diff;
+            }
+            
+            diff = compareBytes(key, 0, prefix, 0, prefix.length);
+            if (diff != 0) {
+                return diff;
+            }
+            
+            return compareBytes(key, prefix.length, b, offset, length);
+        }
+        
+        /**
+         * A shorter key is only possible if the left key is shorter
+         * than the right key. It's the smallest key that is one byte
+         * longer than the left key.
+         */
+        @Override
+        public byte[] separator(byte[] left, byte[] right) {
+            if (left.length < right.length) {
+                return new byte[left.length + 1];
+            }
+            return right;
+        }
+    }
+}
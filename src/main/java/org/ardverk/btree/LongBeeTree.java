@@ -0,0 +1,100 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * A tree whose keys are longs. The {@link NodeProvider} should be in the
+ * order of {@link KeyComparator#LONG} and its {@link Node}s keep the keys
+ * in a long[]. The keys of {@link #get(long)} and {@link #put(long, Object)}
+ * are then searched as longs and never turned into bytes.
+ *
+ * The tree works with any {@link NodeProvider} whose order is the order
+ * of the bytes of {@link LongBinding} but it's no faster than a
+ * {@link BeeTree} then.
+ */
+public class LongBeeTree<V> implements Iterable<Entry<Long, V>> {
+    
+    private final NodeProvider provider;
+    
+    private final Binding<V> binding;
+    
+    public LongBeeTree(NodeProvider provider, Binding<V> binding) {
+        this.provider = provider;
+        this.binding = binding;
+    }
+    
+    private RootNode r() {
+        return provider.getRoot();
+    }
+    
+    private V v2o(byte[] value) {
+        return value != null ? binding.dataToObject(value) : null;
+    }
+    
+    public V get(long key) {
+        return v2o(r().getValue(key));
+    }
+    
+    public boolean containsKey(long key) {
+        return r().getValue(key) != null;
+    }
+    
+    public V put(long key, V value) {
+        return v2o(r().put(key, binding.objectToData(value)));
+    }
+    
+    public V remove(long key) {
+        Tuple tuple = r().remove(LongBinding.toBytes(key));
+        return tuple != null ? v2o(tuple.getValue()) : null;
+    }
+    
+    public int size() {
+        return r().size();
+    }
+    
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    @Override
+    public Iterator<Entry<Long, V>> iterator() {
+        final Iterator<Tuple> it = r().iterator();
+        return new Iterator<Entry<Long, V>>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+            
+            @Override
+            public Entry<Long, V> next() {
+                Tuple tuple = it.next();
+                return new AbstractMap.SimpleImmutableEntry<Long, V>(
+                        LongBinding.toLong(tuple.getKey()),
+                        v2o(tuple.getValue()));
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+/**
+ * A {@link Binding} for {@link Long}s. The longs are written as 8 bytes
+ * in big-endian order with the sign bit flipped and their bytes are in
+ * the same order as the longs.
+ *
+ * @see KeyComparator#LONG
+ */
+public class LongBinding implements Binding<Long> {
+    
+    public static final LongBinding BINDING = new LongBinding();
+    
+    /**
+     * The number of bytes of an encoded long.
+     */
+    public static final int SIZE = 8;
+    
+    @Override
+    public byte[] objectToData(Long obj) {
+        return obj != null ? toBytes(obj) : null;
+    }
+    
+    @Override
+    public Long dataToObject(byte[] data) {
+        return data != null ? toLong(data) : null;
+    }
+    
+    /**
+     * Returns the bytes of the given long.
+     */
+    public static byte[] toBytes(long value) {
+        long bits = value ^ Long.MIN_VALUE;
+        
+        byte[] data = new byte[SIZE];
+        for (int i = SIZE - 1; i >= 0; i--) {
+            data[i] = (byte)bits;
+            bits >>>= 8;
+        }
+        return data;
+    }
+    
+    /**
+     * Returns the long of the given bytes.
+     */
+    public static long toLong(byte[] data) {
+        if (data.length != SIZE) {
+            throw new IllegalArgumentException("length=" + data.length);
+        }
+        
+        long bits = 0L;
+        for (int i = 0; i < SIZE; i++) {
+            bits = (bits << 8) | (data[i] & 0xFFL);
+        }
+        return bits ^ Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link Bucket} of {@link Tuple}s whose keys are longs. The keys are
+ * stored in a long[] and searched without decoding them. The keys of the
+ * {@link Tuple}s are the bytes of the longs and a {@link Tuple} is only
+ * created when it's read.
+ *
+ * A value may be the reference of a value in a {@link BlobStore} and
+ * it's read as a {@link BlobTuple}.
+ *
+ * @see LongBinding
+ */
+public class LongBucket extends Bucket<Tuple> {
+    
+    private static final long serialVersionUID = 2818233526442467379L;
+    
+    private final long[] keys;
+    
+    private final byte[][] values;
+    
+    private final boolean[] references;
+    
+    private BlobStore store = null;
+    
+    public LongBucket(int maxSize) {
+        // The elements of the super class are not used
+        super(0);
+        
+        this.keys = new long[maxSize];
+        this.values = new byte[maxSize][];
+        this.references = new boolean[maxSize];
+    }
+    
+    public LongBucket(LongBucket bucket) {
+        this(bucket.keys.length);
+        this.store = bucket.store;
+        addAll(bucket);
+    }
+    
+    /**
+     * Returns the {@link BlobStore} of the references or {@code null}.
+     */
+    public BlobStore getBlobStore() {
+        return store;
+    }
+    
+    /**
+     * Sets the {@link BlobStore} that reads the values of the references.
+     */
+    public void setBlobStore(BlobStore store) {
+        this.store = store;
+    }
+    
+    @Override
+    public int getMaxSize() {
+        return keys.length;
+    }
+    
+    @Override
+    public boolean isOverflow() {
+        return size >= keys.length;
+    }
+    
+    @Override
+    public void add(int index, Tuple tuple) {
+        if (tuple instanceof BlobTuple) {
+            add(index, LongBinding.toLong(tuple.getKey()),
+                    ((BlobTuple)tuple).getReference(), true);
+        } else {
+            add(index, LongBinding.toLong(tuple.getKey()),
+                    tuple.getValue(), false);
+        }
+    }
+    
+    /**
+     * Inserts the Key-Value at the given index.
+     */
+    public void add(int index, long key, byte[] value) {
+        add(index, key, value, false);
+    }
+    
+    private void add(int index, long key, byte[] value, boolean reference) {
+        checkInsert(index);
+        
+        System.arraycopy(keys, index, keys, index+1, size-index);
+        System.arraycopy(values, index, values, index+1, size-index);
+        System.arraycopy(references, index, references, index+1, size-index);
+        
+        keys[index] = key;
+        values[index] = value;
+        references[index] = reference;
+        ++size;
+    }
+    
+    @Override
+    public Tuple set(int index, Tuple tuple) {
+        checkIndex(index);
+        
+        Tuple existing = get(index);
+        keys[index] = LongBinding.toLong(tuple.getKey());
+        
+        if (tuple instanceof BlobTuple) {
+            values[index] = ((BlobTuple)tuple).getReference();
+            references[index] = true;
+        } else {
+            values[index] = tuple.getValue();
+            references[index] = false;
+        }
+        return existing;
+    }
+    
+    /**
+     * Replaces the value at the given index and returns the
+     * previous value.
+     */
+    public byte[] setValue(int index, byte[] value) {
+        byte[] existing = getValue(index);
+        values[index] = value;
+        references[index] = false;
+        return existing;
+    }
+    
+    /**
+     * Returns the {@link Tuple} at the given index or {@code null} if
+     * the index is equal to the size of the {@link LongBucket}.
+     */
+    @Override
+    public Tuple get(int index) {
+        if (index == size) {
+            return null;
+        }
+        
+        checkIndex(index);
+        
+        byte[] key = LongBinding.toBytes(keys[index]);
+        if (references[index]) {
+            return new BlobTuple(key, values[index], store);
+        }
+        return new Tuple(key, values[index]);
+    }
+    
+    /**
+     * Returns the key at the given index.
+     */
+    public long getKey(int index) {
+        checkIndex(index);
+        return keys[index];
+    }
+    
+    /**
+     * Returns the value at the given index. The value of a reference
+     * is read from the {@link BlobStore}.
+     */
+    public byte[] getValue(int index) {
+        checkIndex(index);
+        
+        byte[] value = values[index];
+        return references[index] ? store.read(value) : value;
+    }
+    
+    /**
+     * Returns the reference at the given index or {@code null}
+     * if the value is stored in the {@link LongBucket}.
+     */
+    public byte[] getReference(int index) {
+        checkIndex(index);
+        return references[index] ? values[index] : null;
+    }
+    
+    /**
+     * Returns a read-only view of the value at the given index.
+     */
+    public ByteBuffer getValueBuffer(int index) {
+        return ByteBuffer.wrap(getValue(index)).asReadOnlyBuffer();
+    }
+    
+    @Override
+    public Tuple remove(int index) {
+        checkIndex(index);
+        
+        Tuple tuple = get(index);
+        
+        --size;
+        System.arraycopy(keys, index+1, keys, index, size-index);
+        System.arraycopy(values, index+1, values, index, size-index);
+        System.arraycopy(references, index+1, references, index, size-index);
+        values[size] = null;
+        
+        return tuple;
+    }
+    
+    @Override
+    public void addAll(int index, Bucket<? extends Tuple> bucket) {
+        if (index < 0 || size < index
+                || keys.length < size + bucket.size()) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        
+        if (bucket instanceof LongBucket) {
+            LongBucket other = (LongBucket)bucket;
+            
+            System.arraycopy(keys, index, keys, index + other.size, size - index);
+            System.arraycopy(values, index, values, index + other.size, size - index);
+            System.arraycopy(references, index,
+                    references, index + other.size, size - index);
+            
+            System.arraycopy(other.keys, 0, keys, index, other.size);
+            System.arraycopy(other.values, 0, values, index, other.size);
+            System.arraycopy(other.references, 0, references, index, other.size);
+            size += other.size;
+        } else {
+            int count = bucket.size();
+            for (int i = 0; i < count; i++) {
+                add(index + i, bucket.get(i));
+            }
+        }
+    }
+    
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            values[i] = null;
+        }
+        size = 0;
+    }
+    
+    /**
+     * Searches for the given key and returns its index or
+     * {@code -(insertion point) - 1} if it doesn't exist.
+     */
+    public int binarySearch(long key) {
+        int low = 0;
+        int high = size - 1;
+        
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            
+            long midKey = keys[mid];
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid; // key found
+            }
+        }
+        
+        return -(low + 1);  // key not found
+    }
+    
+    /**
+     * Searches for the given key in the order of the given
+     * {@link KeyComparator}. Keys of 8 bytes are searched as longs
+     * if it's the order of the longs.
+     */
+    public int binarySearch(byte[] key, KeyComparator comparator) {
+        if (comparator == KeyComparator.LONG
+                && key.length == LongBinding.SIZE) {
+            return binarySearch(LongBinding.toLong(key));
+        }
+        
+        int low = 0;
+        int high = size - 1;
+        
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            
+            int cmp = comparator.compare(
+                    LongBinding.toBytes(keys[mid]), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid; // key found
+            }
+        }
+        
+        return -(low + 1);  // key not found
+    }
+    
+    @Override
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            
+            private int index = 0;
+            
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+            
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(index++);
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T[] toArray(T[] a) {
+        if (a.length < size) {
+            Class<?> componentType = a.getClass().getComponentType();
+            a = (T[])Array.newInstance(componentType, size);
+        }
+        
+        for (int i = 0; i < size; i++) {
+            a[i] = (T)get(i);
+        }
+        return a;
+    }
+    
+    private void checkIndex(int index) {
+        if (index < 0 || size <= index) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+    
+    private void checkInsert(int index) {
+        if (index < 0 || size < index) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        
+        if (size >= keys.length) {
+            throw new ArrayIndexOutOfBoundsException("Max Size: " + keys.length);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("[");
+        
+        if (!isEmpty()) {
+            for (int i = 0; i < size; i++) {
+                sb.append(keys[i]).append(", ");
+            }
+            sb.setLength(sb.length()-2);
+        }
+        
+        sb.append("]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link NodeCache} that evicts the least recently used {@link Node}.
+ */
+public class LruNodeCache extends NodeCache {
+    
+    private final Map<NodeId, Entry> entries
+        = new LinkedHashMap<NodeId, Entry>(16, 0.75f, true);
+    
+    public LruNodeCache(long capacity) {
+        this(capacity, NODES);
+    }
+    
+    public LruNodeCache(long capacity, Weigher weigher) {
+        super(capacity, weigher);
+    }
+    
+    @Override
+    public int size() {
+        return entries.size();
+    }
+    
+    @Override
+    protected Entry lookup(NodeId nodeId) {
+        return entries.get(nodeId);
+    }
+    
+    @Override
+    protected void insert(Entry entry) {
+        entries.put(entry.node.getId(), entry);
+    }
+    
+    @Override
+    protected Entry delete(NodeId nodeId) {
+        return entries.remove(nodeId);
+    }
+    
+    @Override
+    protected Entry victim() {
+        for (Entry entry : entries.values()) {
+            if (!isPinned(entry)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    protected Iterable<Entry> entries() {
+        return entries.values();
+    }
+}
@@ -16,24 +16,67 @@
 
 package org.ardverk.btree;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * A {@link NodeProvider} that keeps all {@link Node}s in memory. The 
+ * {@link NodeId}s hold on to their {@link Node}s and there is no table
+ * to look them up. A {@link Node} is garbage once it's freed and no 
+ * other {@link Node} refers to it.
+ */
 public class MemoryNodeProvider implements NodeProvider {
 
-    private final Map<NodeId, Node> nodes 
-        = new HashMap<NodeId, Node>();
-    
     private final int t;
     
+    private final boolean bplus;
+    
+    private final KeyComparator comparator;
+    
+    private final boolean concurrent;
+    
     private final RootNode root;
     
     public MemoryNodeProvider(int t) {
+        this(t, false);
+    }
+    
+    /**
+     * Creates a {@link MemoryNodeProvider} that is safe to use from 
+     * multiple threads if concurrent is {@code true}.
+     * 
+     * @see ConcurrentRootNode
+     */
+    public MemoryNodeProvider(int t, boolean concurrent) {
+        this(t, concurrent, false);
+    }
+    
+    /**
+     * Creates a {@link MemoryNodeProvider} for a B+-Tree if bplus 
+     * is {@code true}.
+     * 
+     * @see Node#isBPlusTree()
+     */
+    public MemoryNodeProvider(int t, boolean concurrent, boolean bplus) {
+        this(t, concurrent, bplus, KeyComparator.LEXICOGRAPHIC);
+    }
+    
+    /**
+     * Creates a {@link MemoryNodeProvider} whose keys are in the order 
+     * of the given {@link KeyComparator}.
+     */
+    public MemoryNodeProvider(int t, boolean concurrent, boolean bplus,
+            KeyComparator comparator) {
         this.t = t;
+        this.bplus = bplus;
+        this.comparator = comparator;
+        this.concurrent = concurrent;
         
         Node node = allocate(0);
-        root = new RootNode(this, node, 0);
+        if (concurrent) {
+            root = new ConcurrentRootNode(this, node, 0);
+        } else {
+            root = new RootNode(this, node, 0);
+        }
     }
     
     @Override
@@ -44,24 +87,42 @@ public class MemoryNodeProvider implements NodeProvider {
     @Override
     public Node allocate(int height) {
         IntegerId nodeId = new IntegerId();
-        Node node = new Node(nodeId, height, t);
-        nodes.put(nodeId, node);
+        Node node = new Node(nodeId, height, t, bplus, comparator);
+        if (concurrent) {
+            node.createLatch();
+        }
+        nodeId.node = node;
         return node;
     }
 
     @Override
     public void free(Node node) {
-        nodes.remove(node.getId());
+        ((IntegerId)node.getId()).node = null;
     }
 
     @Override
     public Node get(NodeId nodeId, Intent intent) {
-        return nodes.get(nodeId);
+        return ((IntegerId)nodeId).node;
+    }
+    
+    @Override
+    public void prefetch(NodeId nodeId) {
+        // Do nothing
+    }
+    
+    @Override
+    public int getPrefetchWindow() {
+        return 0;
+    }
+    
+    @Override
+    public KeyComparator getComparator() {
+        return comparator;
     }
     
     @Override
     public String toString() {
-        return root + ", " + nodes;
+        return root.toString();
     }
     
     private static class IntegerId implements NodeId {
@@ -70,6 +131,11 @@ public class MemoryNodeProvider implements NodeProvider {
         
         private final int value = COUNTER.incrementAndGet();
         
+        /**
+         * The {@link Node} or {@code null} if it was freed.
+         */
+        private volatile Node node = null;
+        
         @Override
         public int hashCode() {
             return value;
@@ -16,40 +16,163 @@
 
 package org.ardverk.btree;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.ardverk.btree.NodeProvider.Intent;
 
 public class Node extends AbstractNode {
     
+    private static final byte[] EMPTY = new byte[0];
+    
     private final Bucket<Tuple> tuples;
     
     private final Bucket<NodeId> children;
     
+    /**
+     * The number of Key-Values in the subtree of every child.
+     */
+    private final int[] counts;
+    
+    /**
+     * The internal {@link Node}s of a B+-Tree hold only separator keys
+     * and all Key-Values are stored in the leaves.
+     */
+    private final boolean bplus;
+    
+    /**
+     * The order of the keys.
+     */
+    private final KeyComparator comparator;
+    
+    /**
+     * The leaves of a B+-Tree are linked to their neighbors.
+     */
+    private NodeId previous = null;
+    
+    private NodeId next = null;
+    
+    /**
+     * The latch is only used by {@link ConcurrentRootNode} and by
+     * {@link #split(NodeProvider)} to relink the leaves of a B+-Tree.
+     * It's {@code null} unless the {@link NodeProvider} is concurrent.
+     */
+    private ReentrantReadWriteLock latch = null;
+    
     public Node(NodeId nodeId, int height, int t) {
-        this(nodeId, height, t, new Bucket<Tuple>(2*t-1), 
-                createBucket(height, 2*t));
+        this(nodeId, height, t, false);
+    }
+    
+    public Node(NodeId nodeId, int height, int t, boolean bplus) {
+        this(nodeId, height, t, bplus, KeyComparator.LEXICOGRAPHIC);
+    }
+    
+    public Node(NodeId nodeId, int height, int t, boolean bplus,
+            KeyComparator comparator) {
+        this(nodeId, height, t, comparator.createBucket(2*t-1),
+                createBucket(height, 2*t), bplus, comparator);
     }
     
     public Node(NodeId nodeId, int height, int t, 
             Bucket<Tuple> tuples, 
             Bucket<NodeId> children) {
+        this(nodeId, height, t, tuples, children, false);
+    }
+    
+    public Node(NodeId nodeId, int height, int t,
+            Bucket<Tuple> tuples,
+            Bucket<NodeId> children, boolean bplus) {
+        this(nodeId, height, t, tuples, children, bplus,
+                KeyComparator.LEXICOGRAPHIC);
+    }
+    
+    public Node(NodeId nodeId, int height, int t,
+            Bucket<Tuple> tuples,
+            Bucket<NodeId> children, boolean bplus,
+            KeyComparator comparator) {
         super(nodeId, height, t);
         
         this.tuples = tuples;
+        this.bplus = bplus;
+        this.comparator = comparator;
         
         if (height == 0) {
             children = null;
         }
         
         this.children = children;
+        this.counts = (children != null ? new int[children.getMaxSize()] : null);
         
         assert (tuples.getMaxSize() == 2*t-1);
         assert (children == null || children.getMaxSize() == 2*t);
     }
+    
+    /**
+     * Creates the latch of the {@link Node}. It must be called before 
+     * the {@link Node} is seen by any other thread.
+     * 
+     * @see ConcurrentRootNode
+     */
+    void createLatch() {
+        latch = new ReentrantReadWriteLock();
+    }
+    
+    /**
+     * Returns the shared latch of the {@link Node}.
+     */
+    Lock readLatch() {
+        return latch.readLock();
+    }
+    
+    /**
+     * Returns the exclusive latch of the {@link Node}.
+     */
+    Lock writeLatch() {
+        return latch.writeLock();
+    }
+    
+    /**
+     * Returns {@code true} if the {@link Node} is part of a B+-Tree.
+     */
+    public boolean isBPlusTree() {
+        return bplus;
+    }
+    
+    /**
+     * Returns the order of the keys.
+     */
+    public KeyComparator getComparator() {
+        return comparator;
+    }
+    
+    /**
+     * Returns the {@link NodeId} of the left neighbor of a leaf of a 
+     * B+-Tree or {@code null} if it's the first leaf.
+     */
+    public NodeId getPrevious() {
+        return previous;
+    }
+    
+    void setPrevious(NodeId previous) {
+        this.previous = previous;
+    }
+    
+    /**
+     * Returns the {@link NodeId} of the right neighbor of a leaf of a 
+     * B+-Tree or {@code null} if it's the last leaf.
+     */
+    public NodeId getNext() {
+        return next;
+    }
+    
+    void setNext(NodeId next) {
+        this.next = next;
+    }
 
     public Bucket<Tuple> getTuples() {
         return tuples;
@@ -67,6 +190,44 @@ public class Node extends AbstractNode {
         return children != null ? children.size() : 0;
     }
     
+    /**
+     * Returns the number of Key-Values in the subtree of the given child.
+     */
+    public int getCount(int index) {
+        if (index < 0 || getNodeCount() <= index) {
+            throw new IndexOutOfBoundsException("index=" + index);
+        }
+        return counts[index];
+    }
+    
+    void setCount(int index, int count) {
+        counts[index] = count;
+    }
+    
+    /**
+     * Returns the sum of the counts of the first n children.
+     */
+    private int sum(int n) {
+        int sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += counts[i];
+        }
+        return sum;
+    }
+    
+    /**
+     * Returns the number of Key-Values in the subtree of this {@link Node}.
+     * The separators of a B+-Tree don't count.
+     */
+    public int getSubtreeSize() {
+        if (isLeaf()) {
+            return getTupleCount();
+        }
+        
+        int size = sum(getNodeCount());
+        return bplus ? size : size + getTupleCount();
+    }
+    
     public Tuple getTuple(int index) {
         return tuples.get(index);
     }
@@ -96,6 +257,8 @@ public class Node extends AbstractNode {
     }
     
     private NodeId removeNode(int index) {
+        int nodeCount = getNodeCount();
+        System.arraycopy(counts, index+1, counts, index, nodeCount-index-1);
         return children.remove(index);
     }
     
@@ -104,7 +267,7 @@ public class Node extends AbstractNode {
     }
     
     private NodeId removeFirstNode() {
-        return children.removeFirst();
+        return removeNode(0);
     }
     
     private NodeId lastNode() {
@@ -112,7 +275,7 @@ public class Node extends AbstractNode {
     }
     
     private NodeId removeLastNode() {
-        return children.removeLast();
+        return removeNode(getNodeCount()-1);
     }
     
     /**
@@ -163,7 +326,7 @@ public class Node extends AbstractNode {
         return provider.get(last, intent);
     }
     
-    private Node getNode(NodeProvider provider, 
+    Node getNode(NodeProvider provider,
             int index, Intent intent) {
         NodeId nodeId = getNode(index);
         return provider.get(nodeId, intent);
@@ -185,57 +348,279 @@ public class Node extends AbstractNode {
         tuples.add(index, tuple);
     }
     
-    public void addNode(NodeId nodeId) {
-        children.addLast(nodeId);
+    /**
+     * Adds the {@link NodeId} of a child and the number of Key-Values
+     * in its subtree.
+     */
+    public void addNode(NodeId nodeId, int count) {
+        addNode(getNodeCount(), nodeId, count);
     }
     
-    public void addFirstNode(NodeId nodeId) {
-        children.addFirst(nodeId);
+    public void addFirstNode(NodeId nodeId, int count) {
+        addNode(0, nodeId, count);
     }
     
-    private void addNode(int index, NodeId nodeId) {
+    private void addNode(int index, NodeId nodeId, int count) {
         children.add(index, nodeId);
+        
+        int nodeCount = getNodeCount();
+        System.arraycopy(counts, index, counts, index+1, nodeCount-index-1);
+        counts[index] = count;
     }
     
     public void addTupleNode(TupleNode median) {
         addTupleNode(getTupleCount(), median);
     }
     
-    private void addTupleNode(int index, TupleNode median) {
+    void addTupleNode(int index, TupleNode median) {
         addTuple(index, median.getTuple());
-        addNode(index+1, median.getNode());
+        addNode(index+1, median.getNode(), median.getCount());
+    }
+    
+    int binarySearch(byte[] key) {
+        return TupleUtils.binarySearch(tuples, key, comparator);
+    }
+    
+    /**
+     * Searches for a long key without turning it into bytes if the 
+     * keys are in a {@link LongBucket}.
+     */
+    int binarySearch(long key) {
+        if (tuples instanceof LongBucket) {
+            return ((LongBucket)tuples).binarySearch(key);
+        }
+        return binarySearch(LongBinding.toBytes(key));
+    }
+    
+    /**
+     * Returns the value of the {@link Tuple} at the given index.
+     */
+    byte[] getValue(int index) {
+        if (tuples instanceof LongBucket) {
+            return ((LongBucket)tuples).getValue(index);
+        } else if (tuples instanceof TupleBucket) {
+            return ((TupleBucket)tuples).getValue(index);
+        }
+        return tuples.get(index).getValue();
+    }
+    
+    /**
+     * Returns a read-only view of the value of the {@link Tuple} at
+     * the given index without copying it.
+     */
+    ByteBuffer getValueBuffer(int index) {
+        if (tuples instanceof TupleBucket) {
+            return ((TupleBucket)tuples).getValueBuffer(index);
+        } else if (tuples instanceof LongBucket) {
+            return ((LongBucket)tuples).getValueBuffer(index);
+        }
+        return ByteBuffer.wrap(tuples.get(index).getValue()).asReadOnlyBuffer();
+    }
+    
+    /**
+     * Returns the reference of the value of the {@link Tuple} at the
+     * given index or {@code null} if the value is in the {@link Node}.
+     *
+     * @see BlobStore
+     */
+    byte[] getReference(int index) {
+        if (tuples instanceof TupleBucket) {
+            return ((TupleBucket)tuples).getReference(index);
+        } else if (tuples instanceof LongBucket) {
+            return ((LongBucket)tuples).getReference(index);
+        }
+        
+        Tuple tuple = tuples.get(index);
+        if (tuple instanceof BlobTuple) {
+            return ((BlobTuple)tuple).getReference();
+        }
+        return null;
     }
     
-    private int binarySearch(byte[] key) {
-        return TupleUtils.binarySearch(tuples, key);
+    /**
+     * Turns the result of {@link #binarySearch(byte[])} into the index 
+     * of the child {@link Node} where the search continues. Keys that 
+     * are equal to a separator are in its right subtree.
+     */
+    int childIndex(int index) {
+        return index >= 0 ? index + 1 : -index - 1;
     }
     
+    /**
+     * Returns a separator {@link Tuple} whose key is greater than the
+     * left key and less than or equal to the right key.
+     */
+    Tuple separator(byte[] left, byte[] right) {
+        return new Tuple(comparator.separator(left, right), EMPTY);
+    }
+    
+    /**
+     * Returns the {@link Tuple} with the least key that is greater 
+     * than or equal to the given key.
+     */
     public Tuple ceilingTuple(NodeProvider provider, byte[] key) {
+        return closestTuple(provider, key, true, false);
+    }
+        
+    /**
+     * Returns the {@link Tuple} with the least key that is strictly 
+     * greater than the given key.
+     */
+    public Tuple higherTuple(NodeProvider provider, byte[] key) {
+        return closestTuple(provider, key, false, false);
+    }
+        
+    /**
+     * Returns the {@link Tuple} with the greatest key that is less 
+     * than or equal to the given key.
+     */
+    public Tuple floorTuple(NodeProvider provider, byte[] key) {
+        return closestTuple(provider, key, true, true);
+    }
+    
+    /**
+     * Returns the {@link Tuple} with the greatest key that is strictly 
+     * less than the given key.
+     */
+    public Tuple lowerTuple(NodeProvider provider, byte[] key) {
+        return closestTuple(provider, key, false, true);
+    }
+    
+    /**
+     * Walks down once and returns the {@link Tuple} that is closest to
+     * the key in the given direction. The internal {@link Node}s of a 
+     * B-Tree remember their closest {@link Tuple} on the way down in 
+     * case the leaf has none. A leaf of a B+-Tree falls back to its 
+     * neighbor instead.
+     */
+    private Tuple closestTuple(NodeProvider provider, byte[] key,
+            boolean inclusive, boolean descending) {
+        
+        Tuple closest = null;
+        
+        Node node = this;
+        while (true) {
+            int index = node.binarySearch(key);
+            boolean leaf = node.isLeaf();
+            
+            if (index >= 0 && inclusive && (leaf || !bplus)) {
+                return node.getTuple(index);
+            }
+            
+            // The index of the next Tuple in the given direction
+            int adjacent = 0;
+            if (index >= 0) {
+                adjacent = (descending ? index - 1 : index + 1);
+            } else {
+                adjacent = (descending ? -index - 2 : -index - 1);
+            }
+            
+            boolean found = (0 <= adjacent && adjacent < node.getTupleCount());
+            
+            if (leaf) {
+                if (found) {
+                    return node.getTuple(adjacent);
+                }
+                
+                if (bplus) {
+                    NodeId nodeId = (descending ? node.previous : node.next);
+                    if (nodeId != null) {
+                        Node neighbor = provider.get(nodeId, Intent.READ);
+                        return descending ? neighbor.lastTuple()
+                                : neighbor.firstTuple();
+                    }
+                }
+                
+                return closest;
+            }
+            
+            int path = 0;
+            if (bplus) {
+                path = node.childIndex(index);
+            } else {
+                if (found) {
+                    closest = node.getTuple(adjacent);
+                }
+                
+                // The key itself doesn't count, look next to it
+                if (index >= 0) {
+                    path = (descending ? index : index + 1);
+                } else {
+                    path = -index - 1;
+                }
+            }
+            
+            node = node.getNode(provider, path, Intent.READ);
+        }
+    }
+    
+    /**
+     * Returns the number of Key-Values whose keys are less than (or 
+     * equal to) the given key.
+     */
+    public int rank(NodeProvider provider, byte[] key, boolean inclusive) {
         int index = binarySearch(key);
         
-        if (index >= 0 || isLeaf()) {
+        if (isLeaf()) {
             if (index < 0) {
-                index = -index - 1;
+                return -index - 1;
             }
+            return inclusive ? index + 1 : index;
+        }
             
+        // The Key-Value is in this Node and it comes after all
+        // Key-Values of the children to its left.
+        if (index >= 0 && !bplus) {
+            return sum(index + 1) + (inclusive ? index + 1 : index);
+        }
+        
+        int path = childIndex(index);
+        Node node = getNode(provider, path, Intent.READ);
+        
+        int rank = sum(path) + node.rank(provider, key, inclusive);
+        return bplus ? rank : rank + path;
+    }
+    
+    /**
+     * Returns the {@link Tuple} at the given position in the order 
+     * of the keys.
+     */
+    public Tuple select(NodeProvider provider, int index) {
+        if (isLeaf()) {
             return getTuple(index);
         }
         
-        Node node = getNode(provider, -index - 1, Intent.READ);
-        return node.ceilingTuple(provider, key);
+        for (int i = 0; i < getNodeCount(); i++) {
+            if (index < counts[i]) {
+                Node node = getNode(provider, i, Intent.READ);
+                return node.select(provider, index);
+            }
+            
+            index -= counts[i];
+            
+            // The Tuple between this and the next child
+            if (!bplus && i < getTupleCount()) {
+                if (index == 0) {
+                    return getTuple(i);
+                }
+                --index;
+            }
+        }
+        
+        throw new IndexOutOfBoundsException("index=" + index);
     }
     
     public Tuple get(NodeProvider provider, byte[] key) {
         int index = binarySearch(key);
         
-        // Found the Key?
-        if (index >= 0) {
+        // Found the Key? The separators of a B+-Tree don't count.
+        if (index >= 0 && (!bplus || isLeaf())) {
             return getTuple(index);
         }
         
         // I didn't find it but I know where to look for it!
         if (!isLeaf()) {
-            Node node = getNode(provider, -index - 1, Intent.READ);
+            Node node = getNode(provider, childIndex(index), Intent.READ);
             return node.get(provider, key);
         }
         return null;
@@ -245,34 +630,93 @@ public class Node extends AbstractNode {
         int index = binarySearch(key);
         
         // Replace an existing Key-Value
-        if (index >= 0) {
+        if (index >= 0 && (!bplus || isLeaf())) {
             return setTuple(index, new Tuple(key, value));
         }
         
-        assert (index < 0);
-        index = -index - 1;
+        // Found a leaf where it should be stored!
+        if (isLeaf()) {
+            assert (!isOverflow());
+            addTuple(-index - 1, new Tuple(key, value));
+            return null;
+        }
+        
+        // Keep looking!
+        index = childIndex(index);
+        Node node = getNode(provider, index, Intent.WRITE);
+        
+        if (node.isOverflow()) {
+            TupleNode median = node.split(provider);
+            addTupleNode(index, median);
+            setCount(index, node.getSubtreeSize());
+            
+            // The key may have moved up into this Node with the median
+            int cmp = comparator.compare(key, median.getKey());
+            if (cmp == 0 && !bplus) {
+                return setTuple(index, new Tuple(key, value));
+            } else if (0 <= cmp) {
+                node = getNode(provider, ++index, Intent.WRITE);
+            }
+        }
+        
+        Tuple tuple = node.put(provider, key, value);
+        
+        // A new Key-Value was inserted into the child's subtree
+        if (tuple == null) {
+            ++counts[index];
+        }
+        
+        return tuple;
+    }
+    
+    /**
+     * Puts a Key-Value into a {@link Node} whose keys are in a 
+     * {@link LongBucket} and returns the previous value. It's the
+     * same as {@link #put(NodeProvider, byte[], byte[])} but the
+     * key stays a long.
+     */
+    byte[] put(NodeProvider provider, long key, byte[] value) {
+        LongBucket bucket = (LongBucket)tuples;
+        int index = bucket.binarySearch(key);
+        
+        // Replace an existing Key-Value
+        if (index >= 0 && (!bplus || isLeaf())) {
+            return bucket.setValue(index, value);
+        }
         
         // Found a leaf where it should be stored!
         if (isLeaf()) {
             assert (!isOverflow());
-            addTuple(index, new Tuple(key, value));
+            bucket.add(-index - 1, key, value);
             return null;
         }
         
         // Keep looking!
+        index = childIndex(index);
         Node node = getNode(provider, index, Intent.WRITE);
         
         if (node.isOverflow()) {
             TupleNode median = node.split(provider);
             addTupleNode(index, median);
+            setCount(index, node.getSubtreeSize());
             
-            int cmp = TupleUtils.compare(key, median.getKey());
-            if (0 < cmp) {
-                node = getNode(provider, index + 1, Intent.WRITE);
+            // The key may have moved up into this Node with the median
+            long medianKey = LongBinding.toLong(median.getKey());
+            if (key == medianKey && !bplus) {
+                return bucket.setValue(index, value);
+            } else if (medianKey <= key) {
+                node = getNode(provider, ++index, Intent.WRITE);
             }
         }
         
-        return node.put(provider, key, value);
+        byte[] existing = node.put(provider, key, value);
+        
+        // A new Key-Value was inserted into the child's subtree
+        if (existing == null) {
+            ++counts[index];
+        }
+        
+        return existing;
     }
     
     public Tuple remove(NodeProvider provider, byte[] key) {
@@ -288,21 +732,25 @@ public class Node extends AbstractNode {
         }
         
         // Found the Key-Value in an internal Node!
-        if (index >= 0) {
+        if (index >= 0 && !bplus) {
             return removeInternal(provider, key, index);
         } 
         
         // Keep looking
-        assert (index < 0);
-        index = -index - 1;
+        index = childIndex(index);
         
         Node node = getNode(provider, index, Intent.WRITE);
         
         if (node.isUnderflow()) {
-            fix(provider, node, index);
+            index = fix(provider, node, index);
+        }
+        
+        Tuple tuple = node.remove(provider, key);
+        if (tuple != null) {
+            --counts[index];
         }
         
-        return node.remove(provider, key);
+        return tuple;
     }
     
     private Tuple removeInternal(NodeProvider provider, byte[] key, int index) {
@@ -313,6 +761,7 @@ public class Node extends AbstractNode {
             Tuple last = left.lastTuple(provider, Intent.WRITE);
             tuple = setTuple(index, last);
             left.remove(provider, last.getKey());
+            --counts[index];
             
         } else {
             
@@ -321,6 +770,7 @@ public class Node extends AbstractNode {
                 Tuple first = right.firstTuple(provider, Intent.WRITE);
                 tuple = setTuple(index, first);
                 right.remove(provider, first.getKey());
+                --counts[index+1];
             } else {
                 
                 Tuple median = removeTuple(index);
@@ -331,13 +781,19 @@ public class Node extends AbstractNode {
                 provider.free(right);
                 
                 tuple = left.remove(provider, key);
+                setCount(index, left.getSubtreeSize());
             }
         }
         
         return tuple;
     }
     
-    private void fix(NodeProvider provider, Node node, int index) {
+    /**
+     * Makes sure the child at the given index has more than the minimum
+     * number of {@link Tuple}s and returns its index. The index changes
+     * if the child is merged with its left sibling.
+     */
+    int fix(NodeProvider provider, Node node, int index) {
         
         Node left = null;
         if (0 < index) {
@@ -347,12 +803,25 @@ public class Node extends AbstractNode {
         // Borrow Entry from left sibling
         if (left != null && !left.isUnderflow()) {
             Tuple last = left.removeLastTuple();
-            Tuple tuple = setTuple(index-1, last);
-            node.addFirstTuple(tuple);
+            
+            // The separator moves to the new boundary
+            if (bplus && node.isLeaf()) {
+                node.addFirstTuple(last);
+                setTuple(index-1, separator(
+                        left.lastTuple().getKey(), last.getKey()));
+                
+            } else {
+                Tuple tuple = setTuple(index-1, last);
+                node.addFirstTuple(tuple);
+            }
             
             if (!node.isLeaf()) {
-                node.addFirstNode(left.removeLastNode());
+                int count = left.getCount(left.getNodeCount()-1);
+                node.addFirstNode(left.removeLastNode(), count);
             }
+            
+            setCount(index-1, left.getSubtreeSize());
+            setCount(index, node.getSubtreeSize());
         } else {
             
             Node right = null;
@@ -363,12 +832,24 @@ public class Node extends AbstractNode {
             // Borrow tuple from right sibling
             if (right != null && !right.isUnderflow()) {
                 Tuple first = right.removeFirstTuple();
-                Tuple tuple = setTuple(index, first);
-                node.addTuple(tuple);
+                
+                if (bplus && node.isLeaf()) {
+                    node.addTuple(first);
+                    setTuple(index, separator(
+                            first.getKey(), right.firstTuple().getKey()));
+                    
+                } else {
+                    Tuple tuple = setTuple(index, first);
+                    node.addTuple(tuple);
+                }
                 
                 if (!node.isLeaf()) {
-                    node.addNode(right.removeFirstNode());
+                    int count = right.getCount(0);
+                    node.addNode(right.removeFirstNode(), count);
                 }
+                
+                setCount(index, node.getSubtreeSize());
+                setCount(index+1, right.getSubtreeSize());
             
             // Neither sibling has enough Entries! Merge them!
             } else {
@@ -379,7 +860,13 @@ public class Node extends AbstractNode {
                     
                     node.mergeWithLeft(median, left);
                     
+                    if (bplus && node.isLeaf()) {
+                        node.replace(provider, left);
+                    }
+                    
                     provider.free(left);
+                    
+                    setCount(--index, node.getSubtreeSize());
                 } else {
                     
                     Tuple median = removeTuple(index);
@@ -387,25 +874,68 @@ public class Node extends AbstractNode {
                     
                     node.mergeWithRight(median, right);
                     
+                    if (bplus && node.isLeaf()) {
+                        node.replace(provider, right);
+                    }
+                    
                     provider.free(right);
+                    
+                    setCount(index, node.getSubtreeSize());
                 }
             }
         }
+        
+        return index;
     }
     
+    /**
+     * Takes the place of the given neighbor in the chain of leaves. 
+     * The neighbor was merged into this leaf and is about to be freed.
+     */
+    private void replace(NodeProvider provider, Node neighbor) {
+        if (neighbor.getId().equals(previous)) {
+            previous = neighbor.previous;
+            if (previous != null) {
+                provider.get(previous, Intent.WRITE).next = getId();
+            }
+        } else {
+            next = neighbor.next;
+            if (next != null) {
+                provider.get(next, Intent.WRITE).previous = getId();
+            }
+        }
+    }
+    
+    /**
+     * Merges the right sibling into this {@link Node}. The median is
+     * dropped if it's the separator of two leaves of a B+-Tree.
+     */
     private void mergeWithRight(Tuple median, Node right) {
-        tuples.addLast(median);
+        if (!bplus || !isLeaf()) {
+            tuples.addLast(median);
+        }
         tuples.addAll(right.tuples);
         if (!isLeaf()) {
+            int nodeCount = getNodeCount();
             children.addAll(right.children);
+            System.arraycopy(right.counts, 0, counts,
+                    nodeCount, right.getNodeCount());
         }
     }
     
+    /**
+     * @see #mergeWithRight(Tuple, Node)
+     */
     private void mergeWithLeft(Tuple median, Node left) {
-        tuples.addFirst(median);
+        if (!bplus || !isLeaf()) {
+            tuples.addFirst(median);
+        }
         tuples.addAll(0, left.tuples);
         if (!isLeaf()) {
+            int nodeCount = left.getNodeCount();
+            System.arraycopy(counts, 0, counts, nodeCount, getNodeCount());
             children.addAll(0, left.children);
+            System.arraycopy(left.counts, 0, counts, 0, nodeCount);
         }
     }
     
@@ -418,22 +948,50 @@ public class Node extends AbstractNode {
         
         Node dst = provider.allocate(height);
         
+        // The leaves of a B+-Tree keep all Key-Values and
+        // only a separator moves up.
+        if (leaf && bplus) {
+            while (m < getTupleCount()) {
+                dst.addTuple(removeTuple(m));
+            }
+            
+            // The new leaf goes between this leaf and its right neighbor.
+            // The neighbor is latched because a ConcurrentRootNode splits
+            // a leaf without holding the tree-wide lock exclusively.
+            if (next != null) {
+                Node neighbor = provider.get(next, Intent.WRITE);
+                if (neighbor.latch != null) {
+                    neighbor.writeLatch().lock();
+                    try {
+                        neighbor.previous = dst.getId();
+                    } finally {
+                        neighbor.writeLatch().unlock();
+                    }
+                } else {
+                    neighbor.previous = dst.getId();
+                }
+            }
+            dst.previous = getId();
+            dst.next = next;
+            next = dst.getId();
+            
+            Tuple separator = separator(lastTuple().getKey(),
+                    dst.firstTuple().getKey());
+            return new TupleNode(separator, dst.getId(), dst.getTupleCount());
+        }
+        
         Tuple median = removeTuple(m);
         
-        if (!leaf) {
-            NodeId nodeId = removeNode(m+1);
-            dst.addNode(nodeId);
+        while (!leaf && m+1 < getNodeCount()) {
+            int count = getCount(m+1);
+            dst.addNode(removeNode(m+1), count);
         }
         
         while (m < getTupleCount()) {
             dst.addTuple(removeTuple(m));
-            
-            if (!leaf) {
-                dst.addNode(removeNode(m+1));
-            }
         }
         
-        return new TupleNode(median, dst.getId());
+        return new TupleNode(median, dst.getId(), dst.getSubtreeSize());
     }
     
     public Node copy(NodeProvider provider) {
@@ -444,52 +1002,165 @@ public class Node extends AbstractNode {
         
         if (!leaf) {
             dst.children.addAll(children);
+            System.arraycopy(counts, 0, dst.counts, 0, getNodeCount());
         }
         
         return dst;
     }
     
     public Iterator<Tuple> iterator(NodeProvider provider) {
-        Deque<Index> stack = new ArrayDeque<Index>();
-        
-        stack.push(new Index(getId(), 0));
-        walk(provider, this, stack.peek(), stack);
-        
-        return new NodeIterator(provider, stack);
+        return iterator(provider, null, true, null, true, false);
     }
     
     public Iterator<Tuple> iterator(NodeProvider provider, 
             byte[] key, boolean inclusive) {
-        return iterator(provider, key, inclusive, new ArrayDeque<Index>());
+        return iterator(provider, key, inclusive, null, true, false);
+    }
+    
+    /**
+     * Returns an {@link Iterator} over the {@link Tuple}s from one key
+     * to another. Either key may be {@code null} for no bound. The 
+     * {@link Iterator} stops at the first key past the upper bound.
+     */
+    public Iterator<Tuple> iterator(NodeProvider provider,
+            byte[] from, boolean fromInclusive,
+            byte[] to, boolean toInclusive) {
+        return iterator(provider, from, fromInclusive,
+                to, toInclusive, false);
+    }
+    
+    /**
+     * Returns an {@link Iterator} that iterates over the {@link Tuple}s
+     * in descending order.
+     */
+    public Iterator<Tuple> descendingIterator(NodeProvider provider) {
+        return iterator(provider, null, true, null, true, true);
+    }
+    
+    /**
+     * Returns an {@link Iterator} that starts at the given key and 
+     * iterates over the {@link Tuple}s in descending order.
+     */
+    public Iterator<Tuple> descendingIterator(NodeProvider provider,
+            byte[] key, boolean inclusive) {
+        return iterator(provider, key, inclusive, null, true, true);
+    }
+    
+    /**
+     * Returns an {@link Iterator} over the {@link Tuple}s from one key
+     * down to another. Either key may be {@code null} for no bound.
+     */
+    public Iterator<Tuple> descendingIterator(NodeProvider provider,
+            byte[] from, boolean fromInclusive,
+            byte[] to, boolean toInclusive) {
+        return iterator(provider, from, fromInclusive,
+                to, toInclusive, true);
     }
     
     private Iterator<Tuple> iterator(NodeProvider provider, 
-            byte[] key, boolean inclusive, Deque<Index> stack) {
+            byte[] from, boolean fromInclusive,
+            byte[] to, boolean toInclusive, boolean descending) {
+        
+        if (bplus) {
+            Node leaf = null;
+            int index = 0;
+            
+            if (from == null) {
+                if (descending) {
+                    leaf = lastNode(provider, Intent.READ);
+                    index = leaf.getTupleCount() - 1;
+                } else {
+                    leaf = firstNode(provider, Intent.READ);
+                }
+            } else {
+                leaf = leaf(provider, from);
+                index = leaf.binarySearch(from);
+                
+                if (index < 0) {
+                    index = -index - 1;
+                    if (descending) {
+                        --index;
+                    }
+                } else if (!fromInclusive) {
+                    index += (descending ? -1 : 1);
+                }
+            }
+            
+            return new LeafIterator(provider, leaf, index,
+                    descending, to, toInclusive);
+        }
+        
+        Deque<Index> stack = new ArrayDeque<Index>();
+        
+        if (from == null) {
+            stack.push(new Index(getId(), descending ? getTupleCount() : 0));
+            walk(provider, this, stack.peek(), stack, descending);
+        } else {
+            seek(provider, from, fromInclusive, descending, stack);
+        }
+        
+        return new NodeIterator(provider, stack, descending, to, toInclusive);
+    }
+    
+    /**
+     * Walks down to the leaf of a B+-Tree where the key is 
+     * or would be stored.
+     */
+    private Node leaf(NodeProvider provider, byte[] key) {
+        Node node = this;
+        while (!node.isLeaf()) {
+            int index = node.childIndex(node.binarySearch(key));
+            node = node.getNode(provider, index, Intent.READ);
+        }
+        return node;
+    }
+    
+    /**
+     * Pushes the path to the given key onto the stack. The {@link Index}
+     * on top of the stack is a leaf and the first {@link Tuple} it 
+     * returns is the first {@link Tuple} of the {@link NodeIterator}.
+     */
+    private void seek(NodeProvider provider, byte[] key,
+            boolean inclusive, boolean descending, Deque<Index> stack) {
         
         int index = binarySearch(key);
         
-        int path = (index < 0 ? -index - 1 : index);
-        stack.push(new Index(getId(), path));
+        if (index < 0) {
+            int path = -index - 1;
+            stack.push(new Index(getId(), path));
         
-        if (index >= 0 || isLeaf()) {
-            
-            if (!inclusive && index >= 0) {
-                stack.peek().next();
+            if (!isLeaf()) {
+                Node node = getNode(provider, path, Intent.READ);
+                node.seek(provider, key, inclusive, descending, stack);
             }
-            
-            return new NodeIterator(provider, stack);
+            return;
         }
         
-        Node node = getNode(provider, path, Intent.READ);
-        return node.iterator(provider, key, inclusive, stack);
+        // The Index points either at the key or past it
+        boolean past = (descending == inclusive);
+        Index path = new Index(getId(), past ? index + 1 : index);
+        stack.push(path);
+        
+        // The key is in an internal Node. Start at the far end of the
+        // subtree next to it that comes before the key in the order
+        // of the iteration.
+        if (!isLeaf()) {
+            walk(provider, this, path, stack, !past);
+        }
     }
     
+    /**
+     * Pushes the path from the {@link Index}'s current child to a leaf 
+     * onto the stack. The path follows the first or the last child of
+     * every {@link Node} if the walk is ascending or descending.
+     */
     private static Index walk(NodeProvider provider, 
-            Node node, Index index, Deque<Index> stack) {
+            Node node, Index index, Deque<Index> stack, boolean descending) {
         
         while (!node.isLeaf()) {
             node = node.getNode(provider, index.get(), Intent.READ);
-            index = new Index(node.getId(), 0);
+            index = new Index(node.getId(),
+                    descending ? node.getTupleCount() : 0);
             stack.push(index);
         }
         
@@ -533,9 +1204,12 @@ public class Node extends AbstractNode {
         
         private final NodeId nodeId;
         
-        private TupleNode(Tuple tuple, NodeId nodeId) {
+        private final int count;
+        
+        private TupleNode(Tuple tuple, NodeId nodeId, int count) {
             this.tuple = tuple;
             this.nodeId = nodeId;
+            this.count = count;
         }
 
         byte[] getKey() {
@@ -550,6 +1224,14 @@ public class Node extends AbstractNode {
             return nodeId;
         }
         
+        /**
+         * Returns the number of Key-Values in the subtree of the
+         * {@link Node}.
+         */
+        public int getCount() {
+            return count;
+        }
+        
         @Override
         public String toString() {
             return "<" + tuple + ", " + nodeId + ">";
@@ -557,36 +1239,151 @@ public class Node extends AbstractNode {
     }
     
     /**
-     * An {@link Iterator} that iterates over a B-Tree.
+     * The base class of the {@link Iterator}s over the {@link Tuple}s.
+     * It stops at the first key that is past the bound.
      */
-    private static class NodeIterator implements Iterator<Tuple> {
+    private static abstract class TupleIterator implements Iterator<Tuple> {
 
-        private final NodeProvider provider;
+        protected final NodeProvider provider;
         
-        private final Deque<Index> stack;
+        protected final boolean descending;
         
-        private Index index = null;
+        private final byte[] bound;
         
-        private Node node = null;
+        private final boolean inclusive;
         
         private Tuple next = null;
         
-        public NodeIterator(NodeProvider provider, Deque<Index> stack) {
+        public TupleIterator(NodeProvider provider, boolean descending,
+                byte[] bound, boolean inclusive) {
             this.provider = provider;
+            this.descending = descending;
+            this.bound = bound;
+            this.inclusive = inclusive;
+        }
+        
+        /**
+         * Returns the next {@link Tuple} or {@code null} if there 
+         * are no more {@link Tuple}s.
+         */
+        protected abstract Tuple nextTuple();
+            
+        /**
+         * Moves on to the next {@link Tuple} within the bound.
+         */
+        protected void advance() {
+            next = nextTuple();
+            
+            if (next != null && TupleUtils.isBeyond(provider.getComparator(),
+                    next.getKey(), bound, inclusive, descending)) {
+                next = null;
+            }
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+        
+        @Override
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            
+            try {
+                return next;
+            } finally {
+                advance();
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        /**
+         * Prefetches the children that come after the given child of 
+         * the {@link Node} in the order of the iteration.
+         * 
+         * @see NodeProvider#getPrefetchWindow()
+         */
+        protected void prefetch(Node node, int index) {
+            int window = provider.getPrefetchWindow();
+            int nodeCount = node.getNodeCount();
+            
+            for (int i = 1; i <= window; i++) {
+                int child = descending ? index - i : index + i;
+                if (child < 0 || nodeCount <= child) {
+                    break;
+                }
+                
+                provider.prefetch(node.getNode(child));
+            }
+        }
+    }
+    
+    /**
+     * An {@link Iterator} that iterates over a B-Tree.
+     */
+    private static class NodeIterator extends TupleIterator {
+        
+        private final Deque<Index> stack;
+        
+        private Index index = null;
+        
+        private Node node = null;
+        
+        public NodeIterator(NodeProvider provider, Deque<Index> stack,
+                boolean descending, byte[] bound, boolean inclusive) {
+            super(provider, descending, bound, inclusive);
             this.stack = stack;
             
             if (!stack.isEmpty()) {
                 index = stack.poll();
                 node = provider.get(index.getNodeId(), Intent.READ);
                 
-                next = nextTuple();
+                // The internal Nodes of the path are entered once here
+                // and the ones that come later are entered by descend()
+                if (0 < provider.getPrefetchWindow()) {
+                    for (Index path : stack) {
+                        Node parent = provider.get(path.getNodeId(), Intent.READ);
+                        prefetch(parent, path.get());
+                    }
+                }
+                
+                advance();
             }
         }
         
-        private Tuple nextTuple() {
+        /**
+         * Walks down like {@link Node#walk(NodeProvider, Node, Index, 
+         * Deque, boolean)} and prefetches the next children of every 
+         * internal {@link Node} it enters. The {@link Index} of the 
+         * leaf is returned and it's not pushed onto the stack.
+         */
+        private Index descend(Node node, Index index) {
+            while (true) {
+                prefetch(node, index.get());
+            
+                node = node.getNode(provider, index.get(), Intent.READ);
+                index = new Index(node.getId(),
+                        descending ? node.getTupleCount() : 0);
+                
+                if (node.isLeaf()) {
+                    return index;
+                }
+                
+                stack.push(index);
+            }
+        }
+        
+        @Override
+        protected Tuple nextTuple() {
             
-            if (index.hasNext(node)) {
-                return index.next(node);
+            if (index.hasNext(node, descending)) {
+                return index.next(node, descending);
             }
             
             if (!stack.isEmpty()) {
@@ -594,10 +1391,11 @@ public class Node extends AbstractNode {
                 node = provider.get(index.getNodeId(), Intent.READ);
                 assert (!node.isLeaf());
                 
-                if (index.hasNext(node)) {
-                    Tuple next = index.next(node);
+                if (index.hasNext(node, descending)) {
+                    Tuple next = index.next(node, descending);
                     
-                    index = Node.walk(provider, node, index, stack);
+                    // The leaf is the current Index and not on the stack
+                    index = descend(node, index);
                     node = provider.get(index.getNodeId(), Intent.READ);
                     
                     return next;
@@ -609,28 +1407,58 @@ public class Node extends AbstractNode {
             
             return null; // EOF
         }
+    }
+    
+    /**
+     * An {@link Iterator} that follows the chain of leaves of a B+-Tree.
+     * It reads every leaf once and never goes back up to the parents.
+     */
+    private static class LeafIterator extends TupleIterator {
         
-        @Override
-        public boolean hasNext() {
-            return next != null;
-        }
+        private Node node;
         
-        @Override
-        public Tuple next() {
-            if (!hasNext()) {
-                throw new NoSuchElementException();
-            }
+        private int index;
+        
+        public LeafIterator(NodeProvider provider, Node node, int index,
+                boolean descending, byte[] bound, boolean inclusive) {
+            super(provider, descending, bound, inclusive);
+            this.node = node;
+            this.index = index;
             
-            try {
-                return next;
-            } finally {
-                next = nextTuple();
+            prefetch(descending ? node.previous : node.next);
+            advance();
+        }
+        
+        /**
+         * The leaves know only their neighbors and the next leaf is
+         * read while the {@link Iterator} is busy with the current one.
+         */
+        private void prefetch(NodeId nodeId) {
+            if (nodeId != null && 0 < provider.getPrefetchWindow()) {
+                provider.prefetch(nodeId);
             }
         }
-
+        
         @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
+        protected Tuple nextTuple() {
+            while (node != null) {
+                if (0 <= index && index < node.getTupleCount()) {
+                    return node.getTuple(descending ? index-- : index++);
+                }
+                
+                NodeId nodeId = descending ? node.previous : node.next;
+                if (nodeId == null) {
+                    node = null;
+                    break;
+                }
+                
+                node = provider.get(nodeId, Intent.READ);
+                index = descending ? node.getTupleCount() - 1 : 0;
+                
+                prefetch(descending ? node.previous : node.next);
+            }
+            
+            return null; // EOF
         }
     }
     
@@ -653,11 +1481,23 @@ public class Node extends AbstractNode {
             return nodeId;
         }
         
-        public boolean hasNext(Node node) {
+        /**
+         * The {@link Index} of an ascending iteration points at the next
+         * {@link Tuple} and the {@link Index} of a descending iteration
+         * points just past it. It's the current child of a {@link Node}
+         * in both cases.
+         */
+        public boolean hasNext(Node node, boolean descending) {
+            if (descending) {
+                return 0 < index;
+            }
             return index < node.getTupleCount();
         }
         
-        public Tuple next(Node node) {
+        public Tuple next(Node node, boolean descending) {
+            if (descending) {
+                return node.getTuple(--index);
+            }
             return node.getTuple(index++);
         }
         
@@ -665,10 +1505,6 @@ public class Node extends AbstractNode {
             return index;
         }
         
-        public int next() {
-            return index++;
-        }
-        
         @Override
         public String toString() {
             return "<" + nodeId + ", " + index + ">";
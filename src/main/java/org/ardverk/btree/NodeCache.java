@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded cache of {@link Node}s. The capacity is measured by a
+ * {@link Weigher} and the eviction order is defined by the subclasses.
+ *
+ * @see LruNodeCache
+ * @see ClockNodeCache
+ * @see TwoQueueNodeCache
+ */
+public abstract class NodeCache {
+    
+    /**
+     * Every {@link Node} has a weight of one and the capacity
+     * is the number of {@link Node}s.
+     */
+    public static final Weigher NODES = new Weigher() {
+        @Override
+        public int weigh(Node node) {
+            return 1;
+        }
+    };
+    
+    /**
+     * The weight of a {@link Node} is the approximate number of bytes
+     * it occupies and the capacity is a number of bytes. The values in
+     * a {@link BlobStore} count with the length of their references.
+     */
+    public static final Weigher BYTES = new Weigher() {
+        @Override
+        public int weigh(Node node) {
+            int weight = 64;
+            
+            Bucket<Tuple> tuples = node.getTuples();
+            if (tuples instanceof TupleBucket) {
+                weight += ((TupleBucket)tuples).getPageSize();
+                return weight + 8 * node.getNodeCount();
+            }
+            
+            int tupleCount = node.getTupleCount();
+            for (int i = 0; i < tupleCount; i++) {
+                Tuple tuple = node.getTuple(i);
+                weight += 48 + tuple.getKey().length;
+                
+                // The value of a BlobTuple isn't in memory
+                if (tuple instanceof BlobTuple) {
+                    weight += ((BlobTuple)tuple).getReference().length;
+                } else {
+                    weight += tuple.getValue().length;
+                }
+            }
+            
+            weight += 8 * node.getNodeCount();
+            return weight;
+        }
+    };
+    
+    private final long capacity;
+    
+    private final Weigher weigher;
+    
+    private Callback callback = null;
+    
+    private long weight = 0L;
+    
+    public NodeCache(long capacity, Weigher weigher) {
+        if (capacity <= 0L) {
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+        
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+    
+    /**
+     * Binds the {@link NodeCache} to its owner. A {@link NodeCache}
+     * can't be shared between owners.
+     */
+    void bind(Callback callback) {
+        if (this.callback != null) {
+            throw new IllegalStateException("Already bound");
+        }
+        this.callback = callback;
+    }
+    
+    public long getCapacity() {
+        return capacity;
+    }
+    
+    public long getWeight() {
+        return weight;
+    }
+    
+    public abstract int size();
+    
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    /**
+     * Returns the {@link Node} for the given {@link NodeId} or
+     * {@code null} if it's not in the cache.
+     */
+    public Node get(NodeId nodeId) {
+        Entry entry = lookup(nodeId);
+        if (entry == null) {
+            return null;
+        }
+        
+        int delta = weigher.weigh(entry.node) - entry.weight;
+        if (delta != 0) {
+            weight += delta;
+            entry.weight += delta;
+            reweighed(entry, delta);
+        }
+        
+        return entry.node;
+    }
+    
+    /**
+     * Adds the given {@link Node} to the cache and evicts other
+     * {@link Node}s if the cache is over capacity.
+     */
+    public void put(Node node) {
+        NodeId nodeId = node.getId();
+        remove(nodeId);
+        
+        Entry entry = new Entry(node, weigher.weigh(node));
+        weight += entry.weight;
+        insert(entry);
+        
+        evict();
+    }
+    
+    /**
+     * Removes and returns the {@link Node} without notifying the owner.
+     */
+    public Node remove(NodeId nodeId) {
+        Entry entry = delete(nodeId);
+        if (entry == null) {
+            return null;
+        }
+        
+        weight -= entry.weight;
+        return entry.node;
+    }
+    
+    /**
+     * Returns a snapshot of all {@link Node}s in the cache.
+     */
+    public List<Node> nodes() {
+        List<Node> nodes = new ArrayList<Node>(size());
+        for (Entry entry : entries()) {
+            nodes.add(entry.node);
+        }
+        return nodes;
+    }
+    
+    /**
+     * Evicts {@link Node}s until the cache is within its capacity
+     * or all remaining {@link Node}s are pinned.
+     */
+    public void evict() {
+        while (weight > capacity) {
+            Entry entry = victim();
+            if (entry == null) {
+                break;
+            }
+            
+            remove(entry.node.getId());
+            
+            if (callback != null) {
+                callback.evicted(entry.node);
+            }
+        }
+    }
+    
+    /**
+     * Returns {@code true} if the {@link Node} must not be evicted.
+     */
+    protected boolean isPinned(Entry entry) {
+        return callback != null && callback.isPinned(entry.node);
+    }
+    
+    /**
+     * Looks up the {@link Entry} and records the access.
+     */
+    protected abstract Entry lookup(NodeId nodeId);
+    
+    protected abstract void insert(Entry entry);
+    
+    protected abstract Entry delete(NodeId nodeId);
+    
+    /**
+     * Returns the next {@link Entry} that should be evicted or
+     * {@code null} if there is no evictable {@link Entry}. The
+     * {@link Entry} must not be pinned.
+     */
+    protected abstract Entry victim();
+    
+    protected abstract Iterable<Entry> entries();
+    
+    /**
+     * Called after the weight of an {@link Entry} has changed by 
+     * the given delta.
+     */
+    protected void reweighed(Entry entry, int delta) {
+    }
+    
+    @Override
+    public String toString() {
+        return nodes().toString();
+    }
+    
+    /**
+     * Measures the weight of a {@link Node}.
+     */
+    public static interface Weigher {
+        public int weigh(Node node);
+    }
+    
+    /**
+     * The owner of a {@link NodeCache}.
+     */
+    static interface Callback {
+        
+        /**
+         * Returns {@code true} if the given {@link Node} must not be evicted.
+         */
+        public boolean isPinned(Node node);
+        
+        /**
+         * Called for every {@link Node} that was evicted from the cache.
+         */
+        public void evicted(Node node);
+    }
+    
+    /**
+     * A {@link Node} in the cache and the book keeping that is
+     * necessary to implement the different eviction policies.
+     */
+    protected static class Entry {
+        
+        protected final Node node;
+        
+        protected int weight;
+        
+        protected boolean referenced = false;
+        
+        protected Entry prev = null;
+        
+        protected Entry next = null;
+        
+        protected Entry(Node node, int weight) {
+            this.node = node;
+            this.weight = weight;
+        }
+        
+        public Node getNode() {
+            return node;
+        }
+        
+        @Override
+        public String toString() {
+            return node.getId() + "=" + weight;
+        }
+    }
+}
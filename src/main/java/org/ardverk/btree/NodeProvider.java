@@ -30,4 +30,22 @@ public interface NodeProvider {
     public void free(Node node);
     
     public Node get(NodeId nodeId, Intent intent);
+    
+    /**
+     * Tells the {@link NodeProvider} that the {@link Node} is going
+     * to be requested soon. It's a hint that may be ignored.
+     */
+    public void prefetch(NodeId nodeId);
+    
+    /**
+     * Returns the number of {@link Node}s an {@link java.util.Iterator}
+     * should {@link #prefetch(NodeId)} ahead of the {@link Node} it's 
+     * reading or zero if the {@link NodeProvider} doesn't prefetch.
+     */
+    public int getPrefetchWindow();
+    
+    /**
+     * Returns the order of the keys.
+     */
+    public KeyComparator getComparator();
 }
\ No newline at end of file
@@ -0,0 +1,724 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link NodeProvider} that keeps all {@link Node}s in a single file
+ * of fixed-size pages. A {@link Node} is addressed by the number of its
+ * first page and {@link Node}s that don't fit into a single page spill
+ * into a chain of continuation pages.
+ *
+ * The first page of the file is the superblock. Pages that are released
+ * through {@link #free(Node)} are kept in a free-list and get re-used by
+ * {@link #allocate(int)}.
+ */
+public class PageFileNodeProvider implements NodeProvider, Flushable, Closeable {
+    
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+    
+    private static final int MAGIC = 0x42545246; // BTRF
+    
+    /**
+     * Version 2 added the flags to the superblock and version 3 the 
+     * counts of the children of the internal {@link Node}s. Version 4
+     * changed the default order of the keys and version 5 added the 
+     * name of the {@link KeyComparator}.
+     */
+    private static final int VERSION = 5;
+    
+    private static final int BPLUS = 1;
+    
+    private static final byte FREE = 0;
+    
+    private static final byte HEAD = 1;
+    
+    private static final byte CONTINUATION = 2;
+    
+    /**
+     * type (1) + next page (8) + length (4)
+     */
+    private static final int PAGE_HEADER_SIZE = 1 + 8 + 4;
+    
+    /**
+     * magic, version, page size, t, size (5*4) + root, free-list 
+     * head, page count (3*8) + flags, length of the order (2*4). The
+     * name of the order follows the fixed part of the superblock.
+     */
+    private static final int SUPERBLOCK_SIZE = 5*4 + 3*8 + 2*4;
+    
+    private static final long NONE = -1L;
+    
+    private final Map<NodeId, Node> nodes
+        = new HashMap<NodeId, Node>();
+    
+    /**
+     * The {@link NodeId}s of all {@link Node}s that were allocated or
+     * requested with {@link Intent#WRITE} since the last flush.
+     */
+    private final Set<NodeId> dirty = new HashSet<NodeId>();
+    
+    private final Deque<Long> freePages = new ArrayDeque<Long>();
+    
+    private final File file;
+    
+    private final int t;
+    
+    private final boolean bplus;
+    
+    private final KeyComparator comparator;
+    
+    /**
+     * The UTF-8 encoded name of the {@link KeyComparator}.
+     */
+    private final byte[] order;
+    
+    private final int pageSize;
+    
+    private final RandomAccessFile raf;
+    
+    private final FileChannel channel;
+    
+    private final RootNode root;
+    
+    private long pageCount = 1L;
+    
+    private boolean open = true;
+    
+    public PageFileNodeProvider(String path, int t) {
+        this(new File(path), t);
+    }
+    
+    public PageFileNodeProvider(File file, int t) {
+        this(file, t, DEFAULT_PAGE_SIZE);
+    }
+    
+    public PageFileNodeProvider(File file, int t, int pageSize) {
+        this(file, t, pageSize, false);
+    }
+    
+    /**
+     * Creates a {@link PageFileNodeProvider} for a B+-Tree if bplus is
+     * {@code true}. The keys of every {@link Node} of a B+-Tree are 
+     * written with their common prefix. An existing file must have 
+     * been created with the same value.
+     * 
+     * @see Node#isBPlusTree()
+     */
+    public PageFileNodeProvider(File file, int t,
+            int pageSize, boolean bplus) {
+        this(file, t, pageSize, bplus, KeyComparator.LEXICOGRAPHIC);
+    }
+    
+    /**
+     * Creates a {@link PageFileNodeProvider} whose keys are in the order
+     * of the given {@link KeyComparator}. The name of the order is 
+     * written to the file and an existing file must be opened with the 
+     * same order.
+     * 
+     * @see KeyComparator#getName()
+     */
+    public PageFileNodeProvider(File file, int t,
+            int pageSize, boolean bplus, KeyComparator comparator) {
+        if (pageSize <= PAGE_HEADER_SIZE) {
+            throw new IllegalArgumentException("pageSize=" + pageSize);
+        }
+        
+        this.file = file;
+        this.t = t;
+        this.bplus = bplus;
+        this.comparator = comparator;
+        
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        
+        try {
+            order = comparator.getName().getBytes("UTF-8");
+            
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            
+            if (channel.size() == 0L) {
+                if (pageSize < SUPERBLOCK_SIZE + order.length) {
+                    throw new IllegalArgumentException("pageSize=" + pageSize);
+                }
+                
+                this.pageSize = pageSize;
+                root = new RootNode(this, allocate(0), 0);
+            } else {
+                ByteBuffer buffer = read(0L, SUPERBLOCK_SIZE);
+                int magic = buffer.getInt();
+                int version = buffer.getInt();
+                if (magic != MAGIC) {
+                    throw new IOException("Not a page file: " + file);
+                }
+                
+                if (version != VERSION) {
+                    throw new IOException("Unsupported version: " + version);
+                }
+                
+                this.pageSize = buffer.getInt();
+                if (buffer.getInt() != t) {
+                    throw new IllegalArgumentException("t=" + t);
+                }
+                
+                int size = buffer.getInt();
+                PageId rootId = new PageId(buffer.getLong());
+                long freeHead = buffer.getLong();
+                pageCount = buffer.getLong();
+                
+                int flags = buffer.getInt();
+                if (((flags & BPLUS) != 0) != bplus) {
+                    throw new IllegalArgumentException("bplus=" + bplus);
+                }
+                
+                int length = buffer.getInt();
+                String stored = new String(
+                        read(SUPERBLOCK_SIZE, length).array(), "UTF-8");
+                if (!stored.equals(comparator.getName())) {
+                    throw new IllegalArgumentException("comparator="
+                            + comparator.getName() + ", stored=" + stored);
+                }
+                
+                loadFreePages(freeHead);
+                
+                Node node = load(rootId);
+                nodes.put(rootId, node);
+                
+                root = new RootNode(this, node, size);
+            }
+        } catch (IOException err) {
+            throw new IllegalStateException(err);
+        }
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    public int getPageSize() {
+        return pageSize;
+    }
+    
+    /**
+     * Returns the number of pages in the file, including the superblock
+     * and all free pages.
+     */
+    public long getPageCount() {
+        return pageCount;
+    }
+    
+    /**
+     * Returns the number of pages that are in the free-list.
+     */
+    public int getFreePageCount() {
+        return freePages.size();
+    }
+    
+    @Override
+    public KeyComparator getComparator() {
+        return comparator;
+    }
+    
+    @Override
+    public RootNode getRoot() {
+        return root;
+    }
+    
+    @Override
+    public Node allocate(int height) {
+        checkOpen();
+        
+        PageId nodeId = new PageId(allocatePage());
+        Node node = new Node(nodeId, height, t, bplus, comparator);
+        Node existing = nodes.put(nodeId, node);
+        if (existing != null) {
+            throw new IllegalStateException();
+        }
+        
+        dirty.add(nodeId);
+        return node;
+    }
+    
+    @Override
+    public Node get(NodeId nodeId, Intent intent) {
+        checkOpen();
+        
+        if (intent == Intent.WRITE) {
+            dirty.add(nodeId);
+        }
+        
+        Node node = nodes.get(nodeId);
+        if (node == null) {
+            node = load((PageId)nodeId);
+            nodes.put(nodeId, node);
+        }
+        return node;
+    }
+    
+    @Override
+    public void prefetch(NodeId nodeId) {
+        // Do nothing
+    }
+    
+    @Override
+    public int getPrefetchWindow() {
+        return 0;
+    }
+    
+    @Override
+    public void free(Node node) {
+        checkOpen();
+        
+        PageId nodeId = (PageId)node.getId();
+        nodes.remove(nodeId);
+        dirty.remove(nodeId);
+        
+        try {
+            for (long page : chain(nodeId.page)) {
+                freePage(page);
+            }
+            freePage(nodeId.page);
+        } catch (IOException err) {
+            throw new IllegalStateException(err);
+        }
+    }
+    
+    @Override
+    public void flush() {
+        flush(true);
+    }
+    
+    /**
+     * Writes all {@link Node}s that were allocated or requested with 
+     * {@link Intent#WRITE} since the last flush and optionally removes
+     * all {@link Node}s but the root from memory.
+     */
+    public void flush(boolean freeMemory) {
+        checkOpen();
+        
+        Node rootNode = root.getRoot();
+        
+        try {
+            Iterator<Node> it = nodes.values().iterator();
+            while (it.hasNext()) {
+                Node node = it.next();
+                if (dirty.contains(node.getId())) {
+                    store(node);
+                }
+                
+                if (freeMemory && node != rootNode) {
+                    it.remove();
+                }
+            }
+            
+            dirty.clear();
+            writeSuperblock();
+            
+        } catch (IOException err) {
+            throw new IllegalStateException(err);
+        }
+    }
+    
+    @Override
+    public void close() {
+        if (open) {
+            try {
+                flush();
+            } finally {
+                open = false;
+                IoUtils.close(raf);
+            }
+        }
+    }
+    
+    private void checkOpen() {
+        if (!open) {
+            throw new IllegalStateException();
+        }
+    }
+    
+    private long position(long page) {
+        return page * pageSize;
+    }
+    
+    private long allocatePage() {
+        if (!freePages.isEmpty()) {
+            return freePages.pop();
+        }
+        return pageCount++;
+    }
+    
+    /**
+     * Marks the given page as free on disk and pushes it on the
+     * free-list. Free pages are chained through their next pointer
+     * and the superblock keeps the head of the chain.
+     */
+    private void freePage(long page) throws IOException {
+        long next = freePages.isEmpty() ? NONE : freePages.peek();
+        
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_HEADER_SIZE);
+        buffer.put(FREE).putLong(next).putInt(0);
+        buffer.flip();
+        
+        write(position(page), buffer);
+        freePages.push(page);
+    }
+    
+    private void loadFreePages(long head) throws IOException {
+        List<Long> pages = new ArrayList<Long>();
+        
+        long page = head;
+        while (page != NONE) {
+            ByteBuffer header = read(position(page), PAGE_HEADER_SIZE);
+            if (header.get() != FREE) {
+                throw new IOException("Corrupt free-list: " + page);
+            }
+            
+            pages.add(page);
+            page = header.getLong();
+        }
+        
+        for (int i = pages.size()-1; i >= 0; --i) {
+            freePages.push(pages.get(i));
+        }
+    }
+    
+    private void writeSuperblock() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(pageSize);
+        buffer.putInt(t);
+        buffer.putInt(root.size());
+        buffer.putLong(((PageId)root.getId()).page);
+        buffer.putLong(freePages.isEmpty() ? NONE : freePages.peek());
+        buffer.putLong(pageCount);
+        buffer.putInt(bplus ? BPLUS : 0);
+        buffer.putInt(order.length);
+        buffer.put(order);
+        buffer.rewind();
+        
+        write(0L, buffer);
+    }
+    
+    /**
+     * Returns the continuation pages of the {@link Node} that starts
+     * at the given page. Pages that are past the end of the file or
+     * that don't hold the head of a {@link Node} have no continuations.
+     */
+    private List<Long> chain(long page) throws IOException {
+        List<Long> pages = new ArrayList<Long>();
+        
+        if (position(page) + PAGE_HEADER_SIZE <= channel.size()) {
+            ByteBuffer header = read(position(page), PAGE_HEADER_SIZE);
+            if (header.get() == HEAD) {
+                long next = header.getLong();
+                while (next != NONE) {
+                    pages.add(next);
+                    
+                    header = read(position(next), PAGE_HEADER_SIZE);
+                    header.get();
+                    next = header.getLong();
+                }
+            }
+        }
+        
+        return pages;
+    }
+    
+    private Node load(PageId nodeId) {
+        checkOpen();
+        
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+            
+            byte type = HEAD;
+            long page = nodeId.page;
+            
+            while (page != NONE) {
+                ByteBuffer buffer = read(position(page), pageSize);
+                if (buffer.get() != type) {
+                    throw new IOException("Unexpected page type: " + page);
+                }
+                
+                page = buffer.getLong();
+                int length = buffer.getInt();
+                
+                baos.write(buffer.array(), buffer.position(), length);
+                type = CONTINUATION;
+            }
+            
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(baos.toByteArray()));
+            
+            int height = in.readInt();
+            
+            Bucket<Tuple> tuples = comparator.createBucket(2*t-1);
+            
+            if (bplus && tuples instanceof TupleBucket) {
+                ((TupleBucket)tuples).readFrom(in);
+            } else {
+                int tupleCount = in.readInt();
+                for (int i = 0; i < tupleCount; i++) {
+                    byte[] key = readBytes(in);
+                    byte[] value = readBytes(in);
+                
+                    tuples.add(new Tuple(key, value));
+                }
+            }
+            
+            Bucket<NodeId> children = null;
+            int[] counts = null;
+            
+            if (0 < height) {
+                children = new Bucket<NodeId>(2*t);
+                
+                int nodeCount = in.readInt();
+                counts = new int[nodeCount];
+                for (int i = 0; i < nodeCount; i++) {
+                    children.add(new PageId(in.readLong()));
+                    counts[i] = in.readInt();
+                }
+            }
+            
+            Node node = new Node(nodeId, height, t,
+                    tuples, children, bplus, comparator);
+            
+            for (int i = 0; counts != null && i < counts.length; i++) {
+                node.setCount(i, counts[i]);
+            }
+            
+            // The leaves of a B+-Tree are linked to their neighbors
+            if (bplus && height == 0) {
+                node.setPrevious(PageId.valueOf(in.readLong()));
+                node.setNext(PageId.valueOf(in.readLong()));
+            }
+            
+            return node;
+            
+        } catch (IOException err) {
+            throw new IllegalStateException(err);
+        }
+    }
+    
+    private void store(Node node) throws IOException {
+        checkOpen();
+        
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+        DataOutputStream out = new DataOutputStream(baos);
+        
+        int height = node.getHeight();
+        out.writeInt(height);
+        
+        int tupleCount = node.getTupleCount();
+        Bucket<Tuple> tuples = node.getTuples();
+        
+        if (bplus && tuples instanceof TupleBucket) {
+            ((TupleBucket)tuples).writeTo(out);
+        } else {
+            out.writeInt(tupleCount);
+            for (int i = 0; i < tupleCount; i++) {
+                if (tuples instanceof TupleBucket) {
+                    ((TupleBucket)tuples).write(out, i);
+                } else {
+                    Tuple tuple = tuples.get(i);
+                    writeBytes(out, tuple.getKey());
+                    writeBytes(out, tuple.getValue());
+                }
+            }
+        }
+        
+        if (0 < height) {
+            int nodeCount = node.getNodeCount();
+            if (tupleCount != nodeCount-1) {
+                throw new IllegalStateException();
+            }
+            
+            out.writeInt(nodeCount);
+            for (int i = 0; i < nodeCount; i++) {
+                out.writeLong(((PageId)node.getNode(i)).page);
+                out.writeInt(node.getCount(i));
+            }
+        }
+        
+        if (bplus && height == 0) {
+            out.writeLong(PageId.page(node.getPrevious()));
+            out.writeLong(PageId.page(node.getNext()));
+        }
+        
+        out.flush();
+        
+        byte[] data = baos.toByteArray();
+        long head = ((PageId)node.getId()).page;
+        
+        // Re-use the existing continuation pages and allocate or
+        // release pages if the Node has grown or shrunk.
+        List<Long> existing = chain(head);
+        
+        int capacity = pageSize - PAGE_HEADER_SIZE;
+        int required = Math.max(1, (data.length + capacity - 1) / capacity);
+        
+        long[] pages = new long[required];
+        pages[0] = head;
+        for (int i = 1; i < required; i++) {
+            pages[i] = (i-1 < existing.size())
+                    ? existing.get(i-1) : allocatePage();
+        }
+        
+        for (int i = required-1; i < existing.size(); i++) {
+            freePage(existing.get(i));
+        }
+        
+        ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+        for (int i = 0; i < required; i++) {
+            int offset = i * capacity;
+            int length = Math.min(capacity, data.length - offset);
+            
+            buffer.clear();
+            buffer.put(i == 0 ? HEAD : CONTINUATION);
+            buffer.putLong(i+1 < required ? pages[i+1] : NONE);
+            buffer.putInt(length);
+            buffer.put(data, offset, length);
+            buffer.rewind();
+            
+            write(position(pages[i]), buffer);
+        }
+    }
+    
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int r = channel.read(buffer, position + buffer.position());
+            if (r == -1) {
+                throw new IOException("EOF: " + position);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    private void write(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+    
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        int length = (data != null ? data.length : 0);
+        out.writeInt(length);
+        
+        if (0 < length) {
+            out.write(data);
+        }
+    }
+    
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+    
+    @Override
+    public String toString() {
+        return nodes.toString();
+    }
+    
+    /**
+     * A {@link NodeId} that is the number of the first page of a {@link Node}.
+     */
+    private static class PageId implements NodeId {
+        
+        private final long page;
+        
+        private PageId(long page) {
+            this.page = page;
+        }
+        
+        /**
+         * Returns a {@link PageId} or {@code null} if the page is {@link #NONE}.
+         */
+        public static PageId valueOf(long page) {
+            return page != NONE ? new PageId(page) : null;
+        }
+        
+        /**
+         * Returns the page of the {@link NodeId} or {@link #NONE}.
+         */
+        public static long page(NodeId nodeId) {
+            return nodeId != null ? ((PageId)nodeId).page : NONE;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (int)(page ^ (page >>> 32));
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (!(o instanceof PageId)) {
+                return false;
+            }
+            
+            PageId other = (PageId)o;
+            return page == other.page;
+        }
+        
+        @Override
+        public String toString() {
+            return Long.toString(page);
+        }
+    }
+    
+    private static class IoUtils {
+        
+        private IoUtils() {}
+        
+        public static void close(Closeable c) {
+            if (c != null) {
+                try {
+                    c.close();
+                } catch (IOException err) {}
+            }
+        }
+    }
+}
@@ -16,7 +16,11 @@
 
 package org.ardverk.btree;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.ardverk.btree.Node.TupleNode;
 import org.ardverk.btree.NodeProvider.Intent;
@@ -25,14 +29,26 @@ public class RootNode {
     
     private final NodeProvider provider;
     
+    private final WriteAheadLog log;
+    
     private volatile Node root;
     
-    private volatile int size = 0;
+    private final AtomicInteger size;
     
     public RootNode(NodeProvider provider, Node root, int size) {
+        this(provider, root, size, null);
+    }
+    
+    /**
+     * Creates a {@link RootNode} that appends every change to the
+     * given {@link WriteAheadLog} before it's applied.
+     */
+    public RootNode(NodeProvider provider, Node root,
+            int size, WriteAheadLog log) {
         this.provider = provider;
         this.root = root;
-        this.size = size;
+        this.size = new AtomicInteger(size);
+        this.log = log;
     }
     
     public NodeId getId() {
@@ -44,29 +60,72 @@ public class RootNode {
     }
     
     public Tuple put(byte[] key, byte[] value) {
+        if (log != null) {
+            log.put(key, value);
+        }
+        
+        provider.get(root.getId(), Intent.WRITE);
+        splitRootIfFull();
+        
+        Tuple tuple = root.put(provider, key, value);
+        
+        // A new Key-Value was inserted!
+        if (tuple == null) {
+            size.incrementAndGet();
+        }
+        
+        return tuple;
+    }
+    
+    /**
+     * Puts a Key-Value whose key is a long and returns the previous 
+     * value. The key doesn't become bytes if the tree's order is 
+     * {@link KeyComparator#LONG} and there is no {@link WriteAheadLog}.
+     */
+    public byte[] put(long key, byte[] value) {
+        if (log != null || provider.getComparator() != KeyComparator.LONG) {
+            Tuple tuple = put(LongBinding.toBytes(key), value);
+            return tuple != null ? tuple.getValue() : null;
+        }
+        
+        provider.get(root.getId(), Intent.WRITE);
+        splitRootIfFull();
+        
+        byte[] existing = root.put(provider, key, value);
+        
+        // A new Key-Value was inserted!
+        if (existing == null) {
+            size.incrementAndGet();
+        }
+        
+        return existing;
+    }
+    
+    /**
+     * Splits the root if it's full. The tree grows by one level and
+     * the new root has the two halves of the old root as its children.
+     */
+    private void splitRootIfFull() {
         if (root.isOverflow()) {
             TupleNode median = root.split(provider);
             
             int height = root.getHeight() + 1;
             Node tmp = provider.allocate(height);
             
-            tmp.addFirstNode(root.getId());
+            tmp.addFirstNode(root.getId(), root.getSubtreeSize());
             tmp.addTupleNode(median);
             
             root = tmp;
         }
-        
-        Tuple tuple = root.put(provider, key, value);
-        
-        // A new Key-Value was inserted!
-        if (tuple == null) {
-            ++size;
-        }
-        
-        return tuple;
     }
     
     public Tuple remove(byte[] key) {
+        if (log != null) {
+            log.remove(key);
+        }
+        
+        provider.get(root.getId(), Intent.WRITE);
+        
         Tuple tuple = root.remove(provider, key);
         
         if (!root.isLeaf() && root.isEmpty()) {
@@ -79,14 +138,118 @@ public class RootNode {
         
         // A Key-Value was removed!
         if (tuple != null) {
-            --size;
+            size.decrementAndGet();
         }
         
         return tuple;
     }
     
+    /**
+     * Puts all Key-Values and returns the previous values. The keys 
+     * are visited in sorted order and consecutive keys that fall into
+     * the same leaf share a single walk down the tree.
+     */
+    public Tuple[] putAll(byte[][] keys, byte[][] values) {
+        Tuple[] tuples = new Tuple[keys.length];
+        
+        KeyComparator comparator = provider.getComparator();
+        
+        Finger finger = null;
+        for (int i : sort(keys, comparator)) {
+            byte[] key = keys[i];
+            byte[] value = values[i];
+            
+            if (finger == null || !finger.contains(comparator, key)) {
+                flush(finger);
+                finger = finger(key);
+            }
+            
+            Node node = provider.get(finger.nodeId, Intent.READ);
+            int index = node.binarySearch(key);
+            
+            // Replacing a value or inserting into a leaf that isn't
+            // full doesn't change the structure of the tree.
+            if (index >= 0 || !node.isOverflow()) {
+                if (log != null) {
+                    checkpointable(finger);
+                    log.put(key, value);
+                }
+                
+                // The log may have checkpointed the leaf
+                node = provider.get(finger.nodeId, Intent.WRITE);
+                tuples[i] = node.put(provider, key, value);
+                if (tuples[i] == null) {
+                    size.incrementAndGet();
+                    ++finger.delta;
+                }
+            } else {
+                flush(finger);
+                tuples[i] = put(key, value);
+                finger = null;
+            }
+        }
+        
+        flush(finger);
+        return tuples;
+    }
+    
+    /**
+     * Removes all keys and returns the removed values.
+     * 
+     * @see #putAll(byte[][], byte[][])
+     */
+    public Tuple[] removeAll(byte[][] keys) {
+        Tuple[] tuples = new Tuple[keys.length];
+        
+        KeyComparator comparator = provider.getComparator();
+        
+        Finger finger = null;
+        for (int i : sort(keys, comparator)) {
+            byte[] key = keys[i];
+            
+            if (finger == null || !finger.contains(comparator, key)) {
+                flush(finger);
+                finger = finger(key);
+            }
+            
+            Node node = provider.get(finger.nodeId, Intent.READ);
+            int index = node.binarySearch(key);
+            
+            // The key is not in the tree
+            if (index < 0) {
+                continue;
+            }
+            
+            // Removing from a leaf that doesn't underflow doesn't
+            // change the structure of the tree.
+            if (node.isLeaf() && (node == root || !node.isUnderflow())) {
+                if (log != null) {
+                    checkpointable(finger);
+                    log.remove(key);
+                }
+                
+                // The log may have checkpointed the leaf
+                node = provider.get(finger.nodeId, Intent.WRITE);
+                tuples[i] = node.remove(provider, key);
+                size.decrementAndGet();
+                --finger.delta;
+            } else {
+                flush(finger);
+                tuples[i] = remove(key);
+                finger = null;
+            }
+        }
+        
+        flush(finger);
+        return tuples;
+    }
+    
     public void clear() {
-        size = 0;
+        if (log != null) {
+            log.clear();
+        }
+        
+        size.set(0);
         
         Node tmp = root;
         root = provider.allocate(0);
@@ -94,14 +257,252 @@ public class RootNode {
         provider.free(tmp);
     }
     
+    /**
+     * Replaces the empty tree with the given root {@link Node}.
+     * 
+     * @see BulkLoader
+     */
+    void load(Node node, int size) {
+        if (!isEmpty()) {
+            throw new IllegalStateException("Not empty");
+        }
+        
+        Node tmp = root;
+        root = node;
+        this.size.set(size);
+        
+        provider.free(tmp);
+    }
+    
     public Tuple get(byte[] key) {
         return root.get(provider, key);
     }
     
+    /**
+     * Returns a read-only view of the value of the given key or 
+     * {@code null} if there is no such key. The value is not copied
+     * and the view is only valid until the next change to the tree.
+     */
+    public ByteBuffer getRaw(byte[] key) {
+        Node node = root;
+        while (true) {
+            int index = node.binarySearch(key);
+            
+            // The separators of a B+-Tree don't count
+            if (index >= 0 && (node.isLeaf() || !node.isBPlusTree())) {
+                return node.getValueBuffer(index);
+            }
+            
+            if (node.isLeaf()) {
+                return null;
+            }
+            
+            node = node.getNode(provider, node.childIndex(index), Intent.READ);
+        }
+    }
+    
+    /**
+     * Calls the {@link ValueVisitor} with the value of the given key
+     * and returns its result or {@code null} if there is no such key.
+     */
+    public <R> R get(byte[] key, ValueVisitor<R> visitor) {
+        ByteBuffer value = getRaw(key);
+        return value != null ? visitor.visit(value) : null;
+    }
+    
+    /**
+     * Returns the value of the given long key or {@code null} if there 
+     * is no such key. Neither the key nor a {@link Tuple} are created 
+     * if the tree's order is {@link KeyComparator#LONG}.
+     */
+    public byte[] getValue(long key) {
+        Node node = root;
+        while (true) {
+            int index = node.binarySearch(key);
+            
+            // The separators of a B+-Tree don't count
+            if (index >= 0 && (node.isLeaf() || !node.isBPlusTree())) {
+                return node.getValue(index);
+            }
+            
+            if (node.isLeaf()) {
+                return null;
+            }
+            
+            node = node.getNode(provider, node.childIndex(index), Intent.READ);
+        }
+    }
+    
+    /**
+     * Returns the {@link Tuple}s of all keys or {@code null} for
+     * the keys that are not in the tree.
+     * 
+     * @see #putAll(byte[][], byte[][])
+     */
+    public Tuple[] getAll(byte[][] keys) {
+        Tuple[] tuples = new Tuple[keys.length];
+        
+        KeyComparator comparator = provider.getComparator();
+        
+        Finger finger = null;
+        for (int i : sort(keys, comparator)) {
+            byte[] key = keys[i];
+            
+            if (finger == null || !finger.contains(comparator, key)) {
+                finger = finger(key);
+            }
+            
+            Node node = provider.get(finger.nodeId, Intent.READ);
+            int index = node.binarySearch(key);
+            if (index >= 0) {
+                tuples[i] = node.getTuple(index);
+            }
+        }
+        
+        return tuples;
+    }
+    
+    /**
+     * Walks down to the {@link Node} that contains the key or the leaf 
+     * where it would be stored and returns a {@link Finger} to it.
+     */
+    private Finger finger(byte[] key) {
+        byte[] low = null;
+        byte[] high = null;
+        
+        int height = root.getHeight();
+        NodeId[] path = new NodeId[height];
+        int[] indices = new int[height];
+        
+        Node node = root;
+        while (!node.isLeaf()) {
+            int index = node.binarySearch(key);
+            
+            // The Finger won't match any other key
+            if (index >= 0 && !node.isBPlusTree()) {
+                return new Finger(node.getId(), key, key, path, indices);
+            }
+            
+            index = node.childIndex(index);
+            
+            int depth = height - node.getHeight();
+            path[depth] = node.getId();
+            indices[depth] = index;
+            
+            if (0 < index) {
+                low = node.getTuple(index - 1).getKey();
+            }
+            
+            if (index < node.getTupleCount()) {
+                high = node.getTuple(index).getKey();
+            }
+            
+            node = node.getNode(provider, index, Intent.READ);
+        }
+        
+        return new Finger(node.getId(), low, high, path, indices);
+    }
+    
+    /**
+     * Adds the number of Key-Values that were put into or removed from 
+     * the {@link Finger}'s leaf to the counts of its ancestors.
+     */
+    private void flush(Finger finger) {
+        if (finger == null || finger.delta == 0) {
+            return;
+        }
+        
+        for (int i = 0; i < finger.path.length; i++) {
+            Node node = provider.get(finger.path[i], Intent.WRITE);
+            int index = finger.indices[i];
+            node.setCount(index, node.getCount(index) + finger.delta);
+        }
+        
+        finger.delta = 0;
+    }
+    
+    /**
+     * Flushes the {@link Finger} if the next record of the log is 
+     * appended after a checkpoint. The checkpoint would write the 
+     * changed leaf but not the counts of its ancestors.
+     */
+    private void checkpointable(Finger finger) {
+        if (log.isCheckpointDue()) {
+            flush(finger);
+        }
+    }
+    
+    /**
+     * Returns the indices of the keys in the order of the keys.
+     */
+    private static int[] sort(final byte[][] keys,
+            final KeyComparator comparator) {
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        
+        // The sort is stable and the last of two equal keys wins
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return comparator.compare(keys[o1], keys[o2]);
+            }
+        });
+        
+        int[] indices = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            indices[i] = order[i];
+        }
+        return indices;
+    }
+    
+    /**
+     * Returns the number of Key-Values whose keys are less than (or 
+     * equal to) the given key.
+     */
+    public int rank(byte[] key, boolean inclusive) {
+        return root.rank(provider, key, inclusive);
+    }
+    
+    /**
+     * Returns the {@link Tuple} at the given position in the order 
+     * of the keys.
+     */
+    public Tuple select(int index) {
+        if (index < 0 || size() <= index) {
+            throw new IndexOutOfBoundsException("index=" + index);
+        }
+        return root.select(provider, index);
+    }
+    
+    /**
+     * Returns the number of Key-Values from one key to another. Either
+     * key may be {@code null} for no bound.
+     */
+    public int count(byte[] from, boolean fromInclusive,
+            byte[] to, boolean toInclusive) {
+        int lo = (from != null ? rank(from, !fromInclusive) : 0);
+        int hi = (to != null ? rank(to, toInclusive) : size());
+        return Math.max(0, hi - lo);
+    }
+    
     public Tuple ceilingTuple(byte[] key) {
         return root.ceilingTuple(provider, key);
     }
     
+    public Tuple higherTuple(byte[] key) {
+        return root.higherTuple(provider, key);
+    }
+    
+    public Tuple floorTuple(byte[] key) {
+        return root.floorTuple(provider, key);
+    }
+    
+    public Tuple lowerTuple(byte[] key) {
+        return root.lowerTuple(provider, key);
+    }
+    
     public Tuple firstTuple() {
         return root.firstTuple(provider, Intent.READ);
     }
@@ -111,11 +512,18 @@ public class RootNode {
     }
 
     public int size() {
-        return size;
+        return size.get();
     }
     
     public boolean isEmpty() {
-        return size == 0;
+        return size() == 0;
+    }
+    
+    /**
+     * Adds the given delta to the size of the tree.
+     */
+    void addSize(int delta) {
+        size.addAndGet(delta);
     }
 
     public Iterator<Tuple> iterator() {
@@ -126,8 +534,83 @@ public class RootNode {
         return root.iterator(provider, key, inclusive);
     }
     
+    /**
+     * Returns an {@link Iterator} over the {@link Tuple}s from one key
+     * to another. Either key may be {@code null} for no bound.
+     */
+    public Iterator<Tuple> iterator(byte[] from, boolean fromInclusive,
+            byte[] to, boolean toInclusive) {
+        return root.iterator(provider, from, fromInclusive, to, toInclusive);
+    }
+    
+    /**
+     * Returns an {@link Iterator} that iterates over the {@link Tuple}s
+     * in descending order.
+     */
+    public Iterator<Tuple> descendingIterator() {
+        return root.descendingIterator(provider);
+    }
+    
+    /**
+     * @see #descendingIterator()
+     */
+    public Iterator<Tuple> descendingIterator(byte[] key, boolean inclusive) {
+        return root.descendingIterator(provider, key, inclusive);
+    }
+    
+    /**
+     * Returns an {@link Iterator} over the {@link Tuple}s from one key
+     * down to another. Either key may be {@code null} for no bound.
+     */
+    public Iterator<Tuple> descendingIterator(byte[] from,
+            boolean fromInclusive, byte[] to, boolean toInclusive) {
+        return root.descendingIterator(provider,
+                from, fromInclusive, to, toInclusive);
+    }
+    
     @Override
     public String toString() {
         return "ROOT: " + root;
     }
+    
+    /**
+     * A {@link Finger} points to the leaf that contains all keys 
+     * between the two keys of its ancestors that bound it.
+     */
+    private static class Finger {
+        
+        private final NodeId nodeId;
+        
+        private final byte[] low;
+        
+        private final byte[] high;
+        
+        /**
+         * The ancestors of the leaf and the indices of the children
+         * that lead to it.
+         */
+        private final NodeId[] path;
+        
+        private final int[] indices;
+        
+        /**
+         * The change of the number of Key-Values in the leaf that is
+         * not yet in the counts of the ancestors.
+         */
+        private int delta = 0;
+        
+        private Finger(NodeId nodeId, byte[] low, byte[] high,
+                NodeId[] path, int[] indices) {
+            this.nodeId = nodeId;
+            this.low = low;
+            this.high = high;
+            this.path = path;
+            this.indices = indices;
+        }
+        
+        public boolean contains(KeyComparator comparator, byte[] key) {
+            return (low == null || comparator.compare(low, key) < 0)
+                && (high == null || comparator.compare(key, high) < 0);
+        }
+    }
 }
\ No newline at end of file
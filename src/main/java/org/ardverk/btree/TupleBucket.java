@@ -0,0 +1,670 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link Bucket} of {@link Tuple}s that stores all keys and values in
+ * a single slotted page. The slots are the offsets of the records in the
+ * page and every record is the length of the key, the length of the value,
+ * the key and the value. Searches compare the keys in place and a
+ * {@link Tuple} is only created when it's read.
+ *
+ * The prefix that all keys have in common is stored only once and the
+ * records hold the rest of the keys. The prefix shrinks when a key is
+ * added that doesn't share it and it's computed again when the page is
+ * compacted.
+ *
+ * Records that are removed or replaced become garbage at the end of the
+ * page and the page is compacted once half of it is garbage.
+ * 
+ * The value of a record may be the reference of a value in a 
+ * {@link BlobStore}. Its length is stored as the complement of the
+ * length of the reference and it's read as a {@link BlobTuple}.
+ */
+public class TupleBucket extends Bucket<Tuple> {
+    
+    private static final long serialVersionUID = -3493416012932346520L;
+    
+    /**
+     * key length (4) + value length (4)
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    
+    private static final int MIN_PAGE_SIZE = 64;
+    
+    private static final byte[] EMPTY = new byte[0];
+    
+    private final int[] slots;
+    
+    private byte[] prefix = EMPTY;
+    
+    private byte[] page;
+    
+    private int end = 0;
+    
+    private int garbage = 0;
+    
+    private BlobStore store = null;
+    
+    public TupleBucket(int maxSize) {
+        // The elements of the super class are not used
+        super(0);
+        
+        this.slots = new int[maxSize];
+        this.page = new byte[MIN_PAGE_SIZE];
+    }
+    
+    public TupleBucket(TupleBucket bucket) {
+        this(bucket.slots.length);
+        this.store = bucket.store;
+        addAll(bucket);
+    }
+    
+    @Override
+    public int getMaxSize() {
+        return slots.length;
+    }
+    
+    @Override
+    public boolean isOverflow() {
+        return size >= slots.length;
+    }
+    
+    /**
+     * Returns the number of bytes that are used by the page.
+     */
+    public int getPageSize() {
+        return page.length;
+    }
+    
+    /**
+     * Returns the number of bytes of all keys and values. The common
+     * prefix of the keys is counted once.
+     */
+    public int getByteSize() {
+        return prefix.length + end - garbage - size * RECORD_HEADER_SIZE;
+    }
+    
+    /**
+     * Returns the prefix that all keys have in common.
+     */
+    public byte[] getPrefix() {
+        return prefix.clone();
+    }
+    
+    /**
+     * Returns the {@link BlobStore} of the references or {@code null}.
+     */
+    public BlobStore getBlobStore() {
+        return store;
+    }
+    
+    /**
+     * Sets the {@link BlobStore} that reads the values of the references.
+     */
+    public void setBlobStore(BlobStore store) {
+        this.store = store;
+    }
+    
+    @Override
+    public void add(int index, Tuple tuple) {
+        if (tuple instanceof BlobTuple) {
+            add(index, tuple.getKey(), ((BlobTuple)tuple).getReference(), true);
+        } else {
+            add(index, tuple.getKey(), tuple.getValue(), false);
+        }
+    }
+    
+    /**
+     * Inserts the Key-Value at the given index.
+     */
+    public void add(int index, byte[] key, byte[] value) {
+        add(index, key, value, false);
+    }
+    
+    private void add(int index, byte[] key, byte[] value, boolean reference) {
+        checkInsert(index);
+        include(key);
+        insert(index, append(key, value, reference));
+    }
+    
+    @Override
+    public Tuple set(int index, Tuple tuple) {
+        checkIndex(index);
+        
+        Tuple existing = get(index);
+        include(tuple.getKey());
+        
+        // Appending may compact the page and move the existing record
+        int offset = (tuple instanceof BlobTuple)
+            ? append(tuple.getKey(), ((BlobTuple)tuple).getReference(), true)
+            : append(tuple.getKey(), tuple.getValue(), false);
+        garbage += length(slots[index]);
+        slots[index] = offset;
+        
+        return existing;
+    }
+    
+    /**
+     * Returns the {@link Tuple} at the given index or {@code null} if
+     * the index is equal to the size of the {@link TupleBucket}.
+     */
+    @Override
+    public Tuple get(int index) {
+        if (index == size) {
+            return null;
+        }
+        
+        checkIndex(index);
+        
+        int offset = slots[index];
+        if (isReference(offset)) {
+            return new BlobTuple(getKey(index), value(offset), store);
+        }
+        return new Tuple(getKey(index), value(offset));
+    }
+    
+    /**
+     * Returns a copy of the key at the given index.
+     */
+    public byte[] getKey(int index) {
+        checkIndex(index);
+        
+        int offset = slots[index];
+        int keyLength = keyLength(offset);
+        
+        byte[] key = new byte[prefix.length + keyLength];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+        System.arraycopy(page, offset + RECORD_HEADER_SIZE,
+                key, prefix.length, keyLength);
+        return key;
+    }
+    
+    /**
+     * Returns a copy of the value at the given index. The value of a 
+     * reference is read from the {@link BlobStore}.
+     */
+    public byte[] getValue(int index) {
+        checkIndex(index);
+        
+        int offset = slots[index];
+        byte[] value = value(offset);
+        return isReference(offset) ? store.read(value) : value;
+    }
+    
+    /**
+     * Returns a copy of the reference at the given index or 
+     * {@code null} if the value is stored in the page.
+     */
+    public byte[] getReference(int index) {
+        checkIndex(index);
+        
+        int offset = slots[index];
+        return isReference(offset) ? value(offset) : null;
+    }
+    
+    /**
+     * Returns a read-only view of the value at the given index. The
+     * view shares the page and is only valid until the next change 
+     * to the {@link TupleBucket}. The value of a reference is read 
+     * from the {@link BlobStore} and isn't shared.
+     */
+    public ByteBuffer getValueBuffer(int index) {
+        checkIndex(index);
+        
+        int offset = slots[index];
+        if (isReference(offset)) {
+            return ByteBuffer.wrap(getValue(index)).asReadOnlyBuffer();
+        }
+        
+        int keyLength = keyLength(offset);
+        return ByteBuffer.wrap(page, offset + RECORD_HEADER_SIZE + keyLength,
+                valueLength(offset)).slice().asReadOnlyBuffer();
+    }
+    
+    /**
+     * Writes the key and the value at the given index straight from
+     * the page. Both are prefixed by their length and the length of
+     * a reference is written as its complement.
+     */
+    public void write(DataOutput out, int index) throws IOException {
+        checkIndex(index);
+        
+        int offset = slots[index];
+        int keyLength = keyLength(offset);
+        int valueLength = valueLength(offset);
+        
+        offset += RECORD_HEADER_SIZE;
+        out.writeInt(prefix.length + keyLength);
+        out.write(prefix);
+        out.write(page, offset, keyLength);
+        out.writeInt(getInt(offset - 4));
+        out.write(page, offset + keyLength, valueLength);
+    }
+    
+    /**
+     * Writes the number of {@link Tuple}s, the common prefix of the keys 
+     * and all records as they are in the page.
+     * 
+     * @see #readFrom(DataInput)
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(prefix.length);
+        out.write(prefix);
+        
+        for (int i = 0; i < size; i++) {
+            int offset = slots[i];
+            out.write(page, offset, length(offset));
+        }
+    }
+    
+    /**
+     * Reads the {@link Tuple}s that were written by 
+     * {@link #writeTo(DataOutput)} into the empty {@link TupleBucket}.
+     */
+    public void readFrom(DataInput in) throws IOException {
+        if (!isEmpty()) {
+            throw new IllegalStateException("Not empty");
+        }
+        
+        int count = in.readInt();
+        
+        byte[] prefix = new byte[in.readInt()];
+        in.readFully(prefix);
+        this.prefix = prefix;
+        
+        for (int i = 0; i < count; i++) {
+            checkInsert(i);
+            
+            int keyLength = in.readInt();
+            int length = in.readInt();
+            int valueLength = (length < 0 ? ~length : length);
+            
+            int offset = reserve(RECORD_HEADER_SIZE + keyLength + valueLength);
+            putInt(offset, keyLength);
+            putInt(offset + 4, length);
+            in.readFully(page, offset + RECORD_HEADER_SIZE,
+                    keyLength + valueLength);
+            
+            insert(i, offset);
+        }
+    }
+    
+    @Override
+    public Tuple remove(int index) {
+        checkIndex(index);
+        
+        Tuple tuple = get(index);
+        garbage += length(slots[index]);
+        
+        --size;
+        System.arraycopy(slots, index+1, slots, index, size-index);
+        
+        if (size == 0) {
+            clear();
+        } else if (MIN_PAGE_SIZE < garbage && end < 2 * garbage) {
+            compact(commonPrefix());
+        }
+        
+        return tuple;
+    }
+    
+    @Override
+    public void addAll(int index, Bucket<? extends Tuple> bucket) {
+        if (index < 0 || size < index
+                || slots.length < size + bucket.size()) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        
+        if (bucket.isEmpty()) {
+            return;
+        }
+        
+        if (bucket instanceof TupleBucket) {
+            TupleBucket other = (TupleBucket)bucket;
+            include(other.prefix);
+            
+            // The records can be copied as they are if both
+            // prefixes are the same.
+            if (prefix.length != other.prefix.length) {
+                for (int i = 0; i < other.size; i++) {
+                    add(index + i, other.get(i));
+                }
+                return;
+            }
+            
+            for (int i = 0; i < other.size; i++) {
+                int offset = other.slots[i];
+                int length = other.length(offset);
+                
+                int dst = reserve(length);
+                System.arraycopy(other.page, offset, page, dst, length);
+                
+                insert(index + i, dst);
+            }
+        } else {
+            int count = bucket.size();
+            for (int i = 0; i < count; i++) {
+                add(index + i, bucket.get(i));
+            }
+        }
+    }
+    
+    @Override
+    public void clear() {
+        size = 0;
+        end = 0;
+        garbage = 0;
+        prefix = EMPTY;
+    }
+    
+    /**
+     * Searches for the given key and returns its index or
+     * {@code -(insertion point) - 1} if it doesn't exist.
+     *
+     * @see TupleUtils#binarySearch(java.util.List, byte[], KeyComparator)
+     */
+    public int binarySearch(byte[] key) {
+        return binarySearch(key, KeyComparator.LEXICOGRAPHIC);
+    }
+    
+    /**
+     * Searches for the given key in the order of the given 
+     * {@link KeyComparator}.
+     */
+    public int binarySearch(byte[] key, KeyComparator comparator) {
+        int low = 0;
+        int high = size - 1;
+        
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            
+            int offset = slots[mid];
+            int cmp = comparator.compare(key, prefix, page,
+                    offset + RECORD_HEADER_SIZE, keyLength(offset));
+            
+            if (cmp > 0) {
+                low = mid + 1;
+            } else if (cmp < 0) {
+                high = mid - 1;
+            } else {
+                return mid; // key found
+            }
+        }
+        
+        return -(low + 1);  // key not found
+    }
+    
+    @Override
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            
+            private int index = 0;
+            
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+            
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(index++);
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T[] toArray(T[] a) {
+        if (a.length < size) {
+            Class<?> componentType = a.getClass().getComponentType();
+            a = (T[])Array.newInstance(componentType, size);
+        }
+        
+        for (int i = 0; i < size; i++) {
+            a[i] = (T)get(i);
+        }
+        return a;
+    }
+    
+    private void insert(int index, int offset) {
+        System.arraycopy(slots, index, slots, index+1, size-index);
+        slots[index] = offset;
+        ++size;
+    }
+    
+    /**
+     * Shortens the prefix to the part it has in common with the key.
+     * The prefix of an empty {@link TupleBucket} is the whole key.
+     */
+    private void include(byte[] key) {
+        if (size == 0) {
+            clear();
+            prefix = key.clone();
+            return;
+        }
+        
+        int length = TupleUtils.prefixLength(prefix, key);
+        if (length < prefix.length) {
+            compact(Arrays.copyOf(prefix, length));
+        }
+    }
+    
+    /**
+     * Returns the longest prefix that all keys have in common.
+     */
+    private byte[] commonPrefix() {
+        int first = slots[0];
+        int length = keyLength(first);
+        
+        for (int i = 1; i < size && 0 < length; i++) {
+            int offset = slots[i];
+            length = Math.min(length, TupleUtils.prefixLength(
+                    page, first + RECORD_HEADER_SIZE, length,
+                    page, offset + RECORD_HEADER_SIZE, keyLength(offset)));
+        }
+        
+        byte[] dst = Arrays.copyOf(prefix, prefix.length + length);
+        System.arraycopy(page, first + RECORD_HEADER_SIZE,
+                dst, prefix.length, length);
+        return dst;
+    }
+    
+    /**
+     * Appends the Key-Value to the page and returns its offset.
+     * The key must start with the prefix.
+     */
+    private int append(byte[] key, byte[] value, boolean reference) {
+        int keyLength = key.length - prefix.length;
+        int offset = reserve(RECORD_HEADER_SIZE + keyLength + value.length);
+        
+        putInt(offset, keyLength);
+        putInt(offset + 4, reference ? ~value.length : value.length);
+        System.arraycopy(key, prefix.length, page,
+                offset + RECORD_HEADER_SIZE, keyLength);
+        System.arraycopy(value, 0, page,
+                offset + RECORD_HEADER_SIZE + keyLength, value.length);
+        
+        return offset;
+    }
+    
+    /**
+     * Reserves the given number of bytes at the end of the page
+     * and returns their offset.
+     */
+    private int reserve(int length) {
+        if (page.length < end + length) {
+            if (0 < garbage) {
+                compact(prefix);
+            }
+            
+            if (page.length < end + length) {
+                byte[] dst = new byte[Math.max(end + length, 2 * page.length)];
+                System.arraycopy(page, 0, dst, 0, end);
+                page = dst;
+            }
+        }
+        
+        int offset = end;
+        end += length;
+        return offset;
+    }
+    
+    /**
+     * Copies all records in the order of their slots into a new page
+     * and changes their keys from the current to the given prefix. The
+     * given prefix must be a prefix of all keys.
+     */
+    private void compact(byte[] prefix) {
+        // The number of bytes every key grows (or shrinks)
+        int delta = this.prefix.length - prefix.length;
+        
+        byte[] dst = new byte[Math.max(MIN_PAGE_SIZE,
+                end - garbage + size * delta)];
+        
+        int position = 0;
+        for (int i = 0; i < size; i++) {
+            int offset = slots[i];
+            int keyLength = keyLength(offset);
+            int valueLength = valueLength(offset);
+            
+            slots[i] = position;
+            
+            int length = keyLength + delta;
+            putInt(dst, position, length);
+            putInt(dst, position + 4, getInt(offset + 4));
+            position += RECORD_HEADER_SIZE;
+            
+            offset += RECORD_HEADER_SIZE;
+            if (delta < 0) {
+                System.arraycopy(page, offset - delta, dst, position, length);
+            } else {
+                System.arraycopy(this.prefix, prefix.length, dst, position, delta);
+                System.arraycopy(page, offset, dst, position + delta, keyLength);
+            }
+            position += length;
+            
+            System.arraycopy(page, offset + keyLength,
+                    dst, position, valueLength);
+            position += valueLength;
+        }
+        
+        this.prefix = prefix;
+        page = dst;
+        end = position;
+        garbage = 0;
+    }
+    
+    private int length(int offset) {
+        return RECORD_HEADER_SIZE + keyLength(offset) + valueLength(offset);
+    }
+    
+    private int keyLength(int offset) {
+        return getInt(offset);
+    }
+    
+    private int valueLength(int offset) {
+        int length = getInt(offset + 4);
+        return length < 0 ? ~length : length;
+    }
+    
+    private boolean isReference(int offset) {
+        return getInt(offset + 4) < 0;
+    }
+    
+    /**
+     * Returns a copy of the value or reference of the record.
+     */
+    private byte[] value(int offset) {
+        return copy(offset + RECORD_HEADER_SIZE + keyLength(offset),
+                valueLength(offset));
+    }
+    
+    private byte[] copy(int offset, int length) {
+        byte[] dst = new byte[length];
+        System.arraycopy(page, offset, dst, 0, length);
+        return dst;
+    }
+    
+    private int getInt(int offset) {
+        return ((page[offset] & 0xFF) << 24)
+            | ((page[offset+1] & 0xFF) << 16)
+            | ((page[offset+2] & 0xFF) << 8)
+            | (page[offset+3] & 0xFF);
+    }
+    
+    private void putInt(int offset, int value) {
+        putInt(page, offset, value);
+    }
+    
+    private static void putInt(byte[] dst, int offset, int value) {
+        dst[offset] = (byte)(value >>> 24);
+        dst[offset+1] = (byte)(value >>> 16);
+        dst[offset+2] = (byte)(value >>> 8);
+        dst[offset+3] = (byte)value;
+    }
+    
+    private void checkIndex(int index) {
+        if (index < 0 || size <= index) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+    
+    private void checkInsert(int index) {
+        if (index < 0 || size < index) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        
+        if (size >= slots.length) {
+            throw new ArrayIndexOutOfBoundsException("Max Size: " + slots.length);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("[");
+        
+        if (!isEmpty()) {
+            for (int i = 0; i < size; i++) {
+                sb.append(get(i)).append(", ");
+            }
+            sb.setLength(sb.length()-2);
+        }
+        
+        sb.append("]");
+        return sb.toString();
+    }
+}
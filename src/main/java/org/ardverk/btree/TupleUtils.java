@@ -16,19 +16,24 @@
 
 package org.ardverk.btree;
 
-import java.util.Comparator;
 import java.util.List;
 
 class TupleUtils {
 
     private TupleUtils() {}
     
-    public static <K> int binarySearch(List<? extends Tuple> list, byte[] key) {
-        return binarySearch(list, 0, list.size(), key);
+    public static int binarySearch(List<? extends Tuple> list,
+            byte[] key, KeyComparator comparator) {
+        if (list instanceof TupleBucket) {
+            return ((TupleBucket)list).binarySearch(key, comparator);
+        } else if (list instanceof LongBucket) {
+            return ((LongBucket)list).binarySearch(key, comparator);
+        }
+        return binarySearch(list, 0, list.size(), key, comparator);
     }
     
-    public static <K> int binarySearch(List<? extends Tuple> list, 
-            int offset, int length, byte[] key) {
+    public static int binarySearch(List<? extends Tuple> list, 
+            int offset, int length, byte[] key, KeyComparator comparator) {
         
         int low = 0;
         int high = length - 1;
@@ -38,7 +43,7 @@ class TupleUtils {
             
             Tuple entry = list.get(offset + mid);
             
-            int cmp = compare(entry.getKey(), key);
+            int cmp = comparator.compare(entry.getKey(), key);
 
             if (cmp < 0) {
                 low = mid + 1;
@@ -52,37 +57,43 @@ class TupleUtils {
         return -(low + 1);  // key not found
     }
     
-    public static int compare(byte[] o1, byte[] o2) {
-        return ByteArrayComparator.COMPARATOR.compare(o1, o2);
+    /**
+     * Returns the number of leading bytes the two byte arrays have 
+     * in common.
+     */
+    public static int prefixLength(byte[] b1, byte[] b2) {
+        return prefixLength(b1, 0, b1.length, b2, 0, b2.length);
     }
     
-    private static class ByteArrayComparator implements Comparator<byte[]> {
-
-        public static final ByteArrayComparator COMPARATOR 
-            = new ByteArrayComparator();
-        
-        @Override
-        public int compare(byte[] o1, byte[] o2) {
-            if (o1 == null) {
-                return o2 == null ? 0 : -1;
-            } else if (o2 == null) {
-                return 1;
-            }
-            
-            int length = o1.length;
-            int diff = length - o2.length;
-            if (diff != 0) {
-                return diff;
-            }
-            
-            for (int i = 0; i < length; i++) {
-                diff = (o1[i] & 0xFF) - (o2[i] & 0xFF);
-                if (diff != 0) {
-                    return diff;
-                }
+    /**
+     * Returns the number of leading bytes the two ranges have in common.
+     */
+    public static int prefixLength(byte[] b1, int offset1, int length1,
+            byte[] b2, int offset2, int length2) {
+        int length = Math.min(length1, length2);
+        for (int i = 0; i < length; i++) {
+            if (b1[offset1 + i] != b2[offset2 + i]) {
+                return i;
             }
-            
-            return 0;
         }
+        return length;
+    }
+    
+    /**
+     * Returns {@code true} if the key is past the bound. The bound is 
+     * the upper bound of an ascending and the lower bound of a descending
+     * iteration. A {@code null} bound is no bound at all.
+     */
+    public static boolean isBeyond(KeyComparator comparator, byte[] key,
+            byte[] bound, boolean inclusive, boolean descending) {
+        if (bound == null) {
+            return false;
+        }
+        
+        int diff = comparator.compare(key, bound);
+        if (descending) {
+            diff = -diff;
+        }
+        return 0 < diff || (diff == 0 && !inclusive);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link NodeCache} that implements the 2Q algorithm. New {@link Node}s
+ * enter a FIFO queue (A1in) and are evicted from there unless they're
+ * requested again shortly after being evicted, in which case they're
+ * promoted to a LRU queue (Am). A scan over many {@link Node}s only
+ * churns through A1in and leaves the frequently used {@link Node}s in
+ * Am untouched.
+ */
+public class TwoQueueNodeCache extends NodeCache {
+    
+    private static final int MIN_GHOSTS = 16;
+    
+    /**
+     * A1in, the FIFO queue of {@link Node}s that were seen once.
+     */
+    private final Map<NodeId, Entry> in
+        = new LinkedHashMap<NodeId, Entry>();
+    
+    /**
+     * Am, the LRU queue of {@link Node}s that were seen more than once.
+     */
+    private final Map<NodeId, Entry> main
+        = new LinkedHashMap<NodeId, Entry>(16, 0.75f, true);
+    
+    /**
+     * A1out, the {@link NodeId}s of {@link Node}s that were recently
+     * evicted from A1in.
+     */
+    private final Map<NodeId, Boolean> out
+        = new LinkedHashMap<NodeId, Boolean>();
+    
+    private final long inCapacity;
+    
+    private long inWeight = 0L;
+    
+    public TwoQueueNodeCache(long capacity) {
+        this(capacity, NODES);
+    }
+    
+    public TwoQueueNodeCache(long capacity, Weigher weigher) {
+        super(capacity, weigher);
+        this.inCapacity = Math.max(1L, capacity / 4L);
+    }
+    
+    @Override
+    public int size() {
+        return in.size() + main.size();
+    }
+    
+    @Override
+    protected Entry lookup(NodeId nodeId) {
+        Entry entry = main.get(nodeId);
+        if (entry == null) {
+            entry = in.get(nodeId);
+        }
+        return entry;
+    }
+    
+    @Override
+    protected void insert(Entry entry) {
+        NodeId nodeId = entry.node.getId();
+        
+        if (out.remove(nodeId) != null) {
+            main.put(nodeId, entry);
+        } else {
+            in.put(nodeId, entry);
+            inWeight += entry.weight;
+        }
+    }
+    
+    @Override
+    protected Entry delete(NodeId nodeId) {
+        Entry entry = in.remove(nodeId);
+        if (entry != null) {
+            inWeight -= entry.weight;
+            return entry;
+        }
+        return main.remove(nodeId);
+    }
+    
+    @Override
+    protected Entry victim() {
+        if (inWeight > inCapacity || main.isEmpty()) {
+            Entry entry = first(in);
+            if (entry != null) {
+                remember(entry.node.getId());
+                return entry;
+            }
+        }
+        
+        Entry entry = first(main);
+        if (entry == null) {
+            entry = first(in);
+        }
+        return entry;
+    }
+    
+    @Override
+    protected void reweighed(Entry entry, int delta) {
+        if (in.containsKey(entry.node.getId())) {
+            inWeight += delta;
+        }
+    }
+    
+    private Entry first(Map<NodeId, Entry> queue) {
+        for (Entry entry : queue.values()) {
+            if (!isPinned(entry)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+    
+    private void remember(NodeId nodeId) {
+        out.put(nodeId, Boolean.TRUE);
+        
+        int maxSize = Math.max(MIN_GHOSTS, size() / 2);
+        Iterator<NodeId> it = out.keySet().iterator();
+        while (out.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+    
+    @Override
+    protected Iterable<Entry> entries() {
+        List<Entry> entries = new ArrayList<Entry>(size());
+        entries.addAll(in.values());
+        entries.addAll(main.values());
+        return entries;
+    }
+}
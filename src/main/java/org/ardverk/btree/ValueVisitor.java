@@ -0,0 +1,32 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ValueVisitor} reads a value in place. The {@link ByteBuffer}
+ * is a read-only view of the storage of the {@link Node} and it's only
+ * valid while the {@link ValueVisitor} is running.
+ */
+public interface ValueVisitor<R> {
+    
+    /**
+     * Called with the value and returns the result of the lookup.
+     */
+    public R visit(ByteBuffer value);
+}
@@ -0,0 +1,517 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the logical operations (put, remove and clear)
+ * that were applied to a {@link RootNode}. Every record has a sequence
+ * number and the log is replayed from the sequence number of the last
+ * checkpoint when the tree is re-opened.
+ *
+ * How often the log is forced to disk is defined by the {@link SyncPolicy}.
+ * 
+ * The log is guarded by a {@link ReentrantLock} and not by its monitor. 
+ * No thread holds a monitor while it's waiting for the disk.
+ */
+public class WriteAheadLog implements Flushable, Closeable {
+    
+    /**
+     * The default size of the log (in bytes) that triggers a checkpoint.
+     */
+    public static final long DEFAULT_CHECKPOINT_SIZE = 64L * 1024L * 1024L;
+    
+    private static final byte PUT = 1;
+    
+    private static final byte REMOVE = 2;
+    
+    private static final byte CLEAR = 3;
+    
+    /**
+     * length (4) + crc (4)
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+    
+    private final File file;
+    
+    private final SyncPolicy policy;
+    
+    private final RandomAccessFile raf;
+    
+    private final FileChannel channel;
+    
+    private final Timer timer;
+    
+    private final CRC32 crc = new CRC32();
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private Checkpointer checkpointer = null;
+    
+    private long checkpointSize = DEFAULT_CHECKPOINT_SIZE;
+    
+    private long sequenceNumber = 0L;
+    
+    private long position = 0L;
+    
+    private int pending = 0;
+    
+    private long lastSync = System.currentTimeMillis();
+    
+    private boolean open = true;
+    
+    public WriteAheadLog(File file, SyncPolicy policy) {
+        this.file = file;
+        this.policy = policy;
+        
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        } catch (IOException err) {
+            throw new IllegalStateException(err);
+        }
+        
+        if (0L < policy.millis) {
+            timer = new Timer("WriteAheadLog-" + file.getName(), true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    syncIfPending();
+                }
+            }, policy.millis, policy.millis);
+        } else {
+            timer = null;
+        }
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    public SyncPolicy getSyncPolicy() {
+        return policy;
+    }
+    
+    /**
+     * Returns the sequence number of the most recently appended record.
+     */
+    public long getSequenceNumber() {
+        lock.lock();
+        try {
+            return sequenceNumber;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the size of the log in bytes.
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return position;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getCheckpointSize() {
+        lock.lock();
+        try {
+            return checkpointSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Sets the size of the log (in bytes) that triggers a checkpoint.
+     */
+    public void setCheckpointSize(long checkpointSize) {
+        lock.lock();
+        try {
+            this.checkpointSize = checkpointSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Sets the {@link Checkpointer} that is called as soon as the log
+     * grows beyond its checkpoint size. The checkpoint happens right
+     * before the next record is appended.
+     */
+    void setCheckpointer(Checkpointer checkpointer) {
+        lock.lock();
+        try {
+            this.checkpointer = checkpointer;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns {@code true} if the next record is appended after a 
+     * checkpoint.
+     */
+    boolean isCheckpointDue() {
+        lock.lock();
+        try {
+            return checkpointer != null && checkpointSize <= position;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void put(byte[] key, byte[] value) {
+        append(PUT, key, value);
+    }
+    
+    public void remove(byte[] key) {
+        append(REMOVE, key, null);
+    }
+    
+    public void clear() {
+        append(CLEAR, null, null);
+    }
+    
+    private void append(byte op, byte[] key, byte[] value) {
+        lock.lock();
+        try {
+            checkOpen();
+        
+            if (checkpointer != null && checkpointSize <= position) {
+                checkpointer.checkpoint();
+            }
+        
+            int keyLength = (key != null ? key.length : 0);
+            int valueLength = (value != null ? value.length : 0);
+        
+            int length = 8 + 1 + 4 + keyLength + 4 + valueLength;
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        
+            buffer.position(RECORD_HEADER_SIZE);
+            buffer.putLong(sequenceNumber + 1L);
+            buffer.put(op);
+            putBytes(buffer, key);
+            putBytes(buffer, value);
+        
+            crc.reset();
+            crc.update(buffer.array(), RECORD_HEADER_SIZE, length);
+        
+            buffer.putInt(0, length);
+            buffer.putInt(4, (int)crc.getValue());
+            buffer.rewind();
+        
+            try {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            } catch (IOException err) {
+                throw new IllegalStateException(err);
+            }
+        
+            ++sequenceNumber;
+            ++pending;
+        
+            if (policy.isDue(pending, lastSync)) {
+                sync();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Forces all records to disk.
+     */
+    public void sync() {
+        lock.lock();
+        try {
+            checkOpen();
+        
+            try {
+                channel.force(false);
+            } catch (IOException err) {
+                throw new IllegalStateException(err);
+            }
+            
+            pending = 0;
+            lastSync = System.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void syncIfPending() {
+        lock.lock();
+        try {
+            if (open && 0 < pending) {
+                sync();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void flush() {
+        sync();
+    }
+    
+    /**
+     * Applies all records whose sequence number is greater than the given
+     * sequence number to the {@link RootNode}. A torn record at the end of
+     * the log is discarded. Returns the number of records that were applied.
+     */
+    public int replay(RootNode root, long checkpoint) {
+        lock.lock();
+        try {
+            checkOpen();
+        
+            int count = 0;
+        
+            try {
+                long size = channel.size();
+                long offset = 0L;
+            
+                sequenceNumber = checkpoint;
+            
+                while (offset + RECORD_HEADER_SIZE <= size) {
+                    ByteBuffer header = read(offset, RECORD_HEADER_SIZE);
+                    int length = header.getInt();
+                    int checksum = header.getInt();
+                
+                    if (length < 0 || size < offset + RECORD_HEADER_SIZE + length) {
+                        break;
+                    }
+                    
+                    ByteBuffer record = read(offset + RECORD_HEADER_SIZE, length);
+                    
+                    crc.reset();
+                    crc.update(record.array(), 0, length);
+                    if ((int)crc.getValue() != checksum) {
+                        break;
+                    }
+                    
+                    long seq = record.getLong();
+                    byte op = record.get();
+                    byte[] key = getBytes(record);
+                    byte[] value = getBytes(record);
+                    
+                    if (checkpoint < seq) {
+                        switch (op) {
+                            case PUT:
+                                root.put(key, value);
+                                break;
+                            case REMOVE:
+                                root.remove(key);
+                                break;
+                            case CLEAR:
+                                root.clear();
+                                break;
+                            default:
+                                throw new IOException("op=" + op);
+                        }
+                        
+                        ++count;
+                    }
+                    
+                    sequenceNumber = Math.max(sequenceNumber, seq);
+                    offset += RECORD_HEADER_SIZE + length;
+                }
+                
+                // Cut off whatever is left of a torn write
+                channel.truncate(offset);
+                position = offset;
+                
+            } catch (IOException err) {
+                throw new IllegalStateException(err);
+            }
+            
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Discards all records. It's called after a checkpoint made all
+     * records up to the current sequence number obsolete.
+     */
+    public void truncate() {
+        lock.lock();
+        try {
+            checkOpen();
+        
+            try {
+                channel.truncate(0L);
+                channel.force(true);
+            } catch (IOException err) {
+                throw new IllegalStateException(err);
+            }
+            
+            position = 0L;
+            pending = 0;
+            lastSync = System.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (open) {
+                try {
+                    if (timer != null) {
+                        timer.cancel();
+                    }
+                    
+                    if (0 < pending) {
+                        sync();
+                    }
+                } finally {
+                    open = false;
+                    
+                    try {
+                        raf.close();
+                    } catch (IOException err) {}
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void checkOpen() {
+        if (!open) {
+            throw new IllegalStateException();
+        }
+    }
+    
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int r = channel.read(buffer, offset + buffer.position());
+            if (r == -1) {
+                throw new IOException("EOF: " + offset);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    private static void putBytes(ByteBuffer buffer, byte[] data) {
+        if (data != null) {
+            buffer.putInt(data.length);
+            buffer.put(data);
+        } else {
+            buffer.putInt(-1);
+        }
+    }
+    
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return data;
+    }
+    
+    @Override
+    public String toString() {
+        return file + ", " + policy + ", seq=" + getSequenceNumber();
+    }
+    
+    /**
+     * The owner of a {@link WriteAheadLog} that writes the tree to disk
+     * and {@link WriteAheadLog#truncate()}s the log.
+     */
+    static interface Checkpointer {
+        public void checkpoint();
+    }
+    
+    /**
+     * Defines when the {@link WriteAheadLog} is forced to disk.
+     */
+    public static class SyncPolicy {
+        
+        /**
+         * Every record is forced to disk before the operation returns.
+         */
+        public static final SyncPolicy ALWAYS = new SyncPolicy(1, -1L);
+        
+        /**
+         * The log is only forced to disk by checkpoints. Records survive
+         * a crash of the process but may be lost if the system crashes.
+         */
+        public static final SyncPolicy NONE = new SyncPolicy(-1, -1L);
+        
+        /**
+         * The log is forced to disk after the given number of records
+         * or when the oldest record that is not on disk is older than
+         * the given time, whichever comes first.
+         */
+        public static SyncPolicy group(int ops, long time, TimeUnit unit) {
+            if (ops <= 0 && time <= 0L) {
+                throw new IllegalArgumentException();
+            }
+            return new SyncPolicy(ops, unit.toMillis(time));
+        }
+        
+        private final int ops;
+        
+        private final long millis;
+        
+        private SyncPolicy(int ops, long millis) {
+            this.ops = ops;
+            this.millis = millis;
+        }
+        
+        private boolean isDue(int pending, long lastSync) {
+            if (0 < ops && ops <= pending) {
+                return true;
+            }
+            
+            return 0L < millis
+                && millis <= System.currentTimeMillis() - lastSync;
+        }
+        
+        @Override
+        public String toString() {
+            return "SyncPolicy[ops=" + ops + ", millis=" + millis + "]";
+        }
+    }
+}
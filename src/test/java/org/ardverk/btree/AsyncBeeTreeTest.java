@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class AsyncBeeTreeTest {
+    
+    private static final TupleBinding<String, String> binding
+        = DefaultTupleBinding.create(StringBinding.BINDING);
+    
+    /**
+     * An {@link Executor} that runs nothing until it's told to.
+     */
+    private static class QueueExecutor implements Executor {
+        
+        private final List<Runnable> queue = new ArrayList<Runnable>();
+        
+        @Override
+        public void execute(Runnable command) {
+            queue.add(command);
+        }
+        
+        public int runAll() {
+            int count = queue.size();
+            for (Runnable command : queue) {
+                command.run();
+            }
+            queue.clear();
+            return count;
+        }
+    }
+    
+    @Test
+    public void merge() throws InterruptedException, ExecutionException {
+        BeeTree<String, String> tree = new BeeTree<String, String>(
+                new MemoryNodeProvider(4), binding);
+        tree.put("Key", "Value-0");
+        
+        QueueExecutor executor = new QueueExecutor();
+        AsyncBeeTree<String, String> async
+            = new AsyncBeeTree<String, String>(tree, executor);
+        
+        Future<String> get1 = async.getAsync("Key");
+        Future<String> get2 = async.getAsync("Key");
+        
+        // The lookups after the put see its value
+        Future<String> put = async.putAsync("Key", "Value-1");
+        Future<String> get3 = async.getAsync("Key");
+        
+        TestCase.assertFalse(get1.isDone());
+        TestCase.assertEquals(3, executor.runAll());
+        
+        TestCase.assertEquals("Value-0", get1.get());
+        TestCase.assertEquals("Value-0", get2.get());
+        TestCase.assertEquals("Value-0", put.get());
+        TestCase.assertEquals("Value-1", get3.get());
+        
+        // The lookup isn't waiting anymore and isn't merged
+        Future<String> get4 = async.getAsync("Key");
+        TestCase.assertEquals(1, executor.runAll());
+        TestCase.assertEquals("Value-1", get4.get());
+    }
+    
+    @Test
+    public void cancel() throws InterruptedException, ExecutionException {
+        BeeTree<String, String> tree = new BeeTree<String, String>(
+                new MemoryNodeProvider(4), binding);
+        tree.put("Key", "Value");
+        
+        QueueExecutor executor = new QueueExecutor();
+        AsyncBeeTree<String, String> async
+            = new AsyncBeeTree<String, String>(tree, executor);
+        
+        Future<String> get1 = async.getAsync("Key");
+        Future<String> get2 = async.getAsync("Key");
+        
+        // The other lookup of the shared task goes on
+        TestCase.assertTrue(get1.cancel(true));
+        TestCase.assertEquals(1, executor.runAll());
+        
+        TestCase.assertTrue(get1.isCancelled());
+        TestCase.assertEquals("Value", get2.get());
+    }
+    
+    @Test
+    public void rejected() throws InterruptedException, ExecutionException {
+        BeeTree<String, String> tree = new BeeTree<String, String>(
+                new MemoryNodeProvider(4), binding);
+        tree.put("Key", "Value");
+        
+        // The first task is rejected
+        final QueueExecutor queue = new QueueExecutor();
+        Executor executor = new Executor() {
+            private boolean rejected = false;
+            
+            @Override
+            public void execute(Runnable command) {
+                if (!rejected) {
+                    rejected = true;
+                    throw new RejectedExecutionException();
+                }
+                queue.execute(command);
+            }
+        };
+        
+        AsyncBeeTree<String, String> async
+            = new AsyncBeeTree<String, String>(tree, executor);
+        
+        try {
+            async.getAsync("Key");
+            TestCase.fail("Should have failed");
+        } catch (RejectedExecutionException expected) {
+        }
+        
+        // The rejected task isn't waiting to be run
+        Future<String> get = async.getAsync("Key");
+        TestCase.assertEquals(1, queue.runAll());
+        TestCase.assertEquals("Value", get.get());
+    }
+    
+    @Test
+    public void callbacks() throws IOException,
+            InterruptedException, ExecutionException {
+        File directory = TestUtils.createDirectory();
+        
+        // The FileNodeProvider is used by one thread at a time
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            FileNodeProvider provider = new FileNodeProvider(
+                    directory, 4, new LruNodeCache(32));
+            AsyncBeeTree<String, String> async = new AsyncBeeTree<String, String>(
+                    new BeeTree<String, String>(provider, binding), executor);
+            
+            int count = 1000;
+            
+            final AtomicInteger completed = new AtomicInteger();
+            final CountDownLatch latch = new CountDownLatch(2 * count);
+            
+            AsyncBeeTree.Callback<String> callback
+                    = new AsyncBeeTree.Callback<String>() {
+                @Override
+                public void completed(String result) {
+                    completed.incrementAndGet();
+                    latch.countDown();
+                }
+                
+                @Override
+                public void failed(Throwable cause) {
+                    latch.countDown();
+                }
+            };
+            
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                async.putAsync(key, key, callback);
+            }
+            
+            for (int i = 0; i < count; i++) {
+                async.getAsync("Key-" + i, callback);
+            }
+            
+            TestCase.assertTrue(latch.await(10L, TimeUnit.SECONDS));
+            TestCase.assertEquals(2 * count, completed.get());
+            
+            Future<List<Entry<String, String>>> scan
+                = async.scanAsync("Key-1", true, "Key-2", false, 5);
+            
+            List<Entry<String, String>> entries = scan.get();
+            TestCase.assertEquals(5, entries.size());
+            TestCase.assertEquals("Key-1", entries.get(0).getKey());
+            TestCase.assertEquals("Key-10", entries.get(1).getKey());
+            TestCase.assertEquals("Key-100", entries.get(2).getValue());
+            
+            provider.close();
+        } finally {
+            executor.shutdown();
+            
+            TestUtils.delete(directory);
+        }
+    }
+    
+    /**
+     * Many threads have 100000 lookups outstanding at once against a 
+     * tree whose {@link Node}s are mostly on disk. No thread waits for
+     * a lookup but the one that runs them.
+     */
+    @Test
+    public void lookups() throws IOException, InterruptedException {
+        File directory = TestUtils.createDirectory();
+        
+        final int count = 10000;
+        final int lookups = 100000;
+        final int threads = 16;
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        try {
+            FileNodeProvider provider = new FileNodeProvider(
+                    directory, 16, new LruNodeCache(64));
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                tree.put(key, key);
+            }
+            provider.flush();
+            
+            final AsyncBeeTree<String, String> async
+                = new AsyncBeeTree<String, String>(tree, executor);
+            
+            final AtomicInteger failed = new AtomicInteger();
+            final CountDownLatch latch = new CountDownLatch(lookups);
+            
+            for (int i = 0; i < threads; i++) {
+                final int seed = i;
+                clients.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Random random = new Random(seed);
+                        for (int j = 0; j < lookups / threads; j++) {
+                            final String key = "Key-" + random.nextInt(count);
+                            async.getAsync(key, new AsyncBeeTree.Callback<String>() {
+                                @Override
+                                public void completed(String result) {
+                                    if (!key.equals(result)) {
+                                        failed.incrementAndGet();
+                                    }
+                                    latch.countDown();
+                                }
+                                
+                                @Override
+                                public void failed(Throwable cause) {
+                                    failed.incrementAndGet();
+                                    latch.countDown();
+                                }
+                            });
+                        }
+                    }
+                });
+            }
+            
+            TestCase.assertTrue(latch.await(60L, TimeUnit.SECONDS));
+            TestCase.assertEquals(0, failed.get());
+            
+            provider.close();
+        } finally {
+            clients.shutdown();
+            executor.shutdown();
+            
+            TestUtils.delete(directory);
+        }
+    }
+}
@@ -16,8 +16,20 @@
 
 package org.ardverk.btree;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
 import junit.framework.TestCase;
 
+import org.ardverk.btree.NodeProvider.Intent;
 import org.junit.Test;
 
 public class BeeTreeTest {
@@ -25,6 +37,18 @@ public class BeeTreeTest {
     private static final TupleBinding<String, String> binding 
         = DefaultTupleBinding.create(StringBinding.BINDING);
     
+    /**
+     * The order of the tree: the keys are ASCII and their bytes 
+     * are in the same order as their characters
+     */
+    private static final Comparator<String> comparator
+            = new Comparator<String>() {
+        @Override
+        public int compare(String o1, String o2) {
+            return o1.compareTo(o2);
+        }
+    };
+    
     @Test
     public void put() {
         NodeProvider provider = new MemoryNodeProvider(128);
@@ -81,4 +105,382 @@ public class BeeTreeTest {
             TestCase.assertEquals(key, value);
         }
     }
+    
+    @Test
+    public void batch() {
+        NodeProvider provider = new MemoryNodeProvider(4);
+        BeeTree<String, String> tree
+            = new BeeTree<String, String>(provider, binding);
+        
+        int count = 10000;
+        for (int i = 0; i < count; i += 2) {
+            String key = "Key-" + i;
+            tree.put(key, key);
+        }
+        
+        // Puts every key in reverse, half of them exist already
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = count-1; i >= 0; i--) {
+            String key = "Key-" + i;
+            map.put(key, "Value-" + i);
+        }
+        
+        tree.putAll(map);
+        TestCase.assertEquals(count, tree.size());
+        
+        Map<String, String> values = tree.getAll(map.keySet());
+        TestCase.assertEquals(map, values);
+        
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < count; i += 3) {
+            keys.add("Key-" + i);
+        }
+        keys.add("Key-" + count);
+        
+        TestCase.assertEquals(keys.size() - 1, tree.removeAll(keys));
+        TestCase.assertEquals(count - keys.size() + 1, tree.size());
+        
+        for (int i = 0; i < count; i++) {
+            String key = "Key-" + i;
+            String value = tree.get(key);
+            
+            if (i % 3 == 0) {
+                TestCase.assertNull(value);
+            } else {
+                TestCase.assertEquals("Value-" + i, value);
+            }
+        }
+        
+        TestCase.assertTrue(tree.getAll(keys).isEmpty());
+    }
+    
+    @Test
+    public void bplus() {
+        for (int t : new int[] { 2, 3, 16 }) {
+            NodeProvider provider = new MemoryNodeProvider(t, false, true);
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            TreeMap<String, String> expected
+                = new TreeMap<String, String>(comparator);
+            
+            Random random = new Random(t);
+            for (int i = 0; i < 20000; i++) {
+                String key = "Key-" + random.nextInt(2000);
+                
+                if (random.nextInt(3) == 0) {
+                    TestCase.assertEquals(expected.remove(key), tree.remove(key));
+                } else {
+                    String value = "Value-" + i;
+                    TestCase.assertEquals(expected.put(key, value),
+                            tree.put(key, value));
+                }
+            }
+            
+            TestCase.assertEquals(expected.size(), tree.size());
+            assertSeparators(provider.getRoot().getRoot(), provider);
+            
+            assertEquals(expected.entrySet().iterator(), tree.iterator());
+            
+            // The leaves are linked in both directions
+            RootNode root = provider.getRoot();
+            assertTuples(expected.descendingMap().entrySet().iterator(),
+                    root.descendingIterator());
+            
+            for (int i = 0; i < 2000; i += 7) {
+                String key = "Key-" + i;
+                TestCase.assertEquals(expected.get(key), tree.get(key));
+                
+                Entry<String, String> ceiling = expected.ceilingEntry(key);
+                Entry<String, String> entry = tree.ceilingEntry(key);
+                TestCase.assertEquals(ceiling != null ? ceiling.getKey() : null,
+                        entry != null ? entry.getKey() : null);
+                
+                assertEquals(expected.tailMap(key, false).entrySet().iterator(),
+                        tree.iterator(key, false));
+                
+                byte[] data = StringBinding.BINDING.objectToData(key);
+                assertTuples(expected.headMap(key, true)
+                            .descendingMap().entrySet().iterator(),
+                        root.descendingIterator(data, true));
+                assertTuples(expected.headMap(key, false)
+                            .descendingMap().entrySet().iterator(),
+                        root.descendingIterator(data, false));
+            }
+        }
+    }
+    
+    @Test
+    public void closest() {
+        for (boolean bplus : new boolean[] { false, true }) {
+            for (boolean concurrent : new boolean[] { false, true }) {
+                NodeProvider provider
+                    = new MemoryNodeProvider(2, concurrent, bplus);
+                BeeTree<String, String> tree
+                    = new BeeTree<String, String>(provider, binding);
+                
+                TreeMap<String, String> expected
+                    = new TreeMap<String, String>(comparator);
+                
+                Random random = new Random(0);
+                for (int i = 0; i < 5000; i++) {
+                    String key = "Key-" + random.nextInt(1000);
+                    if (random.nextInt(3) == 0) {
+                        expected.remove(key);
+                        tree.remove(key);
+                    } else {
+                        expected.put(key, "Value-" + i);
+                        tree.put(key, "Value-" + i);
+                    }
+                }
+                
+                for (int i = -1; i <= 1000; i++) {
+                    String key = "Key-" + i;
+                    assertKey(expected.ceilingEntry(key), tree.ceilingEntry(key));
+                    assertKey(expected.higherEntry(key), tree.higherEntry(key));
+                    assertKey(expected.floorEntry(key), tree.floorEntry(key));
+                    assertKey(expected.lowerEntry(key), tree.lowerEntry(key));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void raw() {
+        for (boolean bplus : new boolean[] { false, true }) {
+            for (boolean concurrent : new boolean[] { false, true }) {
+                NodeProvider provider
+                    = new MemoryNodeProvider(3, concurrent, bplus);
+                BeeTree<String, String> tree
+                    = new BeeTree<String, String>(provider, binding);
+                
+                for (int i = 0; i < 1000; i++) {
+                    tree.put("Key-" + i, "Value-" + i);
+                }
+                
+                ValueVisitor<Integer> length = new ValueVisitor<Integer>() {
+                    @Override
+                    public Integer visit(ByteBuffer value) {
+                        return value.remaining();
+                    }
+                };
+                
+                for (int i = 0; i < 1000; i++) {
+                    String key = "Key-" + i;
+                    byte[] expected = StringBinding.BINDING.objectToData(
+                            "Value-" + i);
+                    
+                    ByteBuffer value = tree.getRaw(key);
+                    TestCase.assertTrue(value.isReadOnly());
+                    TestCase.assertEquals(ByteBuffer.wrap(expected), value);
+                    
+                    TestCase.assertEquals(expected.length,
+                            tree.get(key, length).intValue());
+                }
+                
+                TestCase.assertNull(tree.getRaw("Key-1000"));
+                TestCase.assertNull(tree.get("Key-1000", length));
+            }
+        }
+    }
+    
+    private static void assertKey(Entry<String, String> expected,
+            Entry<String, String> actual) {
+        TestCase.assertEquals(expected != null ? expected.getKey() : null,
+                actual != null ? actual.getKey() : null);
+    }
+    
+    private static void assertTuples(Iterator<Entry<String, String>> expected,
+            Iterator<Tuple> actual) {
+        while (expected.hasNext()) {
+            Entry<String, String> entry = expected.next();
+            Tuple tuple = actual.next();
+            
+            TestCase.assertEquals(entry.getKey(),
+                    StringBinding.BINDING.dataToObject(tuple.getKey()));
+            TestCase.assertEquals(entry.getValue(),
+                    StringBinding.BINDING.dataToObject(tuple.getValue()));
+        }
+        TestCase.assertFalse(actual.hasNext());
+    }
+    
+    @Test
+    public void range() {
+        for (boolean bplus : new boolean[] { false, true }) {
+            NodeProvider provider = new MemoryNodeProvider(3, false, bplus);
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            TreeMap<String, String> expected
+                = new TreeMap<String, String>(comparator);
+            
+            for (int i = 0; i < 500; i += 2) {
+                String key = "Key-" + i;
+                expected.put(key, key);
+                tree.put(key, key);
+            }
+            
+            assertEquals(expected.descendingMap().entrySet().iterator(),
+                    tree.descendingIterator());
+            
+            Random random = new Random(0);
+            for (int i = 0; i < 500; i++) {
+                String from = "Key-" + random.nextInt(500);
+                String to = "Key-" + random.nextInt(500);
+                if (0 < comparator.compare(from, to)) {
+                    String tmp = from;
+                    from = to;
+                    to = tmp;
+                }
+                
+                boolean fromInclusive = random.nextBoolean();
+                boolean toInclusive = random.nextBoolean();
+                
+                assertEquals(expected.tailMap(from, fromInclusive)
+                            .entrySet().iterator(),
+                        tree.iterator(from, fromInclusive));
+                assertEquals(expected.headMap(to, toInclusive)
+                            .descendingMap().entrySet().iterator(),
+                        tree.descendingIterator(to, toInclusive));
+                
+                Map<String, String> subMap = expected.subMap(
+                        from, fromInclusive, to, toInclusive);
+                assertEquals(subMap.entrySet().iterator(),
+                        tree.range(from, fromInclusive, to, toInclusive));
+                
+                BeeTreeView<String, String> view = tree.subMap(
+                        from, fromInclusive, to, toInclusive);
+                TestCase.assertEquals(subMap.size(), view.size());
+                assertEquals(expected.subMap(from, fromInclusive,
+                            to, toInclusive).descendingMap()
+                                .entrySet().iterator(),
+                        view.descendingMap().iterator());
+                
+                TestCase.assertEquals(fromInclusive
+                        ? expected.get(from) : null, view.get(from));
+                TestCase.assertNull(tree.headMap(from, false).get(from));
+            }
+            
+            BeeTreeView<String, String> view
+                = tree.descendingMap().headMap("Key-100", true);
+            TestCase.assertEquals("Key-98", view.firstEntry().getKey());
+            TestCase.assertEquals("Key-100", view.lastEntry().getKey());
+            
+            try {
+                view.tailMap("Key-10", true);
+                TestCase.fail("Should have failed");
+            } catch (IllegalArgumentException err) {
+            }
+        }
+    }
+    
+    @Test
+    public void rank() {
+        for (boolean bplus : new boolean[] { false, true }) {
+            NodeProvider provider = new MemoryNodeProvider(2, false, bplus);
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            TreeMap<String, String> expected
+                = new TreeMap<String, String>(comparator);
+            
+            Random random = new Random(bplus ? 1 : 0);
+            for (int i = 0; i < 200; i++) {
+                
+                // The batches update the counts of the ancestors
+                // of a leaf at once.
+                Map<String, String> batch = new TreeMap<String, String>();
+                for (int j = 0; j < 20; j++) {
+                    String key = "Key-" + random.nextInt(1000);
+                    batch.put(key, key);
+                }
+                
+                if (random.nextInt(3) == 0) {
+                    expected.keySet().removeAll(batch.keySet());
+                    tree.removeAll(batch.keySet());
+                } else if (random.nextBoolean()) {
+                    expected.putAll(batch);
+                    tree.putAll(batch);
+                } else {
+                    for (String key : batch.keySet()) {
+                        TestCase.assertEquals(expected.put(key, key),
+                                tree.put(key, key));
+                    }
+                }
+                
+                TestCase.assertEquals(expected.size(), tree.size());
+                assertCounts(provider.getRoot().getRoot(), provider);
+            }
+            
+            List<String> keys = new ArrayList<String>(expected.keySet());
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                TestCase.assertEquals(key, tree.select(i).getKey());
+                TestCase.assertEquals(i, tree.rank(key));
+            }
+            
+            for (int i = 0; i < 1000; i += 7) {
+                String from = "Key-" + i;
+                String to = "Key-" + (i + random.nextInt(200));
+                if (0 < comparator.compare(from, to)) {
+                    String tmp = from;
+                    from = to;
+                    to = tmp;
+                }
+                
+                TestCase.assertEquals(expected.headMap(from).size(),
+                        tree.rank(from));
+                TestCase.assertEquals(expected.subMap(from, to).size(),
+                        tree.count(from, to));
+                TestCase.assertEquals(expected.subMap(from, false, to, true)
+                        .size(), tree.subMap(from, false, to, true).size());
+            }
+            
+            try {
+                tree.select(tree.size());
+                TestCase.fail("Should have failed");
+            } catch (IndexOutOfBoundsException err) {
+            }
+        }
+    }
+    
+    /**
+     * The count of every child is the size of its subtree.
+     */
+    private static void assertCounts(Node node, NodeProvider provider) {
+        for (int i = 0; i < node.getNodeCount(); i++) {
+            Node child = node.getNode(provider, i, Intent.READ);
+            TestCase.assertEquals(child.getSubtreeSize(), node.getCount(i));
+            assertCounts(child, provider);
+        }
+    }
+    
+    private static void assertEquals(Iterator<Entry<String, String>> expected,
+            Iterator<Entry<String, String>> actual) {
+        while (expected.hasNext()) {
+            Entry<String, String> entry = expected.next();
+            Entry<String, String> other = actual.next();
+            
+            TestCase.assertEquals(entry.getKey(), other.getKey());
+            TestCase.assertEquals(entry.getValue(), other.getValue());
+        }
+        TestCase.assertFalse(actual.hasNext());
+    }
+    
+    /**
+     * The internal Nodes of a B+-Tree hold no values.
+     */
+    private static void assertSeparators(Node node, NodeProvider provider) {
+        if (node.isLeaf()) {
+            return;
+        }
+        
+        for (int i = 0; i < node.getTupleCount(); i++) {
+            TestCase.assertEquals(0, node.getTuple(i).getValue().length);
+        }
+        
+        for (int i = 0; i < node.getNodeCount(); i++) {
+            assertSeparators(node.getNode(provider, i, Intent.READ), provider);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import junit.framework.TestCase;
+
+import org.ardverk.btree.NodeProvider.Intent;
+import org.junit.Test;
+
+public class BulkLoaderTest {
+    
+    private static final TupleBinding<String, String> binding
+        = DefaultTupleBinding.create(StringBinding.BINDING);
+    
+    private static String key(int index) {
+        return String.format("Key-%06d", index);
+    }
+    
+    private static List<Entry<String, String>> entries(int count) {
+        List<Entry<String, String>> entries
+            = new ArrayList<Entry<String, String>>();
+        for (int i = 0; i < count; i++) {
+            entries.add(new AbstractMap.SimpleEntry<String, String>(
+                    key(i), key(i)));
+        }
+        return entries;
+    }
+    
+    @Test
+    public void load() {
+        load(false);
+    }
+    
+    @Test
+    public void bplus() {
+        load(true);
+    }
+    
+    private static void load(boolean bplus) {
+        float[] fillFactors = { 0.1f, 0.5f, 0.75f, 1.0f };
+        int[] counts = { 0, 1, 2, 3, 7, 8, 9, 50, 63, 64, 65, 1000, 12345 };
+        
+        for (float fillFactor : fillFactors) {
+            for (int count : counts) {
+                NodeProvider provider = new MemoryNodeProvider(4, false, bplus);
+                BeeTree<String, String> tree
+                    = new BeeTree<String, String>(provider, binding);
+                
+                tree.load(entries(count).iterator(), fillFactor);
+                TestCase.assertEquals(count, tree.size());
+                
+                assertBalanced(provider.getRoot().getRoot(), provider);
+                TestCase.assertEquals(count,
+                        provider.getRoot().getRoot().getSubtreeSize());
+                
+                Iterator<Entry<String, String>> it = tree.iterator();
+                for (int i = 0; i < count; i++) {
+                    TestCase.assertEquals(key(i), it.next().getKey());
+                    TestCase.assertEquals(key(i), tree.get(key(i)));
+                }
+                TestCase.assertFalse(it.hasNext());
+                
+                if (bplus) {
+                    Iterator<Tuple> tuples
+                        = provider.getRoot().descendingIterator();
+                    for (int i = count - 1; i >= 0; i--) {
+                        TestCase.assertEquals(key(i), binding.keyToObject(
+                                tuples.next().getKey()));
+                    }
+                    TestCase.assertFalse(tuples.hasNext());
+                }
+                
+                // The tree must remain fully functional
+                tree.put(key(count), key(count));
+                for (int i = 0; i <= count; i++) {
+                    TestCase.assertEquals(key(i), tree.remove(key(i)));
+                }
+                TestCase.assertEquals(0, tree.size());
+            }
+        }
+    }
+    
+    @Test
+    public void packed() {
+        NodeProvider provider = new MemoryNodeProvider(16);
+        BulkLoader loader = new BulkLoader(provider);
+        
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            byte[] key = binding.objectToKey(key(i));
+            loader.add(key, key);
+        }
+        
+        RootNode root = loader.finish();
+        TestCase.assertEquals(count, root.size());
+        
+        // Packed leaves hold 2t-1 Tuples: 31 * 32^2 < count < 31 * 32^3
+        TestCase.assertEquals(3, root.getRoot().getHeight());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void unsorted() {
+        BulkLoader loader = new BulkLoader(new MemoryNodeProvider(4));
+        loader.add(new byte[] { 2 }, new byte[0]);
+        loader.add(new byte[] { 1 }, new byte[0]);
+    }
+    
+    private static int assertBalanced(Node node, NodeProvider provider) {
+        if (node.isLeaf()) {
+            return 0;
+        }
+        
+        int depth = -1;
+        for (int i = 0; i < node.getNodeCount(); i++) {
+            Node child = node.getNode(provider, i, Intent.READ);
+            TestCase.assertTrue(child.getTupleCount() >= 3);
+            TestCase.assertEquals(child.getSubtreeSize(), node.getCount(i));
+            
+            int d = assertBalanced(child, provider);
+            TestCase.assertTrue(depth == -1 || depth == d);
+            depth = d;
+        }
+        return depth + 1;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class ConcurrentRootNodeTest {
+    
+    private static final TupleBinding<String, String> binding
+        = DefaultTupleBinding.create(StringBinding.BINDING);
+    
+    private static final int THREADS = 8;
+    
+    private static final int COUNT = 5000;
+    
+    /**
+     * All keys have the same length and their natural order 
+     * is the order of the tree.
+     */
+    private static String key(int thread, int index) {
+        return String.format("Key-%d-%05d", thread, index);
+    }
+    
+    @Test
+    public void concurrent() throws Exception {
+        concurrent(false);
+    }
+    
+    @Test
+    public void bplus() throws Exception {
+        concurrent(true);
+    }
+    
+    private static void concurrent(boolean bplus) throws Exception {
+        NodeProvider provider = new MemoryNodeProvider(4, true, bplus);
+        final BeeTree<String, String> tree
+            = new BeeTree<String, String>(provider, binding);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < THREADS; i++) {
+                final int thread = i;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int j = 0; j < COUNT; j++) {
+                            String key = key(thread, j);
+                            TestCase.assertNull(tree.put(key, key));
+                            TestCase.assertEquals(key, tree.get(key));
+                        }
+                        
+                        // Remove every other Key-Value
+                        for (int j = 0; j < COUNT; j += 2) {
+                            String key = key(thread, j);
+                            TestCase.assertEquals(key, tree.remove(key));
+                            TestCase.assertNull(tree.get(key));
+                        }
+                        
+                        // And iterate while the others are still busy
+                        Iterator<Entry<String, String>> it = tree.iterator();
+                        String previous = null;
+                        while (it.hasNext()) {
+                            String key = it.next().getKey();
+                            if (previous != null) {
+                                TestCase.assertTrue(previous.compareTo(key) < 0);
+                            }
+                            previous = key;
+                        }
+                        
+                        it = tree.descendingIterator();
+                        previous = null;
+                        while (it.hasNext()) {
+                            String key = it.next().getKey();
+                            if (previous != null) {
+                                TestCase.assertTrue(previous.compareTo(key) > 0);
+                            }
+                            previous = key;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        TestCase.assertEquals(THREADS * COUNT / 2, tree.size());
+        
+        int count = 0;
+        for (Entry<String, String> entry : tree) {
+            TestCase.assertEquals(entry.getKey(), entry.getValue());
+            ++count;
+        }
+        TestCase.assertEquals(tree.size(), count);
+        
+        for (int i = 0; i < THREADS; i++) {
+            for (int j = 0; j < COUNT; j++) {
+                String key = key(i, j);
+                TestCase.assertEquals(j % 2 != 0, tree.contains(key));
+            }
+            
+            // A range stops at its upper bound
+            Iterator<Entry<String, String>> it = tree.range(
+                    key(i, 0), true, key(i, COUNT - 1), true);
+            for (int j = 1; j < COUNT; j += 2) {
+                TestCase.assertEquals(key(i, j), it.next().getKey());
+            }
+            TestCase.assertFalse(it.hasNext());
+            
+            TestCase.assertEquals(COUNT / 2,
+                    tree.count(key(i, 0), key(i, COUNT)));
+            TestCase.assertEquals(key(i, 1),
+                    tree.select(i * COUNT / 2).getKey());
+        }
+    }
+    
+    @Test
+    public void descendingIterator() {
+        for (boolean bplus : new boolean[] { false, true }) {
+            TreeMap<String, String> expected = new TreeMap<String, String>();
+            BeeTree<String, String> tree = create(bplus, expected);
+            
+            assertEquals(expected.descendingMap(), tree.descendingIterator());
+        }
+    }
+    
+    @Test
+    public void descendingIteratorFrom() {
+        for (boolean bplus : new boolean[] { false, true }) {
+            TreeMap<String, String> expected = new TreeMap<String, String>();
+            BeeTree<String, String> tree = create(bplus, expected);
+            
+            // Every other key exists
+            for (int i = -1; i <= COUNT; i += 7) {
+                String key = key(0, i);
+                for (boolean inclusive : new boolean[] { false, true }) {
+                    assertEquals(expected.headMap(key, inclusive).descendingMap(),
+                            tree.descendingIterator(key, inclusive));
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void descendingRange() {
+        for (boolean bplus : new boolean[] { false, true }) {
+            TreeMap<String, String> expected = new TreeMap<String, String>();
+            BeeTree<String, String> tree = create(bplus, expected);
+            
+            for (int i = 0; i <= COUNT; i += 97) {
+                String from = key(0, i + 250);
+                String to = key(0, i);
+                for (boolean inclusive : new boolean[] { false, true }) {
+                    assertEquals(expected.subMap(to, inclusive, from, inclusive)
+                                .descendingMap(),
+                            tree.range(from, inclusive, to, inclusive, true));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Creates a concurrent tree with every other key.
+     */
+    private static BeeTree<String, String> create(boolean bplus,
+            TreeMap<String, String> expected) {
+        NodeProvider provider = new MemoryNodeProvider(4, true, bplus);
+        BeeTree<String, String> tree
+            = new BeeTree<String, String>(provider, binding);
+        
+        for (int i = 1; i < COUNT; i += 2) {
+            String key = key(0, i);
+            tree.put(key, key);
+            expected.put(key, key);
+        }
+        
+        return tree;
+    }
+    
+    private static void assertEquals(NavigableMap<String, String> expected,
+            Iterator<Entry<String, String>> it) {
+        for (Entry<String, String> entry : expected.entrySet()) {
+            TestCase.assertEquals(entry.getKey(), it.next().getKey());
+        }
+        TestCase.assertFalse(it.hasNext());
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class FileNodeProviderTest {
+    
+    private static final TupleBinding<String, String> binding
+        = DefaultTupleBinding.create(StringBinding.BINDING);
+    
+    private static int touched(File directory) {
+        int count = 0;
+        for (File file : directory.listFiles()) {
+            if (file.lastModified() != 0L) {
+                ++count;
+            }
+        }
+        return count;
+    }
+    
+    private static void untouch(File directory) {
+        for (File file : directory.listFiles()) {
+            file.setLastModified(0L);
+        }
+    }
+    
+    /**
+     * Counts the files that are at least as large as the given size.
+     * The manifest isn't counted.
+     */
+    private static int larger(File directory, int size) {
+        int count = 0;
+        for (File file : directory.listFiles()) {
+            if (!file.getName().startsWith("manifest")
+                    && file.length() >= size) {
+                ++count;
+            }
+        }
+        return count;
+    }
+    
+    @Test
+    public void flushDirty() throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            int count = 5000;
+            
+            FileNodeProvider provider = new FileNodeProvider(directory, 4);
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                tree.put(key, key);
+            }
+            
+            provider.flush();
+            untouch(directory);
+            
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                TestCase.assertEquals(key, tree.get(key));
+            }
+            
+            provider.flush();
+            TestCase.assertEquals(0, touched(directory));
+            
+            tree.put("Key-0", "Value-0");
+            provider.flush();
+            
+            int touched = touched(directory);
+            TestCase.assertTrue(0 < touched && touched < 16);
+            
+            provider.close();
+            
+            provider = new FileNodeProvider(directory, 4);
+            tree = new BeeTree<String, String>(provider, binding);
+            
+            TestCase.assertEquals(count, tree.size());
+            TestCase.assertEquals("Value-0", tree.get("Key-0"));
+            
+            provider.close();
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+    
+    @Test
+    public void crash() throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            int count = 5000;
+            
+            FileNodeProvider provider = new FileNodeProvider(
+                    directory, 4, new LruNodeCache(32));
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                tree.put(key, key);
+            }
+            
+            provider.flush();
+            int files = directory.listFiles().length;
+            
+            // Evictions write the next generation of the Nodes 
+            // but the checkpoint never happens.
+            for (int i = 0; i < count; i += 2) {
+                tree.remove("Key-" + i);
+            }
+            
+            for (int i = count; i < 2*count; i++) {
+                String key = "Key-" + i;
+                tree.put(key, key);
+            }
+            
+            provider = new FileNodeProvider(directory, 4);
+            tree = new BeeTree<String, String>(provider, binding);
+            
+            TestCase.assertEquals(files, directory.listFiles().length);
+            TestCase.assertEquals(count, tree.size());
+            
+            for (int i = 0; i < 2*count; i++) {
+                String key = "Key-" + i;
+                String expected = (i < count ? key : null);
+                TestCase.assertEquals(expected, tree.get(key));
+            }
+            
+            provider.close();
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+    
+    @Test
+    public void bplus() throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            int count = 5000;
+            
+            // The keys are in the order of their numbers
+            FileNodeProvider provider = new FileNodeProvider(directory, 4,
+                    new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                    null, true, KeyComparator.LENGTH_FIRST);
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                tree.put(key, key);
+            }
+            
+            for (int i = 0; i < count; i += 2) {
+                tree.remove("Key-" + i);
+            }
+            
+            provider.close();
+            
+            try {
+                new FileNodeProvider(directory, 4);
+                TestCase.fail("Should have failed");
+            } catch (IllegalArgumentException expected) {
+            }
+            
+            provider = new FileNodeProvider(directory, 4,
+                    new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                    null, true, KeyComparator.LENGTH_FIRST);
+            tree = new BeeTree<String, String>(provider, binding);
+            
+            TestCase.assertEquals(count / 2, tree.size());
+            
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                String expected = (i % 2 != 0 ? key : null);
+                TestCase.assertEquals(expected, tree.get(key));
+            }
+            
+            // The counts survive the reload
+            TestCase.assertEquals("Key-" + 99, tree.select(49).getKey());
+            TestCase.assertEquals(50, tree.rank("Key-" + 100));
+            
+            // The chain of leaves survives the reload
+            Iterator<Tuple> it = provider.getRoot().descendingIterator();
+            for (int i = count - 1; i > 0; i -= 2) {
+                TestCase.assertEquals("Key-" + i, StringBinding.BINDING
+                        .dataToObject(it.next().getKey()));
+            }
+            TestCase.assertFalse(it.hasNext());
+            
+            provider.close();
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+    
+    @Test
+    public void version() throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            // The "0" file of a directory from before version 7
+            // starts with the size of the tree
+            RandomAccessFile raf = new RandomAccessFile(
+                    new File(directory, "0"), "rw");
+            try {
+                raf.writeInt(100);
+                raf.writeLong(1L);
+            } finally {
+                raf.close();
+            }
+            
+            try {
+                new FileNodeProvider(directory, 4);
+                TestCase.fail("Should have failed");
+            } catch (IllegalStateException expected) {
+            }
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+    
+    @Test
+    public void order() throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            FileNodeProvider provider = new FileNodeProvider(directory, 4,
+                    new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                    null, false, KeyComparator.LENGTH_FIRST);
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            for (int i = 0; i < 100; i++) {
+                String key = "Key-" + i;
+                tree.put(key, key);
+            }
+            
+            provider.close();
+            
+            // The keys would be searched in the wrong order
+            try {
+                new FileNodeProvider(directory, 4);
+                TestCase.fail("Should have failed");
+            } catch (IllegalArgumentException expected) {
+            }
+            
+            provider = new FileNodeProvider(directory, 4,
+                    new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                    null, false, KeyComparator.LENGTH_FIRST);
+            tree = new BeeTree<String, String>(provider, binding);
+            
+            for (int i = 0; i < 100; i++) {
+                String key = "Key-" + i;
+                TestCase.assertEquals(key, tree.get(key));
+            }
+            
+            provider.close();
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+    
+    @Test
+    public void blobs() throws IOException {
+        char[] data = new char[1000];
+        Arrays.fill(data, 'x');
+        String large = new String(data);
+        
+        for (boolean bplus : new boolean[] { false, true }) {
+            File directory = TestUtils.createDirectory();
+            try {
+                int count = 1000;
+                
+                FileNodeProvider provider = new FileNodeProvider(directory, 4,
+                        new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                        null, bplus, KeyComparator.LEXICOGRAPHIC, 100);
+                BeeTree<String, String> tree
+                    = new BeeTree<String, String>(provider, binding);
+                
+                for (int i = 0; i < count; i++) {
+                    String key = "Key-" + i;
+                    tree.put(key, i % 10 == 0 ? key + large : key);
+                }
+                
+                provider.flush();
+                TestCase.assertEquals(count / 10, larger(directory, 1000));
+                
+                // Replace and remove some of the large values
+                for (int i = 0; i < count; i += 20) {
+                    String key = "Key-" + i;
+                    TestCase.assertEquals(key + large, tree.put(key, key));
+                }
+                
+                for (int i = 10; i < count; i += 40) {
+                    String key = "Key-" + i;
+                    TestCase.assertEquals(key + large, tree.remove(key));
+                }
+                
+                provider.close();
+                
+                // Only the blobs of the remaining large values are
+                // left and all Nodes are smaller than one value
+                TestCase.assertEquals(count / 40, larger(directory, 1000));
+                
+                provider = new FileNodeProvider(directory, 4,
+                        new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                        null, bplus, KeyComparator.LEXICOGRAPHIC, 100);
+                tree = new BeeTree<String, String>(provider, binding);
+                
+                TestCase.assertEquals(count - count / 40, tree.size());
+                
+                for (int i = 0; i < count; i++) {
+                    String key = "Key-" + i;
+                    
+                    String expected = key;
+                    if (i % 40 == 10) {
+                        expected = null;
+                    } else if (i % 20 == 10) {
+                        expected = key + large;
+                    }
+                    
+                    TestCase.assertEquals(expected, tree.get(key));
+                }
+                
+                // The value is read when it's requested
+                Tuple tuple = provider.getRoot().get(
+                        StringBinding.BINDING.objectToData("Key-30"));
+                TestCase.assertTrue(tuple instanceof BlobTuple);
+                TestCase.assertEquals("Key-30" + large,
+                        StringBinding.BINDING.dataToObject(tuple.getValue()));
+                
+                provider.close();
+            } finally {
+                TestUtils.delete(directory);
+            }
+        }
+    }
+    
+    @Test
+    public void verify() throws IOException {
+        for (boolean bplus : new boolean[] { false, true }) {
+            File directory = TestUtils.createDirectory();
+            try {
+                int count = 2000;
+                
+                FileNodeProvider provider = new FileNodeProvider(directory, 4,
+                        new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                        null, bplus);
+                BeeTree<String, String> tree
+                    = new BeeTree<String, String>(provider, binding);
+                
+                TestCase.assertEquals(0, provider.verify());
+                
+                for (int i = 0; i < count; i++) {
+                    String key = "Key-" + i;
+                    tree.put(key, key);
+                }
+                
+                for (int i = 0; i < count; i += 3) {
+                    tree.remove("Key-" + i);
+                }
+                
+                provider.flush();
+                TestCase.assertTrue(100 < provider.verify());
+                
+                String rootId = provider.getRoot().getId().toString();
+                provider.close();
+                
+                // Flip a bit in a Node that isn't the root
+                File corrupt = null;
+                for (File file : directory.listFiles()) {
+                    String name = file.getName();
+                    if (Character.isDigit(name.charAt(0))
+                            && name.indexOf('.') != -1
+                            && !name.startsWith(rootId + ".")) {
+                        corrupt = file;
+                        break;
+                    }
+                }
+                
+                RandomAccessFile raf = new RandomAccessFile(corrupt, "rw");
+                try {
+                    raf.seek(raf.length() / 2);
+                    int value = raf.read();
+                    raf.seek(raf.length() / 2);
+                    raf.write(value ^ 0x10);
+                } finally {
+                    raf.close();
+                }
+                
+                provider = new FileNodeProvider(directory, 4,
+                        new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                        null, bplus);
+                
+                try {
+                    provider.verify();
+                    TestCase.fail("Should have failed");
+                } catch (IllegalStateException expected) {
+                }
+                
+                provider.close();
+            } finally {
+                TestUtils.delete(directory);
+            }
+        }
+    }
+    
+    @Test
+    public void nodeIds() throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            int count = 1000;
+            
+            // The NodeIds that are issued after a reload must
+            // not be the same as the ones that are on disk.
+            for (int j = 0; j < 3; j++) {
+                FileNodeProvider provider = new FileNodeProvider(
+                        directory, 4, new LruNodeCache(32));
+                BeeTree<String, String> tree
+                    = new BeeTree<String, String>(provider, binding);
+                
+                TestCase.assertEquals(j * count, tree.size());
+                
+                for (int i = 0; i < j * count; i++) {
+                    String key = "Key-" + i;
+                    TestCase.assertEquals(key, tree.get(key));
+                }
+                
+                for (int i = j * count; i < (j + 1) * count; i++) {
+                    String key = "Key-" + i;
+                    tree.put(key, key);
+                }
+                
+                provider.close();
+            }
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+    
+    @Test
+    public void prefetch() throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            int count = 5000;
+            
+            for (boolean bplus : new boolean[] { false, true }) {
+                // The keys are in the order of their numbers
+                FileNodeProvider provider = new FileNodeProvider(directory, 4,
+                        new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                        null, bplus, KeyComparator.LENGTH_FIRST);
+                BeeTree<String, String> tree
+                    = new BeeTree<String, String>(provider, binding);
+                
+                for (int i = 0; i < count; i++) {
+                    String key = "Key-" + i;
+                    tree.put(key, key);
+                }
+                
+                provider.flush();
+                provider.setPrefetchWindow(4);
+                TestCase.assertEquals(4, provider.getPrefetchWindow());
+                
+                Iterator<Entry<String, String>> it = tree.iterator();
+                for (int i = 0; i < count; i++) {
+                    TestCase.assertEquals("Key-" + i, it.next().getValue());
+                }
+                TestCase.assertFalse(it.hasNext());
+                
+                // The prefetched files of the Nodes that were written
+                // since are out of date
+                for (int i = 0; i < count; i += 3) {
+                    String key = "Key-" + i;
+                    tree.put(key, "Value-" + i);
+                }
+                
+                it = tree.descendingIterator("Key-" + (count - 1000), true);
+                for (int i = count - 1000; i >= 0; i--) {
+                    String expected = (i % 3 == 0 ? "Value-" : "Key-") + i;
+                    TestCase.assertEquals(expected, it.next().getValue());
+                }
+                TestCase.assertFalse(it.hasNext());
+                
+                provider.setPrefetchWindow(0);
+                provider.close();
+                TestUtils.delete(directory);
+            }
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+}
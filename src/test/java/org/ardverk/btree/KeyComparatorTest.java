@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class KeyComparatorTest {
+    
+    private static final TupleBinding<String, String> binding
+        = DefaultTupleBinding.create(StringBinding.BINDING);
+    
+    /**
+     * Compares one byte at a time.
+     */
+    private static int lexicographic(byte[] b1, byte[] b2) {
+        int length = Math.min(b1.length, b2.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return b1.length - b2.length;
+    }
+    
+    private static byte[] random(Random random) {
+        byte[] key = new byte[random.nextInt(20)];
+        random.nextBytes(key);
+        
+        // Most keys share a prefix of varying length
+        int length = Math.min(key.length, random.nextInt(20));
+        for (int i = 0; i < length; i++) {
+            key[i] = (byte)0x80;
+        }
+        return key;
+    }
+    
+    @Test
+    public void lexicographic() {
+        KeyComparator comparator = KeyComparator.LEXICOGRAPHIC;
+        
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            byte[] b1 = random(random);
+            byte[] b2 = random(random);
+            
+            int expected = Integer.signum(lexicographic(b1, b2));
+            TestCase.assertEquals(expected,
+                    Integer.signum(comparator.compare(b1, b2)));
+            
+            // The first bytes of the other key are the prefix
+            int length = random.nextInt(b2.length + 1);
+            byte[] prefix = Arrays.copyOf(b2, length);
+            TestCase.assertEquals(expected, Integer.signum(comparator.compare(
+                    b1, prefix, b2, length, b2.length - length)));
+            
+            int diff = comparator.compare(b1, b2);
+            if (diff != 0) {
+                byte[] left = diff < 0 ? b1 : b2;
+                byte[] right = diff < 0 ? b2 : b1;
+                
+                byte[] separator = comparator.separator(left, right);
+                TestCase.assertTrue(comparator.compare(left, separator) < 0);
+                TestCase.assertTrue(comparator.compare(separator, right) <= 0);
+                TestCase.assertTrue(separator.length <= right.length);
+            }
+        }
+        
+        // Shorter keys don't come first
+        TestCase.assertTrue(comparator.compare(
+                new byte[] { 'b' }, new byte[] { 'a', 'a' }) > 0);
+        TestCase.assertTrue(KeyComparator.LENGTH_FIRST.compare(
+                new byte[] { 'b' }, new byte[] { 'a', 'a' }) < 0);
+    }
+    
+    @Test
+    public void prefix() {
+        for (boolean bplus : new boolean[] { false, true }) {
+            BeeTree<String, String> tree = new BeeTree<String, String>(
+                    new MemoryNodeProvider(4, false, bplus), binding);
+            
+            for (int i = 0; i < 1000; i++) {
+                tree.put("Key-" + i, "Value-" + i);
+            }
+            
+            // All keys that start with "Key-1"
+            Iterator<Entry<String, String>> it
+                = tree.range("Key-1", true, "Key-2", false);
+            TestCase.assertEquals("Key-1", it.next().getKey());
+            TestCase.assertEquals("Key-10", it.next().getKey());
+            TestCase.assertEquals("Key-100", it.next().getKey());
+            
+            TestCase.assertEquals(111, tree.count("Key-1", "Key-2"));
+        }
+    }
+    
+    @Test
+    public void custom() {
+        KeyComparator reverse = new KeyComparator() {
+            @Override
+            public int compare(byte[] b1, int offset1, int length1,
+                    byte[] b2, int offset2, int length2) {
+                return KeyComparator.LEXICOGRAPHIC.compare(
+                        b2, offset2, length2, b1, offset1, length1);
+            }
+        };
+        
+        for (boolean bplus : new boolean[] { false, true }) {
+            BeeTree<String, String> tree = new BeeTree<String, String>(
+                    new MemoryNodeProvider(2, false, bplus, reverse), binding);
+            
+            for (int i = 0; i < 1000; i++) {
+                tree.put(String.format("Key-%03d", i), "Value-" + i);
+            }
+            
+            Iterator<Entry<String, String>> it = tree.iterator();
+            for (int i = 999; i >= 0; i--) {
+                Entry<String, String> entry = it.next();
+                TestCase.assertEquals(String.format("Key-%03d", i),
+                        entry.getKey());
+                TestCase.assertEquals("Value-" + i, entry.getValue());
+            }
+            TestCase.assertFalse(it.hasNext());
+            
+            for (int i = 0; i < 1000; i += 2) {
+                tree.remove(String.format("Key-%03d", i));
+            }
+            TestCase.assertEquals("Key-997",
+                    tree.ceilingEntry("Key-998").getKey());
+        }
+    }
+}
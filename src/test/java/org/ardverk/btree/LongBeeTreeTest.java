@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class LongBeeTreeTest {
+    
+    @Test
+    public void binding() {
+        long[] values = { Long.MIN_VALUE, -1L, 0L, 1L, 255L, Long.MAX_VALUE };
+        for (int i = 0; i < values.length; i++) {
+            byte[] data = LongBinding.toBytes(values[i]);
+            TestCase.assertEquals(values[i], LongBinding.toLong(data));
+            
+            // The bytes are in the same order as the longs
+            if (0 < i) {
+                TestCase.assertTrue(KeyComparator.LEXICOGRAPHIC.compare(
+                        LongBinding.toBytes(values[i-1]), data) < 0);
+            }
+        }
+    }
+    
+    @Test
+    public void putGetRemove() {
+        for (boolean bplus : new boolean[] { false, true }) {
+            NodeProvider provider = new MemoryNodeProvider(
+                    3, false, bplus, KeyComparator.LONG);
+            LongBeeTree<String> tree = new LongBeeTree<String>(
+                    provider, StringBinding.BINDING);
+            
+            TreeMap<Long, String> expected = new TreeMap<Long, String>();
+            
+            Random random = new Random(0);
+            for (int i = 0; i < 20000; i++) {
+                long key = random.nextInt(2000) - 1000L;
+                
+                if (random.nextInt(3) == 0) {
+                    TestCase.assertEquals(expected.remove(key), tree.remove(key));
+                } else {
+                    String value = "Value-" + i;
+                    TestCase.assertEquals(expected.put(key, value),
+                            tree.put(key, value));
+                }
+            }
+            
+            TestCase.assertEquals(expected.size(), tree.size());
+            
+            for (long key = -1000L; key < 1000L; key++) {
+                TestCase.assertEquals(expected.get(key), tree.get(key));
+                TestCase.assertEquals(expected.containsKey(key),
+                        tree.containsKey(key));
+            }
+            
+            Iterator<Entry<Long, String>> it = tree.iterator();
+            for (Entry<Long, String> entry : expected.entrySet()) {
+                Entry<Long, String> actual = it.next();
+                TestCase.assertEquals(entry.getKey(), actual.getKey());
+                TestCase.assertEquals(entry.getValue(), actual.getValue());
+            }
+            TestCase.assertFalse(it.hasNext());
+        }
+    }
+    
+    @Test
+    public void file() throws IOException {
+        File directory = TestUtils.createDirectory();
+        
+        try {
+            for (boolean bplus : new boolean[] { false, true }) {
+                FileNodeProvider provider = new FileNodeProvider(directory, 4,
+                        new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                        null, bplus, KeyComparator.LONG);
+                LongBeeTree<String> tree = new LongBeeTree<String>(
+                        provider, StringBinding.BINDING);
+                
+                for (long key = 0L; key < 1000L; key++) {
+                    tree.put(key * 31L, "Value-" + key);
+                }
+                
+                provider.close();
+                
+                provider = new FileNodeProvider(directory, 4,
+                        new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                        null, bplus, KeyComparator.LONG);
+                tree = new LongBeeTree<String>(provider, StringBinding.BINDING);
+                
+                TestCase.assertEquals(1000, tree.size());
+                for (long key = 0L; key < 1000L; key++) {
+                    TestCase.assertEquals("Value-" + key, tree.get(key * 31L));
+                    TestCase.assertNull(tree.get(key * 31L + 1L));
+                }
+                
+                provider.close();
+                TestUtils.delete(directory);
+            }
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+    
+    @Test
+    public void blobs() throws IOException {
+        File directory = TestUtils.createDirectory();
+        
+        try {
+            FileNodeProvider provider = new FileNodeProvider(directory, 4,
+                    new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                    null, false, KeyComparator.LONG, 8);
+            LongBeeTree<String> tree = new LongBeeTree<String>(
+                    provider, StringBinding.BINDING);
+            
+            // The values of the keys from 100 on are in blob files
+            for (long key = 0L; key < 1000L; key++) {
+                tree.put(key, "Value-" + key);
+            }
+            
+            provider.flush();
+            
+            for (long key = 0L; key < 1000L; key += 2L) {
+                TestCase.assertEquals("Value-" + key,
+                        tree.put(key, "V-" + key));
+            }
+            
+            provider.close();
+            
+            provider = new FileNodeProvider(directory, 4,
+                    new LruNodeCache(32), FileNodeProvider.DEFAULT_PINNED_LEVELS,
+                    null, false, KeyComparator.LONG, 8);
+            tree = new LongBeeTree<String>(provider, StringBinding.BINDING);
+            
+            for (long key = 0L; key < 1000L; key++) {
+                String expected = (key % 2L == 0L ? "V-" : "Value-") + key;
+                TestCase.assertEquals(expected, tree.get(key));
+            }
+            
+            provider.close();
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class NodeCacheTest {
+    
+    private static final TupleBinding<String, String> binding
+        = DefaultTupleBinding.create(StringBinding.BINDING);
+    
+    @Test
+    public void lru() throws IOException {
+        evict(new LruNodeCache(64));
+    }
+    
+    @Test
+    public void clock() throws IOException {
+        evict(new ClockNodeCache(64));
+    }
+    
+    @Test
+    public void twoQueue() throws IOException {
+        evict(new TwoQueueNodeCache(64));
+    }
+    
+    @Test
+    public void bytes() throws IOException {
+        evict(new LruNodeCache(16 * 1024, NodeCache.BYTES));
+    }
+    
+    /**
+     * The value of a {@link BlobTuple} is read only when it's needed
+     * and not to weigh the {@link Node}.
+     */
+    @Test
+    public void blobs() {
+        Node node = new Node(new NodeId() {}, 0, 4, false, KeyComparator.LONG);
+        
+        LongBucket tuples = (LongBucket)node.getTuples();
+        tuples.setBlobStore(new BlobStore() {
+            @Override
+            public byte[] read(byte[] reference) {
+                throw new IllegalStateException("Read the blob");
+            }
+        });
+        
+        for (long key = 0L; key < 3L; key++) {
+            tuples.add((int)key, new BlobTuple(LongBinding.toBytes(key),
+                    LongBinding.toBytes(key), null));
+        }
+        
+        // The keys and the references are 8 bytes each
+        TestCase.assertEquals(64 + 3 * (48 + 8 + 8),
+                NodeCache.BYTES.weigh(node));
+    }
+    
+    private static void evict(NodeCache cache) throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            int count = 5000;
+            
+            FileNodeProvider provider
+                = new FileNodeProvider(directory, 4, cache);
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                tree.put(key, key);
+            }
+            
+            for (int i = 0; i < count; i += 2) {
+                String key = "Key-" + i;
+                TestCase.assertEquals(key, tree.remove(key));
+            }
+            
+            TestCase.assertTrue(cache.getWeight() <= cache.getCapacity());
+            
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                String expected = (i % 2 == 0 ? null : key);
+                TestCase.assertEquals(expected, tree.get(key));
+            }
+            
+            provider.close();
+            
+            provider = new FileNodeProvider(directory, 4);
+            tree = new BeeTree<String, String>(provider, binding);
+            
+            TestCase.assertEquals(count/2, tree.size());
+            for (int i = 1; i < count; i += 2) {
+                String key = "Key-" + i;
+                TestCase.assertEquals(key, tree.get(key));
+            }
+            
+            provider.close();
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class PageFileNodeProviderTest {
+    
+    private static final TupleBinding<String, String> binding
+        = DefaultTupleBinding.create(StringBinding.BINDING);
+    
+    private static File createFile() throws IOException {
+        File file = File.createTempFile("bee-tree-", ".pages");
+        file.delete();
+        file.deleteOnExit();
+        return file;
+    }
+    
+    @Test
+    public void reopen() throws IOException {
+        File file = createFile();
+        
+        int count = 10000;
+        
+        PageFileNodeProvider provider = new PageFileNodeProvider(file, 16, 512);
+        BeeTree<String, String> tree
+            = new BeeTree<String, String>(provider, binding);
+        
+        for (int i = 0; i < count; i++) {
+            String key = "Key-" + i;
+            tree.put(key, key);
+        }
+        
+        provider.close();
+        
+        provider = new PageFileNodeProvider(file, 16);
+        tree = new BeeTree<String, String>(provider, binding);
+        
+        TestCase.assertEquals(512, provider.getPageSize());
+        TestCase.assertEquals(count, tree.size());
+        
+        for (int i = 0; i < count; i++) {
+            String key = "Key-" + i;
+            TestCase.assertEquals(key, tree.get(key));
+        }
+        
+        provider.close();
+    }
+    
+    @Test
+    public void freePages() throws IOException {
+        File file = createFile();
+        
+        int count = 10000;
+        
+        PageFileNodeProvider provider = new PageFileNodeProvider(file, 16, 512);
+        BeeTree<String, String> tree
+            = new BeeTree<String, String>(provider, binding);
+        
+        for (int i = 0; i < count; i++) {
+            String key = "Key-" + i;
+            tree.put(key, key);
+        }
+        
+        provider.flush();
+        long pageCount = provider.getPageCount();
+        
+        for (int i = 0; i < count; i++) {
+            String key = "Key-" + i;
+            TestCase.assertEquals(key, tree.remove(key));
+        }
+        
+        provider.flush();
+        TestCase.assertTrue(0 < provider.getFreePageCount());
+        
+        for (int i = 0; i < count; i++) {
+            String key = "Key-" + i;
+            tree.put(key, key);
+        }
+        
+        provider.close();
+        
+        provider = new PageFileNodeProvider(file, 16);
+        tree = new BeeTree<String, String>(provider, binding);
+        
+        TestCase.assertEquals(count, tree.size());
+        TestCase.assertTrue(provider.getPageCount() <= 2*pageCount);
+        
+        for (int i = 0; i < count; i++) {
+            String key = "Key-" + i;
+            TestCase.assertEquals(key, tree.get(key));
+        }
+        
+        provider.close();
+    }
+    
+    @Test
+    public void continuationPages() throws IOException {
+        File file = createFile();
+        
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append(i);
+        }
+        String value = sb.toString();
+        
+        PageFileNodeProvider provider = new PageFileNodeProvider(file, 4, 128);
+        BeeTree<String, String> tree
+            = new BeeTree<String, String>(provider, binding);
+        
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            tree.put("Key-" + i, value);
+        }
+        
+        provider.close();
+        
+        provider = new PageFileNodeProvider(file, 4);
+        tree = new BeeTree<String, String>(provider, binding);
+        
+        for (int i = 0; i < count; i++) {
+            TestCase.assertEquals(value, tree.get("Key-" + i));
+        }
+        
+        provider.close();
+    }
+    
+    @Test
+    public void bplus() throws IOException {
+        File file = createFile();
+        
+        int count = 10000;
+        
+        // The keys are in the order of their numbers
+        PageFileNodeProvider provider
+            = new PageFileNodeProvider(file, 16, 512, true,
+                    KeyComparator.LENGTH_FIRST);
+        BeeTree<String, String> tree
+            = new BeeTree<String, String>(provider, binding);
+        
+        for (int i = 0; i < count; i++) {
+            String key = "Key-" + i;
+            tree.put(key, key);
+        }
+        
+        provider.close();
+        long pageCount = provider.getPageCount();
+        
+        try {
+            new PageFileNodeProvider(file, 16);
+            TestCase.fail("Should have failed");
+        } catch (IllegalArgumentException expected) {
+        }
+        
+        provider = new PageFileNodeProvider(file, 16, 512, true,
+                KeyComparator.LENGTH_FIRST);
+        tree = new BeeTree<String, String>(provider, binding);
+        
+        TestCase.assertEquals(pageCount, provider.getPageCount());
+        TestCase.assertEquals(count, tree.size());
+        
+        for (int i = 0; i < count; i++) {
+            String key = "Key-" + i;
+            TestCase.assertEquals(key, tree.get(key));
+        }
+        
+        // The chain of leaves survives the reload
+        Iterator<Tuple> it = provider.getRoot().descendingIterator();
+        for (int i = count - 1; i >= 0; i--) {
+            TestCase.assertEquals("Key-" + i, StringBinding.BINDING
+                    .dataToObject(it.next().getKey()));
+        }
+        TestCase.assertFalse(it.hasNext());
+        
+        provider.close();
+    }
+    
+    @Test
+    public void order() throws IOException {
+        File file = createFile();
+        
+        PageFileNodeProvider provider = new PageFileNodeProvider(
+                file, 16, 512, false, KeyComparator.LENGTH_FIRST);
+        BeeTree<String, String> tree
+            = new BeeTree<String, String>(provider, binding);
+        
+        for (int i = 0; i < 100; i++) {
+            String key = "Key-" + i;
+            tree.put(key, key);
+        }
+        
+        provider.close();
+        
+        // The keys would be searched in the wrong order
+        try {
+            new PageFileNodeProvider(file, 16);
+            TestCase.fail("Should have failed");
+        } catch (IllegalArgumentException expected) {
+        }
+        
+        provider = new PageFileNodeProvider(
+                file, 16, 512, false, KeyComparator.LENGTH_FIRST);
+        tree = new BeeTree<String, String>(provider, binding);
+        
+        for (int i = 0; i < 100; i++) {
+            String key = "Key-" + i;
+            TestCase.assertEquals(key, tree.get(key));
+        }
+        
+        provider.close();
+    }
+}
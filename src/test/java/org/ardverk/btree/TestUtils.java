@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The temporary directories of the tests that store their 
+ * {@link Node}s in files.
+ */
+class TestUtils {
+    
+    private TestUtils() {}
+    
+    /**
+     * Creates and returns an empty temporary directory.
+     */
+    public static File createDirectory() throws IOException {
+        File directory = File.createTempFile("bee-tree-", ".nodes");
+        directory.delete();
+        directory.mkdirs();
+        return directory;
+    }
+    
+    /**
+     * Deletes the given directory and the files in it.
+     */
+    public static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+public class TupleBucketTest {
+    
+    private static byte[] bytes(String value) {
+        return StringBinding.BINDING.objectToData(value);
+    }
+    
+    private static String string(byte[] value) {
+        return StringBinding.BINDING.dataToObject(value);
+    }
+    
+    @Test
+    public void addSetRemove() {
+        TupleBucket bucket = new TupleBucket(64);
+        
+        for (int i = 0; i < 64; i++) {
+            String key = String.format("Key-%02d", i);
+            int index = bucket.binarySearch(bytes(key));
+            TestCase.assertEquals(-i - 1, index);
+            
+            bucket.add(-index - 1, new Tuple(bytes(key), bytes("Value-" + i)));
+        }
+        
+        TestCase.assertTrue(bucket.isOverflow());
+        
+        // Replace and remove enough records to compact the page
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            int index = random.nextInt(64);
+            String key = String.format("Key-%02d", index);
+            
+            Tuple existing = bucket.set(index,
+                    new Tuple(bytes(key), bytes("Value-" + i)));
+            TestCase.assertEquals(key, string(existing.getKey()));
+            TestCase.assertEquals(index, bucket.binarySearch(bytes(key)));
+        }
+        
+        TestCase.assertTrue(bucket.getPageSize() < 4 * 64 * 32);
+        
+        while (!bucket.isEmpty()) {
+            Tuple first = bucket.getFirst();
+            TestCase.assertEquals(0, bucket.binarySearch(first.getKey()));
+            
+            Tuple removed = bucket.removeFirst();
+            TestCase.assertEquals(string(first.getKey()),
+                    string(removed.getKey()));
+            TestCase.assertEquals(string(first.getValue()),
+                    string(removed.getValue()));
+        }
+        
+        TestCase.assertNull(bucket.get(0));
+    }
+    
+    @Test
+    public void addAll() {
+        TupleBucket a = new TupleBucket(6);
+        a.add(new Tuple(bytes("a"), bytes("1")));
+        a.add(new Tuple(bytes("b"), bytes("2")));
+        
+        TupleBucket b = new TupleBucket(3);
+        b.add(new Tuple(bytes("c"), bytes("3")));
+        b.add(new Tuple(bytes("d"), bytes("4")));
+        
+        a.addAll(b);
+        a.addAll(0, b);
+        
+        TestCase.assertEquals(6, a.size());
+        TestCase.assertEquals("c", string(a.get(0).getKey()));
+        TestCase.assertEquals("b", string(a.get(3).getKey()));
+        TestCase.assertEquals("4", string(a.getLast().getValue()));
+    }
+    
+    @Test
+    public void prefix() {
+        TupleBucket bucket = new TupleBucket(8);
+        bucket.add(new Tuple(bytes("Key-01"), bytes("a")));
+        bucket.add(new Tuple(bytes("Key-02"), bytes("b")));
+        TestCase.assertEquals("Key-0", string(bucket.getPrefix()));
+        
+        bucket.add(new Tuple(bytes("Kez-03"), bytes("c")));
+        TestCase.assertEquals("Ke", string(bucket.getPrefix()));
+        TestCase.assertEquals(2, bucket.binarySearch(bytes("Kez-03")));
+        TestCase.assertEquals(-3, bucket.binarySearch(bytes("Key-03")));
+        TestCase.assertEquals(-1, bucket.binarySearch(bytes("Ke")));
+        TestCase.assertEquals(-1, bucket.binarySearch(bytes("Key-0000")));
+        TestCase.assertEquals(-4, bucket.binarySearch(bytes("Key-0000"),
+                KeyComparator.LENGTH_FIRST));
+        
+        // The keys are complete again
+        TestCase.assertEquals("Key-02", string(bucket.get(1).getKey()));
+        TestCase.assertEquals("Kez-03", string(bucket.getLast().getKey()));
+        
+        // The prefix is counted once
+        TupleBucket copy = new TupleBucket(8);
+        copy.addAll(bucket);
+        copy.removeLast();
+        copy.add(new Tuple(bytes("Key-03"), bytes("d")));
+        TestCase.assertEquals("Key-03", string(copy.getLast().getKey()));
+        TestCase.assertEquals(2 + 3 * (4 + 1), copy.getByteSize());
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2011 Roger Kapsi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ardverk.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.ardverk.btree.WriteAheadLog.SyncPolicy;
+import org.junit.Test;
+
+public class WriteAheadLogTest {
+    
+    private static final TupleBinding<String, String> binding
+        = DefaultTupleBinding.create(StringBinding.BINDING);
+    
+    private static final SyncPolicy GROUP
+        = SyncPolicy.group(100, 10L, TimeUnit.MILLISECONDS);
+    
+    private static FileNodeProvider open(File directory) {
+        return new FileNodeProvider(directory, 4,
+                new LruNodeCache(Long.MAX_VALUE),
+                FileNodeProvider.DEFAULT_PINNED_LEVELS, GROUP);
+    }
+    
+    /**
+     * Simulates a crash by closing the {@link WriteAheadLog} without
+     * flushing the {@link FileNodeProvider}.
+     */
+    private static void crash(FileNodeProvider provider) {
+        provider.getWriteAheadLog().close();
+    }
+    
+    @Test
+    public void replay() throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            int count = 5000;
+            
+            FileNodeProvider provider = open(directory);
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            for (int i = 0; i < count/2; i++) {
+                String key = "Key-" + i;
+                tree.put(key, key);
+            }
+            
+            provider.flush();
+            TestCase.assertEquals(0L, provider.getWriteAheadLog().size());
+            
+            for (int i = count/2; i < count; i++) {
+                String key = "Key-" + i;
+                tree.put(key, key);
+            }
+            
+            for (int i = 0; i < count; i += 2) {
+                tree.remove("Key-" + i);
+            }
+            
+            crash(provider);
+            
+            provider = open(directory);
+            tree = new BeeTree<String, String>(provider, binding);
+            
+            TestCase.assertEquals(count/2, tree.size());
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                String expected = (i % 2 == 0 ? null : key);
+                TestCase.assertEquals(expected, tree.get(key));
+            }
+            
+            provider.close();
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+    
+    @Test
+    public void tornRecord() throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            FileNodeProvider provider = open(directory);
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            tree.put("Key-1", "Value-1");
+            tree.put("Key-2", "Value-2");
+            
+            long length = provider.getWriteAheadLog().size();
+            crash(provider);
+            
+            RandomAccessFile raf = new RandomAccessFile(
+                    new File(directory, "log"), "rw");
+            try {
+                raf.setLength(length - 3L);
+            } finally {
+                raf.close();
+            }
+            
+            provider = open(directory);
+            tree = new BeeTree<String, String>(provider, binding);
+            
+            TestCase.assertEquals(1, tree.size());
+            TestCase.assertEquals("Value-1", tree.get("Key-1"));
+            TestCase.assertNull(tree.get("Key-2"));
+            
+            tree.put("Key-3", "Value-3");
+            crash(provider);
+            
+            provider = open(directory);
+            tree = new BeeTree<String, String>(provider, binding);
+            
+            TestCase.assertEquals(2, tree.size());
+            TestCase.assertEquals("Value-3", tree.get("Key-3"));
+            
+            provider.close();
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+    
+    @Test
+    public void checkpoint() throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            int count = 5000;
+            
+            FileNodeProvider provider = open(directory);
+            provider.getWriteAheadLog().setCheckpointSize(4096L);
+            
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                tree.put(key, key);
+            }
+            
+            TestCase.assertTrue(provider.getWriteAheadLog().size() < 8192L);
+            crash(provider);
+            
+            provider = open(directory);
+            tree = new BeeTree<String, String>(provider, binding);
+            
+            TestCase.assertEquals(count, tree.size());
+            for (int i = 0; i < count; i++) {
+                String key = "Key-" + i;
+                TestCase.assertEquals(key, tree.get(key));
+            }
+            
+            provider.close();
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+    
+    /**
+     * Checkpoints in the middle of {@link BeeTree#putAll(Map)} and 
+     * {@link BeeTree#removeAll(Collection)} must see the counts of 
+     * the {@link Node}s above the leaves that were changed.
+     */
+    @Test
+    public void batch() throws IOException {
+        File directory = TestUtils.createDirectory();
+        try {
+            int count = 2000;
+            
+            FileNodeProvider provider = open(directory);
+            BeeTree<String, String> tree
+                = new BeeTree<String, String>(provider, binding);
+            
+            TreeMap<String, String> expected = new TreeMap<String, String>();
+            for (int i = 0; i < count; i += 2) {
+                String key = "Key-" + i;
+                expected.put(key, key);
+            }
+            
+            tree.putAll(expected);
+            provider.flush();
+            
+            // Every record is appended after a checkpoint
+            provider.getWriteAheadLog().setCheckpointSize(1L);
+            
+            Map<String, String> puts = new HashMap<String, String>();
+            for (int i = 1; i < count; i += 2) {
+                String key = "Key-" + i;
+                puts.put(key, key);
+            }
+            
+            List<String> removes = new ArrayList<String>();
+            for (int i = 0; i < count; i += 6) {
+                removes.add("Key-" + i);
+            }
+            
+            tree.removeAll(removes);
+            expected.keySet().removeAll(removes);
+            
+            // The crash happens while the last leaf of the batch
+            // has some but not all of its puts
+            tree.putAll(puts);
+            expected.putAll(puts);
+            
+            crash(provider);
+            
+            provider = open(directory);
+            tree = new BeeTree<String, String>(provider, binding);
+            
+            TestCase.assertTrue(0 < provider.verify());
+            TestCase.assertEquals(expected.size(), tree.size());
+            
+            int index = 0;
+            for (String key : expected.keySet()) {
+                TestCase.assertEquals(index, tree.rank(key));
+                TestCase.assertEquals(key, tree.select(index).getKey());
+                ++index;
+            }
+            
+            provider.close();
+        } finally {
+            TestUtils.delete(directory);
+        }
+    }
+}